@@ -0,0 +1,115 @@
+package org.theosib.Benchmarks
+
+import org.openjdk.jmh.annotations._
+import org.theosib.GraphicsEngine.{QuadList, Texture}
+import org.theosib.Position.{BlockPos, ChunkPos}
+import org.theosib.Utils.FileLocator
+import org.theosib.WorldElements.{Chunk, ChunkView, GreedyMesher, World}
+
+import java.util.concurrent.TimeUnit
+import scala.util.Random
+
+/**
+ * Headless comparison of per-block face emission against greedy meshing, over a few synthetic chunks. Each
+ * benchmark returns the number of opaque vertices the chunk would upload, so the two can be compared for size
+ * as well as time. No GL context is needed.
+ *
+ * Run from the project directory so that resources can be found.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class GreedyMeshBenchmark {
+  import GreedyMeshBenchmark._
+
+  @Param(Array("flatFloor", "terrain", "randomFill"))
+  var scenario: String = _
+
+  var view: ChunkView = _
+  val mesher = new GreedyMesher
+  val quads = new QuadList
+
+  @Setup(Level.Trial)
+  def setUp(): Unit = {
+    FileLocator.setBaseDir(System.getProperty("user.dir") + "/resources")
+    view = makeChunk(scenario match {
+      case "flatFloor" => flatFloor
+      case "terrain" => terrain
+      case "randomFill" => randomFill
+    })
+  }
+
+  @Benchmark
+  def perBlockFaces(): Int = countVertices(view, null, quads)
+
+  @Benchmark
+  def greedy(): Int = countVertices(view, mesher, quads)
+}
+
+object GreedyMeshBenchmark {
+  def flatFloor(x: Int, y: Int, z: Int, random: Random): String = if (y == 0) "cobble" else null
+
+  def terrain(x: Int, y: Int, z: Int, random: Random): String = {
+    val height = 6 + ((x / 4) + (z / 5)) % 4
+    if (y > height) null
+    else if (y == height) (if (((x / 4) + (z / 4)) % 3 == 0) "wood" else "cobble")
+    else "stone"
+  }
+
+  def randomFill(x: Int, y: Int, z: Int, random: Random): String = {
+    random.nextInt(6) match {
+      case 0 => "cobble"
+      case 1 => "stone"
+      case 2 => "wood"
+      case _ => null
+    }
+  }
+
+  def makeChunk(fill: (Int, Int, Int, Random) => String): ChunkView = {
+    val world = new World
+    val chunkPos = new ChunkPos(0, 0, 0)
+    val chunk = new Chunk(world, chunkPos)
+    val random = new Random(1234)
+    for (y <- 0 until 16; z <- 0 until 16; x <- 0 until 16) {
+      val name = fill(x, y, z, random)
+      if (name != null) chunk.genBlock(new BlockPos(x, y, z), name)
+    }
+    world.chunkStorage.put(chunk)
+
+    val view = chunk.getChunkView
+    view.markChunkUpdated()
+    view.updateAllBlockFaces()
+    view
+  }
+
+  /**
+   * Count the opaque vertices that ChunkView.iterateOpaqueBlocks would produce
+   * @param mesher greedy mesher, or null for plain per-block faces
+   */
+  def countVertices(view: ChunkView, mesher: GreedyMesher, quads: QuadList): Int = {
+    val chunk = view.chunk
+    var vertices = 0
+    for (texIndex <- 0 until Texture.numTextures()) {
+      val tex = Texture.getTexture(texIndex)
+      if (mesher != null) {
+        mesher.buildQuads(view, tex, quads)
+        vertices += quads.numQuadVertices()
+      }
+
+      for (index <- 0 until Chunk.chunkStorageSize) {
+        if (chunk.blockStorage(index) != 0) {
+          val mesh = chunk.getMesh(index)
+          if (!mesh.isTranslucent && (mesh.getTexture eq tex)) {
+            var faces = view.visibleFaces(index).toInt
+            if (mesher != null) faces &= ~mesher.mergedFaces(mesh)
+            vertices += mesh.computeQuadVertices(faces)
+          }
+        }
+      }
+    }
+    vertices
+  }
+}
@@ -0,0 +1,189 @@
+package org.theosib.Benchmarks
+
+import org.joml.{Vector3d, Vector3dc}
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+import org.theosib.Geometry.{AxisAlignedBox, EntityBox}
+import org.theosib.GraphicsEngine.{Mesh, MeshRenderer, Texture}
+import org.theosib.Parser.ConfigParser
+import org.theosib.Position.{BlockPos, ChunkPos}
+import org.theosib.Utils.FileLocator
+import org.theosib.WorldElements.{Chunk, Entity, World}
+import org.theosib.WorldGen.NoiseTerrainGenerator
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+import scala.util.Random
+
+/**
+ * Headless timing of the paths that frame time depends on: face culling, vertex writing, collision
+ * gathering, entity movement, ray picking, and config parsing. A synthetic world of noise terrain is
+ * generated up front and stored directly, without region files or worker threads. Only interior chunks are
+ * measured, so that nothing reaches past the edge of the world and triggers loading.
+ *
+ * Each benchmark covers a whole batch of chunks, columns, or files; divide by the batch size printed at
+ * setup for the time per operation. Run from the project directory so that resources can be found.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class HotPathBenchmark {
+  import HotPathBenchmark._
+
+  // Radius and height of the world in chunks
+  @Param(Array("4"))
+  var radius: Int = _
+
+  @Param(Array("4"))
+  var height: Int = _
+
+  var world: World = _
+  var interior: IndexedSeq[Chunk] = _
+  var columns: IndexedSeq[(Int, Int, Int)] = _
+  var meshLists: IndexedSeq[MeshList] = _
+  var renderer: MeshRenderer = _
+  var boxes: IndexedSeq[AxisAlignedBox] = _
+  var entity: Entity = _
+  var starts: IndexedSeq[Vector3d] = _
+  var rays: IndexedSeq[(Vector3dc, Vector3dc)] = _
+  var configNames: Array[String] = _
+
+  val viewCenter = new BlockPos(0, 0, 0)
+  val motion = new Vector3d(0.15, -0.05, 0.1)
+
+  @Setup(Level.Trial)
+  def setUp(): Unit = {
+    FileLocator.setBaseDir(System.getProperty("user.dir") + "/resources")
+    world = makeWorld(radius, height)
+    interior = world.listAllChunks().filter { chunk =>
+      val p = chunk.getChunkPos()
+      p.X > -radius && p.X < radius - 1 && p.Z > -radius && p.Z < radius - 1 && p.Y > 0 && p.Y < height - 1
+    }.toIndexedSeq
+    val random = new Random(1234)
+    columns = IndexedSeq.fill(256) {
+      val x = random.nextInt((radius - 1) * 32) - (radius - 1) * 16
+      val z = random.nextInt((radius - 1) * 32) - (radius - 1) * 16
+      (x, z, surfaceHeight(world, x, z, height * 16 - 1))
+    }.filter { case (_, _, y) => y > 0 && y < (height - 1) * 16 - 4 }
+
+    meshLists = collectMeshLists(interior)
+    renderer = new MeshRenderer(null)
+
+    // Boxes resting on the surface, reaching down into it as a falling entity's would
+    boxes = columns.map { case (x, z, y) => entityBoxAt(x, y, z).getAxisAlignedBox.offset(0, -0.5, 0) }
+
+    entity = new Entity(world, null)
+    entity.setSize(0.6, 1.8)
+    entity.setGravity(true)
+    starts = columns.map { case (x, z, y) => entityBoxAt(x, y, z).position }
+
+    val rayRandom = new Random(5678)
+    rays = columns.map { case (x, z, y) =>
+      val start = new Vector3d(x + 0.5, y + 2.6, z + 0.5)
+      val forward = new Vector3d(rayRandom.nextDouble() * 2 - 1, -rayRandom.nextDouble(), rayRandom.nextDouble() * 2 - 1).normalize()
+      (start, forward)
+    }
+
+    configNames = Option(new File(FileLocator.computePath(FileLocator.FileCategory.Blocks, null)).list())
+      .getOrElse(Array.empty[String]).filter(_.endsWith(".yaml")).map(_.stripSuffix(".yaml")).sorted
+
+    println(s"\n${interior.length} chunks, ${columns.length} columns, ${configNames.length} block configs")
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = {
+    renderer.destroy()
+    world.shutdown()
+  }
+
+  @Benchmark
+  def updateAllBlockFaces(): Unit = interior.foreach(_.getChunkView.updateAllBlockFaces())
+
+  /**
+   * Write the opaque block meshes collected at setup into the RenderDataBuffer, as loading a chunk does
+   * without greedy meshing
+   */
+  @Benchmark
+  def loadMeshes(): Unit = {
+    meshLists.foreach { l =>
+      renderer.setOrigin(l.origin)
+      renderer.loadMeshes(l.meshes, l.positions, l.faces, l.count, viewCenter)
+    }
+  }
+
+  @Benchmark
+  def allIntersectingCollisions(bh: Blackhole): Unit = boxes.foreach(box => bh.consume(world.allIntersectingCollisions(box)))
+
+  @Benchmark
+  def entityMove(): Unit = {
+    starts.foreach { start =>
+      entity.setPosition(start)
+      entity.move(motion)
+    }
+  }
+
+  @Benchmark
+  def findNearestBlock(bh: Blackhole): Unit = {
+    rays.foreach { case (start, forward) => bh.consume(world.findNearestBlock(start, forward, 32)) }
+  }
+
+  @Benchmark
+  def configParser(bh: Blackhole): Unit = configNames.foreach(name => bh.consume(ConfigParser.parse(FileLocator.FileCategory.Blocks, name)))
+}
+
+object HotPathBenchmark {
+  case class MeshList(meshes: Array[Mesh], positions: Array[Object], faces: Array[Int], count: Int, origin: BlockPos)
+
+  def makeWorld(radius: Int, height: Int): World = {
+    val world = new World
+    val generator = new NoiseTerrainGenerator(World.defaultSeed)
+    for (y <- 0 until height; z <- -radius until radius; x <- -radius until radius) {
+      val chunk = new Chunk(world, new ChunkPos(x, y, z))
+      generator.generate(chunk)
+      world.chunkStorage.put(chunk)
+    }
+    world
+  }
+
+  /**
+   * @return Y of the highest solid block in a column, or -1 if there isn't one
+   */
+  def surfaceHeight(world: World, x: Int, z: Int, top: Int): Int = {
+    var y = top
+    while (y >= 0 && world.getBlockId(x, y, z) <= 0) y -= 1
+    y
+  }
+
+  def entityBoxAt(x: Int, y: Int, z: Int): EntityBox = new EntityBox(new Vector3d(x + 0.5, y + 1.01, z + 0.5), 0.6, 1.8)
+
+  /**
+   * Collect the opaque block meshes of each chunk and texture once, the way ChunkView.iterateOpaqueBlocks
+   * does without greedy meshing
+   */
+  def collectMeshLists(chunks: IndexedSeq[Chunk]): IndexedSeq[MeshList] = {
+    chunks.foreach(_.getChunkView.updateAllBlockFaces())
+    for (chunk <- chunks; texIndex <- 0 until Texture.numTextures()) yield {
+      val tex = Texture.getTexture(texIndex)
+      val view = chunk.getChunkView
+      val meshes = new Array[Mesh](Chunk.chunkStorageSize)
+      val positions = new Array[Object](Chunk.chunkStorageSize)
+      val faces = new Array[Int](Chunk.chunkStorageSize)
+      var count = 0
+      for (index <- 0 until Chunk.chunkStorageSize) {
+        if (chunk.blockStorage(index) != 0) {
+          val mesh = chunk.getMesh(index)
+          if (!mesh.isTranslucent && (mesh.getTexture eq tex) && view.visibleFaces(index) != 0) {
+            meshes(count) = mesh
+            positions(count) = chunk.indexToBlockPos(index)
+            faces(count) = view.visibleFaces(index).toInt
+            count += 1
+          }
+        }
+      }
+      MeshList(meshes, positions, faces, count, chunk.indexToBlockPos(0))
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package org.theosib.Benchmarks
+
+import org.openjdk.jmh.annotations._
+import org.theosib.Position.ChunkPos
+import org.theosib.Utils.FileLocator
+import org.theosib.WorldElements.{Chunk, World}
+import org.theosib.WorldGen.NoiseTerrainGenerator
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Headless measurement of terrain generation throughput in chunks per second. Each call generates the next
+ * chunk of a square area several chunks deep, the way a player walking forward would request them, and then
+ * discards it. Run with -t to measure several generator threads at once.
+ *
+ * Run from the project directory so that resources can be found.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class TerrainGenBenchmark {
+  @Param(Array("8"))
+  var radius: Int = _
+
+  @Param(Array("4"))
+  var height: Int = _
+
+  var world: World = _
+  var generator: NoiseTerrainGenerator = _
+  var positions: IndexedSeq[ChunkPos] = _
+  var next = 0
+
+  @Setup(Level.Trial)
+  def setUp(): Unit = {
+    FileLocator.setBaseDir(System.getProperty("user.dir") + "/resources")
+    world = new World
+    generator = new NoiseTerrainGenerator(World.defaultSeed)
+    positions = for (y <- 0 until height; z <- -radius until radius; x <- -radius until radius)
+      yield new ChunkPos(x, y, z)
+  }
+
+  @Benchmark
+  def generateChunk(): Chunk = {
+    val chunk = new Chunk(world, positions(next))
+    generator.generate(chunk)
+    next = (next + 1) % positions.length
+    chunk
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = world.shutdown()
+}
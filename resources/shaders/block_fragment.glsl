@@ -4,8 +4,10 @@ out vec4 FragColor;
 in vec3 FragPos;
 in vec3 Normal;
 in vec2 TexCoord;
+flat in uint Layer;
 
-uniform sampler2D ourTexture;
+// All block textures, one per layer; see TextureArray
+uniform sampler2DArray ourTexture;
 
 void main()
 {
@@ -15,7 +17,7 @@ void main()
     float diff = max(dot(Normal, lightDir), 0.0);
     vec3 diffuse = vec3(diff * 0.7);
     vec3 ambient = vec3(0.3);
-    vec4 fragment4 = texture(ourTexture, TexCoord);
+    vec4 fragment4 = texture(ourTexture, vec3(TexCoord, float(Layer)));
     vec3 fragment3 = vec3(fragment4);
     vec3 result = (ambient + diffuse) * fragment3;
     FragColor = vec4(result, fragment4.a);
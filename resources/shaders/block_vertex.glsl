@@ -3,19 +3,30 @@
 layout (location = 0) in vec3 aPos;
 layout (location = 1) in vec3 aNormal;
 layout (location = 2) in vec2 aTexCoord;
+layout (location = 3) in uint aSlot;
+layout (location = 4) in uint aLayer;
 
 out vec3 FragPos;
 out vec3 Normal;
 out vec2 TexCoord;
+flat out uint Layer;
 
 uniform mat4 view;
 uniform mat4 projection;
+// Renderer origin relative to the view center; see MeshRenderer.setOrigin
+uniform vec3 originOffset;
+// Per-slot origins of renderers drawn together by BatchRenderer; slot 0 means the uniform alone applies
+uniform samplerBuffer slotOrigins;
 
 void main()
 {
-    gl_Position = projection * view * vec4(aPos, 1.0);
-    FragPos = aPos;
+    // Undo the fixed-point scaling of VertexFormat
+    vec3 pos = aPos * (1.0 / 256.0) + originOffset;
+    if (aSlot != 0u) pos += texelFetch(slotOrigins, int(aSlot)).xyz;
+    gl_Position = projection * view * vec4(pos, 1.0);
+    FragPos = pos;
     Normal = aNormal;
-    TexCoord = aTexCoord;
+    TexCoord = aTexCoord * (1.0 / 1024.0);
+    Layer = aLayer;
 }
 
@@ -0,0 +1,12 @@
+package org.theosib.Adaptors;
+
+/**
+ * A Disposable that can be handed back to a pool for reuse instead of being destroyed
+ */
+public interface Recyclable extends Disposable {
+    /**
+     * Release what this holds for its current use and offer it to its pool
+     * @return true if the pool took it, or false if it must be destroyed instead
+     */
+    public boolean recycle();
+}
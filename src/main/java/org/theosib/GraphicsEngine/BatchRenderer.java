@@ -0,0 +1,265 @@
+package org.theosib.GraphicsEngine;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.joml.Matrix4fc;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.system.MemoryUtil;
+import org.theosib.Adaptors.Disposable;
+import org.theosib.Position.BlockPos;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+
+/**
+ * Draws many MeshRenderers with one glMultiDrawElementsBaseVertex call. Their vertices live in one
+ * VertexArena and sample the shared TextureArray, and each one's origin comes from a slot stamped into
+ * its vertices (see VertexFormat) that indexes a buffer texture of offsets from the frame's view center,
+ * so no uniforms or bindings change between them.
+ *
+ * Renderers are added each frame with add, then drawn together by draw. Renderers without a slot are
+ * drawn one at a time the usual way. All methods except the slot allocation must be called from the GL
+ * thread.
+ */
+public class BatchRenderer implements Disposable {
+    // Texture unit of the slot origin buffer texture
+    static final int ORIGIN_UNIT = 1;
+
+    // Slots are unsigned shorts, and 0 means none
+    static final int MAX_SLOTS = 1 << 16;
+
+    private static final IntArrayList freeSlots = new IntArrayList();
+    private static int nextSlot = 1;
+
+    private final VertexArena arena = new VertexArena();
+    private final DrawCommandList commands = new DrawCommandList();
+    private final ArrayList<MeshRenderer> unbatched = new ArrayList<>();
+
+    // Offset of each slot's origin from the view center, four floats per slot, and the native copy that
+    // is uploaded
+    private float[] origins = new float[1024 * 4];
+    private FloatBuffer originUpload = null;
+    private int slotEnd = 1;
+    private int originBuffer = 0;
+    private int originTexture = 0;
+
+    private BlockPos viewCenter;
+
+    // Scratch arguments of the multi-draw call, allocated on the first draw
+    private IntBuffer counts = null;
+    private PointerBuffer offsets = null;
+    private IntBuffer baseVertices = null;
+
+    // Draw calls and commands issued by the last draw, for reporting
+    private int lastDrawCalls = 0;
+    private int lastCommands = 0;
+
+    /**
+     * Reserve a slot for renderers that share an origin, such as those of one chunk
+     * @return the slot, or 0 if they are all taken
+     */
+    public static synchronized int allocateSlot() {
+        if (!freeSlots.isEmpty()) return freeSlots.popInt();
+        if (nextSlot >= MAX_SLOTS) return 0;
+        return nextSlot++;
+    }
+
+    public static synchronized void freeSlot(int slot) {
+        if (slot != 0) freeSlots.push(slot);
+    }
+
+    /**
+     * Start collecting renderers for a frame
+     * @param viewCenter position that the view matrix passed to draw is relative to
+     */
+    public void begin(BlockPos viewCenter) {
+        this.viewCenter = viewCenter;
+        commands.clear();
+        unbatched.clear();
+        slotEnd = 1;
+    }
+
+    /**
+     * Queue a renderer to be drawn, uploading any of its vertices that changed
+     * @param sortKey renderers with smaller keys are drawn first, such as distance from the camera
+     */
+    public void add(MeshRenderer mr, float sortKey) {
+        if (!mr.isValid()) return;
+        if (!addToBatch(mr, sortKey)) unbatched.add(mr);
+    }
+
+    /**
+     * Load a renderer into the arena, queue its draw commands, and record its slot's origin. Doesn't touch
+     * GL unless the renderer uploads vertices. A renderer whose vertices couldn't be loaded is skipped.
+     * @return false if the renderer has no slot and has to be drawn on its own
+     */
+    boolean addToBatch(Batchable b, float sortKey) {
+        int slot = b.getBatchSlot();
+        if (slot == 0) return false;
+
+        // Its range would be stale, and its own buffers don't have the vertices either, so it sits frames
+        // out until its owner builds it again
+        if (!b.loadArena(arena)) return true;
+        b.addCommands(commands, sortKey);
+
+        BlockPos o = b.getOrigin();
+        if (slot >= slotEnd) {
+            slotEnd = slot + 1;
+            if (origins.length < slotEnd * 4) {
+                origins = java.util.Arrays.copyOf(origins, Math.max(origins.length * 2, slotEnd * 4));
+            }
+        }
+        origins[slot * 4] = o.X() - viewCenter.X();
+        origins[slot * 4 + 1] = o.Y() - viewCenter.Y();
+        origins[slot * 4 + 2] = o.Z() - viewCenter.Z();
+        return true;
+    }
+
+    /**
+     * Commands queued since begin, for checking what draw would issue
+     */
+    DrawCommandList getCommands() {
+        return commands;
+    }
+
+    VertexArena getArena() {
+        return arena;
+    }
+
+    /**
+     * @param component 0, 1, or 2 for x, y, or z
+     * @return offset of a slot's origin from the view center, as uploaded by the next draw
+     */
+    float getSlotOrigin(int slot, int component) {
+        return origins[slot * 4 + component];
+    }
+
+    /**
+     * @return one more than the highest slot added since begin
+     */
+    int getSlotEnd() {
+        return slotEnd;
+    }
+
+    /**
+     * Draw everything added since begin
+     * @param view view matrix relative to the view center passed to begin
+     */
+    public void draw(Shader shader, Matrix4fc view) {
+        lastDrawCalls = 0;
+        lastCommands = 0;
+
+        uploadOrigins();
+        shader.setMat4("view", view);
+        shader.setVec3("originOffset", 0, 0, 0);
+        shader.setInt("slotOrigins", ORIGIN_UNIT);
+        GL33.glActiveTexture(GL33.GL_TEXTURE0 + ORIGIN_UNIT);
+        GL33.glBindTexture(GL33.GL_TEXTURE_BUFFER, originTexture);
+        GL33.glActiveTexture(GL33.GL_TEXTURE0);
+
+        if (commands.size() > 0) {
+            commands.sort();
+            ensureScratch(commands.size());
+            commands.write(counts, offsets, baseVertices);
+
+            shader.bind();
+            Texture.bindArray();
+            arena.bind(commands.getQuadEnd());
+            GL33.glMultiDrawElementsBaseVertex(GL33.GL_TRIANGLES, counts, GL33.GL_UNSIGNED_INT, offsets, baseVertices);
+            lastDrawCalls++;
+            lastCommands += commands.size();
+
+            counts.clear();
+            offsets.clear();
+            baseVertices.clear();
+        }
+
+        VertexArena.unbind();
+        Texture.unbind();
+        Shader.unbind();
+
+        for (MeshRenderer mr : unbatched) {
+            mr.setViewCenter(viewCenter);
+            mr.draw(shader);
+            lastDrawCalls++;
+        }
+    }
+
+    private void uploadOrigins() {
+        if (originBuffer == 0) {
+            originBuffer = GL33.glGenBuffers();
+            originTexture = GL33.glGenTextures();
+        }
+        if (originUpload == null || originUpload.capacity() < origins.length) {
+            if (originUpload != null) MemoryUtil.memFree(originUpload);
+            originUpload = MemoryUtil.memAllocFloat(origins.length);
+        }
+        originUpload.clear();
+        originUpload.put(origins, 0, slotEnd * 4);
+        originUpload.flip();
+        GL33.glBindBuffer(GL33.GL_TEXTURE_BUFFER, originBuffer);
+        GL33.glBufferData(GL33.GL_TEXTURE_BUFFER, originUpload, GL33.GL_STREAM_DRAW);
+        GL33.glBindBuffer(GL33.GL_TEXTURE_BUFFER, 0);
+
+        // Storage changes with every glBufferData, so attach it again
+        GL33.glBindTexture(GL33.GL_TEXTURE_BUFFER, originTexture);
+        GL33.glTexBuffer(GL33.GL_TEXTURE_BUFFER, GL33.GL_RGBA32F, originBuffer);
+        GL33.glBindTexture(GL33.GL_TEXTURE_BUFFER, 0);
+    }
+
+    private void ensureScratch(int n) {
+        if (counts == null) {
+            int size = Math.max(1024, n);
+            counts = MemoryUtil.memAllocInt(size);
+            offsets = MemoryUtil.memAllocPointer(size);
+            baseVertices = MemoryUtil.memAllocInt(size);
+            return;
+        }
+        if (counts.capacity() >= n) return;
+        int size = Math.max(counts.capacity() * 2, n);
+        counts = MemoryUtil.memRealloc(counts, size);
+        offsets = MemoryUtil.memRealloc(offsets, size);
+        baseVertices = MemoryUtil.memRealloc(baseVertices, size);
+    }
+
+    public int getLastDrawCalls() {
+        return lastDrawCalls;
+    }
+
+    public int getLastCommands() {
+        return lastCommands;
+    }
+
+    public long getArenaUsedQuads() {
+        return arena.getUsedQuads();
+    }
+
+    public long getArenaCapacityQuads() {
+        return arena.getCapacityQuads();
+    }
+
+    @Override
+    public void destroy() {
+        arena.destroy();
+        commands.clear();
+        if (originBuffer != 0) {
+            GL33.glDeleteBuffers(originBuffer);
+            GL33.glDeleteTextures(originTexture);
+            originBuffer = 0;
+            originTexture = 0;
+        }
+        if (originUpload != null) {
+            MemoryUtil.memFree(originUpload);
+            originUpload = null;
+        }
+        if (counts != null) {
+            MemoryUtil.memFree(counts);
+            MemoryUtil.memFree(offsets);
+            MemoryUtil.memFree(baseVertices);
+            counts = null;
+            offsets = null;
+            baseVertices = null;
+        }
+    }
+}
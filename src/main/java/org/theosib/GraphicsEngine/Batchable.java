@@ -0,0 +1,30 @@
+package org.theosib.GraphicsEngine;
+
+import org.theosib.Position.BlockPos;
+
+/**
+ * What BatchRenderer needs from a renderer to put it in a multi-draw. MeshRenderer is the real one; tests
+ * feed in fakes to check the commands and slot origins without a GL context.
+ */
+interface Batchable {
+    /**
+     * @return origin slot stamped into the vertices, or 0 if this can't be batched
+     */
+    int getBatchSlot();
+
+    /**
+     * @return position the vertices are stored relative to
+     */
+    BlockPos getOrigin();
+
+    /**
+     * Upload whatever changed into a range of the arena
+     * @return true if the arena now holds the current vertices
+     */
+    boolean loadArena(VertexArena arena);
+
+    /**
+     * Add the draw commands for the quads held in the arena. Only valid after loadArena returned true.
+     */
+    void addCommands(DrawCommandList list, float sortKey);
+}
@@ -0,0 +1,201 @@
+package org.theosib.GraphicsEngine;
+
+import org.lwjgl.PointerBuffer;
+
+import java.nio.IntBuffer;
+
+/**
+ * List of draw commands for one glMultiDrawElementsBaseVertex call. Each command draws a run of quads
+ * from the shared QuadIndexBuffer, offset by a base vertex into a VertexArena. Commands are sorted front to
+ * back, and neighboring commands that continue the same run are merged. This part doesn't touch GL, so the
+ * command list can be checked without a context.
+ */
+public class DrawCommandList {
+    private int size = 0;
+    private int[] firstQuad = new int[64];
+    private int[] numQuads = new int[64];
+    private int[] baseVertex = new int[64];
+    private float[] sortKey = new float[64];
+
+    // Highest quad index reached by any command, which the index buffer has to cover
+    private int quadEnd = 0;
+
+    // Scratch for sort, kept between frames so that sorting doesn't allocate. Sorted commands are written
+    // to the spare arrays, which are then swapped with the ones above.
+    private int[] keys = new int[64];
+    private int[] order = new int[64];
+    private int[] tmpKeys = new int[64];
+    private int[] tmpOrder = new int[64];
+    private final int[] counts = new int[256];
+    private int[] spareFirstQuad = new int[64];
+    private int[] spareNumQuads = new int[64];
+    private int[] spareBaseVertex = new int[64];
+    private float[] spareSortKey = new float[64];
+
+    public void clear() {
+        size = 0;
+        quadEnd = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getFirstQuad(int i) {
+        return firstQuad[i];
+    }
+
+    public int getNumQuads(int i) {
+        return numQuads[i];
+    }
+
+    public int getBaseVertex(int i) {
+        return baseVertex[i];
+    }
+
+    /**
+     * @return number of indices command i draws
+     */
+    public int getIndexCount(int i) {
+        return numQuads[i] * QuadIndexBuffer.INDICES_PER_QUAD;
+    }
+
+    /**
+     * @return byte offset of command i's first index, for GL_UNSIGNED_INT indices
+     */
+    public long getIndexOffset(int i) {
+        return (long)firstQuad[i] * QuadIndexBuffer.INDICES_PER_QUAD * Integer.BYTES;
+    }
+
+    public int getQuadEnd() {
+        return quadEnd;
+    }
+
+    /**
+     * Add a command
+     * @param first first quad, relative to the base vertex
+     * @param count number of quads
+     * @param base vertex that index zero refers to
+     * @param key smaller keys are drawn first, such as distance from the camera
+     */
+    public void add(int first, int count, int base, float key) {
+        if (count <= 0) return;
+        if (size == firstQuad.length) {
+            int n = size * 2;
+            firstQuad = java.util.Arrays.copyOf(firstQuad, n);
+            numQuads = java.util.Arrays.copyOf(numQuads, n);
+            baseVertex = java.util.Arrays.copyOf(baseVertex, n);
+            sortKey = java.util.Arrays.copyOf(sortKey, n);
+        }
+        firstQuad[size] = first;
+        numQuads[size] = count;
+        baseVertex[size] = base;
+        sortKey[size] = key;
+        size++;
+        quadEnd = Math.max(quadEnd, first + count);
+    }
+
+    /**
+     * Order commands by key, keeping commands with equal keys in the order they were added, and merge
+     * each command into the one before it when it continues the same run of quads. Keys are sorted with
+     * an LSD radix sort on their float bits, flipped so that they order as unsigned ints the same way as
+     * the values.
+     */
+    public void sort() {
+        if (size < 2) return;
+        ensureScratch();
+
+        int[] k = keys, o = order, tk = tmpKeys, to = tmpOrder;
+        for (int i=0; i<size; i++) {
+            int bits = Float.floatToRawIntBits(sortKey[i]);
+            k[i] = bits ^ ((bits >> 31) | 0x80000000);
+            o[i] = i;
+        }
+        for (int shift=0; shift<32; shift+=8) {
+            java.util.Arrays.fill(counts, 0);
+            for (int i=0; i<size; i++) counts[(k[i] >>> shift) & 255]++;
+            // Every key has the same byte, so this pass wouldn't move anything
+            if (counts[(k[0] >>> shift) & 255] == size) continue;
+
+            int sum = 0;
+            for (int c=0; c<256; c++) {
+                int count = counts[c];
+                counts[c] = sum;
+                sum += count;
+            }
+            for (int i=0; i<size; i++) {
+                int dst = counts[(k[i] >>> shift) & 255]++;
+                tk[dst] = k[i];
+                to[dst] = o[i];
+            }
+            int[] t = k; k = tk; tk = t;
+            t = o; o = to; to = t;
+        }
+        keys = k;
+        tmpKeys = tk;
+        order = o;
+        tmpOrder = to;
+
+        int[] f = spareFirstQuad;
+        int[] n = spareNumQuads;
+        int[] b = spareBaseVertex;
+        float[] sk = spareSortKey;
+        int out = 0;
+        for (int i=0; i<size; i++) {
+            int j = o[i];
+            if (out > 0 && b[out-1] == baseVertex[j] && f[out-1] + n[out-1] == firstQuad[j]) {
+                n[out-1] += numQuads[j];
+                continue;
+            }
+            f[out] = firstQuad[j];
+            n[out] = numQuads[j];
+            b[out] = baseVertex[j];
+            sk[out] = sortKey[j];
+            out++;
+        }
+
+        spareFirstQuad = firstQuad;
+        spareNumQuads = numQuads;
+        spareBaseVertex = baseVertex;
+        spareSortKey = sortKey;
+        firstQuad = f;
+        numQuads = n;
+        baseVertex = b;
+        sortKey = sk;
+        size = out;
+    }
+
+    /**
+     * Grow the sort scratch and spare arrays to the capacity of the command arrays, which add may have
+     * grown since the last sort
+     */
+    private void ensureScratch() {
+        int n = firstQuad.length;
+        if (spareFirstQuad.length == n) return;
+        keys = new int[n];
+        order = new int[n];
+        tmpKeys = new int[n];
+        tmpOrder = new int[n];
+        spareFirstQuad = new int[n];
+        spareNumQuads = new int[n];
+        spareBaseVertex = new int[n];
+        spareSortKey = new float[n];
+    }
+
+    /**
+     * Write the arguments of glMultiDrawElementsBaseVertex, for GL_UNSIGNED_INT indices
+     * @param counts receives the number of indices of each command
+     * @param offsets receives the byte offset of each command's first index
+     * @param baseVertices receives each command's base vertex
+     */
+    public void write(IntBuffer counts, PointerBuffer offsets, IntBuffer baseVertices) {
+        for (int i=0; i<size; i++) {
+            counts.put(getIndexCount(i));
+            offsets.put(getIndexOffset(i));
+            baseVertices.put(baseVertex[i]);
+        }
+        counts.flip();
+        offsets.flip();
+        baseVertices.flip();
+    }
+}
@@ -5,7 +5,7 @@ import org.joml.Vector2fc;
 import org.joml.Vector3f;
 import org.joml.Vector3fc;
 
-import java.nio.FloatBuffer;
+import java.nio.ByteBuffer;
 
 public interface Face {
     default public void setVertex(int index, float x, float y, float z) {
@@ -24,50 +24,53 @@ public interface Face {
 
     public Vector2fc getTexCoord(int index);
 
+    /**
+     * Corner accessors index the distinct vertices of a face, as opposed to getVertex/getTexCoord,
+     * which index the expanded triangle vertex list.
+     */
+    default public Vector3fc getCorner(int index) {
+        return getVertex(index);
+    }
+
+    default public Vector2fc getCornerTexCoord(int index) {
+        return getTexCoord(index);
+    }
+
     public Vector3fc getNormal();
 
     public int numVertices();
 
     public int numTriangleVertices();
 
-    default public int numVertexFloats() {
-        return numTriangleVertices() * 3;
-    }
-
-    default public int numTextureFloats() {
-        return numTriangleVertices() * 2;
-    }
-
-    default public int numNormalFloats() {
-        return numVertexFloats();
-    }
-
-    default public void getVertexFloats(FloatBuffer outBuf, float offsetX, float offsetY, float offsetZ) {
-        int loops = numTriangleVertices();
-        for (int i = 0; i < loops; i++) {
-            Vector3fc vertex = getVertex(i);
-            outBuf.put(vertex.x() + offsetX);
-            outBuf.put(vertex.y() + offsetY);
-            outBuf.put(vertex.z() + offsetZ);
-        }
+    /**
+     * Number of vertices written by writeVertices. Every face becomes a quad for the shared
+     * QuadIndexBuffer; triangles are padded with a degenerate corner.
+     */
+    default public int numQuadVertices() {
+        return numVertices() == 0 ? 0 : QuadIndexBuffer.VERTICES_PER_QUAD;
     }
 
-    default public void getTextcoordFloats(FloatBuffer outBuf) {
-        int loops = numTriangleVertices();
-        for (int i = 0; i < loops; i++) {
-            Vector2fc tex = getTexCoord(i);
-            outBuf.put(tex.x());
-            outBuf.put(tex.y());
-        }
+    /**
+     * Append the corners of this face in the interleaved VertexFormat layout. A triangle repeats its last
+     * corner, which makes the second triangle of the quad degenerate.
+     */
+    default public void writeVertices(ByteBuffer outBuf, float offsetX, float offsetY, float offsetZ) {
+        writeVertices(outBuf, offsetX, offsetY, offsetZ, 0);
     }
 
-    default public void getNormalFloats(FloatBuffer outBuf) {
-        int loops = numTriangleVertices();
+    /**
+     * Same as above, sampling the given TextureArray layer
+     */
+    default public void writeVertices(ByteBuffer outBuf, float offsetX, float offsetY, float offsetZ, int layer) {
+        int corners = numVertices();
+        if (corners == 0) return;
         Vector3fc normal = getNormal();
-        for (int i = 0; i < loops; i++) {
-            outBuf.put(normal.x());
-            outBuf.put(normal.y());
-            outBuf.put(normal.z());
+        for (int i = 0; i < QuadIndexBuffer.VERTICES_PER_QUAD; i++) {
+            int c = Math.min(i, corners - 1);
+            Vector3fc vertex = getCorner(c);
+            Vector2fc tex = getCornerTexCoord(c);
+            VertexFormat.putVertex(outBuf, vertex.x() + offsetX, vertex.y() + offsetY, vertex.z() + offsetZ,
+                    tex.x(), tex.y(), normal, layer);
         }
     }
 
@@ -157,6 +160,16 @@ public interface Face {
             return texcoords[repeat_indices[index]];
         }
 
+        @Override
+        public Vector3fc getCorner(int index) {
+            return vertices[index];
+        }
+
+        @Override
+        public Vector2fc getCornerTexCoord(int index) {
+            return texcoords[index];
+        }
+
         @Override
         public Vector3fc getNormal() {
             if (normal != null) return normal;
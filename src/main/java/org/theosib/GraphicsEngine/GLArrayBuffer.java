@@ -1,7 +1,9 @@
 package org.theosib.GraphicsEngine;
 
 import org.lwjgl.opengl.GL33;
+import org.lwjgl.system.MemoryUtil;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
 public class GLArrayBuffer {
@@ -9,28 +11,66 @@ public class GLArrayBuffer {
     int VBO = 0;
     int num_components;
 
+    // Bytes of storage allocated for VBO, which only grows
+    long capacity = 0;
+
     public GLArrayBuffer(int an, int nc) {
         attribute_number = an;
         num_components = nc;
     }
 
+    /**
+     * For a buffer holding interleaved vertices, whose attributes are described by VertexFormat
+     */
+    public GLArrayBuffer() {
+        this(-1, 0);
+    }
+
     public void load(int VAO, FloatBuffer inBuf) {
         GL33.glBindVertexArray(VAO);
-        if (VBO == 0) VBO = GL33.glGenBuffers();
-        GL33.glBindBuffer(GL33.GL_ARRAY_BUFFER, VBO);
-        System.out.println("Limit:" + inBuf.limit() + " Rem: " + inBuf.remaining() + " Pos:" + inBuf.position() + " attr:" + attribute_number +
-                " numc:" + num_components);
-        GL33.glBufferData(GL33.GL_ARRAY_BUFFER, inBuf, GL33.GL_STATIC_DRAW);
-        // XXX use glBufferSubData
+        store(MemoryUtil.memByteBuffer(inBuf));
         GL33.glVertexAttribPointer(attribute_number, num_components, GL33.GL_FLOAT, false, 0, 0);
         GL33.glEnableVertexAttribArray(attribute_number);
         GL33.glBindVertexArray(0);
     }
 
+    public void loadInterleaved(int VAO, ByteBuffer inBuf) {
+        GL33.glBindVertexArray(VAO);
+        store(inBuf);
+        VertexFormat.setupAttributes();
+        GL33.glBindVertexArray(0);
+    }
+
+    /**
+     * Overwrite part of a buffer already loaded with loadInterleaved
+     * @param offset byte offset into the GL buffer
+     * @param inBuf vertices to write, from position to limit
+     */
+    public void updateInterleaved(long offset, ByteBuffer inBuf) {
+        StreamingUploader.get().upload(VBO, offset, inBuf);
+    }
+
+    /**
+     * Make sure the buffer has storage for the data, reallocating only when it has to grow, and then
+     * stream the data in. Leaves the buffer bound to GL_ARRAY_BUFFER for attribute setup.
+     */
+    private void store(ByteBuffer data) {
+        if (VBO == 0) VBO = GL33.glGenBuffers();
+        int size = data.remaining();
+        if (size > capacity) {
+            capacity = Math.max(size, capacity + capacity / 2);
+            GL33.glBindBuffer(GL33.GL_ARRAY_BUFFER, VBO);
+            GL33.glBufferData(GL33.GL_ARRAY_BUFFER, capacity, GL33.GL_DYNAMIC_DRAW);
+        }
+        StreamingUploader.get().upload(VBO, 0, data);
+        GL33.glBindBuffer(GL33.GL_ARRAY_BUFFER, VBO);
+    }
+
     public void destroy() {
         if (VBO != 0) {
             GL33.glDeleteBuffers(VBO);
             VBO = 0;
+            capacity = 0;
         }
     }
 }
@@ -0,0 +1,118 @@
+package org.theosib.GraphicsEngine;
+
+import org.lwjgl.opengl.GL33;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The buffer and sync calls used by StreamingUploader. Going through this interface lets the upload
+ * bookkeeping run against a fake GL without a context.
+ */
+public interface GLCalls {
+    int genBuffer();
+
+    void deleteBuffer(int buffer);
+
+    /**
+     * Give a buffer new, uninitialized storage of the given size
+     */
+    void allocate(int buffer, long size);
+
+    /**
+     * Map a range of a buffer for writing, without waiting for the GPU to finish with it
+     */
+    ByteBuffer mapRange(int buffer, long offset, long length);
+
+    void unmap(int buffer);
+
+    /**
+     * Copy between two buffers on the GPU
+     */
+    void copy(int src, long srcOffset, int dst, long dstOffset, long size);
+
+    /**
+     * Write data directly into part of a buffer
+     */
+    void subData(int buffer, long offset, ByteBuffer data);
+
+    /**
+     * Insert a fence after all commands issued so far
+     * @return fence handle
+     */
+    long fence();
+
+    /**
+     * @return true once the GPU has passed the fence
+     */
+    boolean isSignaled(long fence);
+
+    void deleteFence(long fence);
+
+    /**
+     * Calls made through LWJGL's OpenGL 3.3 bindings
+     */
+    GLCalls GL = new GLCalls() {
+        @Override
+        public int genBuffer() {
+            return GL33.glGenBuffers();
+        }
+
+        @Override
+        public void deleteBuffer(int buffer) {
+            GL33.glDeleteBuffers(buffer);
+        }
+
+        @Override
+        public void allocate(int buffer, long size) {
+            GL33.glBindBuffer(GL33.GL_COPY_WRITE_BUFFER, buffer);
+            GL33.glBufferData(GL33.GL_COPY_WRITE_BUFFER, size, GL33.GL_STREAM_DRAW);
+            GL33.glBindBuffer(GL33.GL_COPY_WRITE_BUFFER, 0);
+        }
+
+        @Override
+        public ByteBuffer mapRange(int buffer, long offset, long length) {
+            GL33.glBindBuffer(GL33.GL_COPY_WRITE_BUFFER, buffer);
+            return GL33.glMapBufferRange(GL33.GL_COPY_WRITE_BUFFER, offset, length,
+                    GL33.GL_MAP_WRITE_BIT | GL33.GL_MAP_UNSYNCHRONIZED_BIT | GL33.GL_MAP_INVALIDATE_RANGE_BIT);
+        }
+
+        @Override
+        public void unmap(int buffer) {
+            GL33.glBindBuffer(GL33.GL_COPY_WRITE_BUFFER, buffer);
+            GL33.glUnmapBuffer(GL33.GL_COPY_WRITE_BUFFER);
+            GL33.glBindBuffer(GL33.GL_COPY_WRITE_BUFFER, 0);
+        }
+
+        @Override
+        public void copy(int src, long srcOffset, int dst, long dstOffset, long size) {
+            GL33.glBindBuffer(GL33.GL_COPY_READ_BUFFER, src);
+            GL33.glBindBuffer(GL33.GL_COPY_WRITE_BUFFER, dst);
+            GL33.glCopyBufferSubData(GL33.GL_COPY_READ_BUFFER, GL33.GL_COPY_WRITE_BUFFER, srcOffset, dstOffset, size);
+            GL33.glBindBuffer(GL33.GL_COPY_READ_BUFFER, 0);
+            GL33.glBindBuffer(GL33.GL_COPY_WRITE_BUFFER, 0);
+        }
+
+        @Override
+        public void subData(int buffer, long offset, ByteBuffer data) {
+            GL33.glBindBuffer(GL33.GL_COPY_WRITE_BUFFER, buffer);
+            GL33.glBufferSubData(GL33.GL_COPY_WRITE_BUFFER, offset, data);
+            GL33.glBindBuffer(GL33.GL_COPY_WRITE_BUFFER, 0);
+        }
+
+        @Override
+        public long fence() {
+            return GL33.glFenceSync(GL33.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        }
+
+        @Override
+        public boolean isSignaled(long fence) {
+            int status = GL33.glClientWaitSync(fence, 0, 0);
+            return status == GL33.GL_ALREADY_SIGNALED || status == GL33.GL_CONDITION_SATISFIED;
+        }
+
+        @Override
+        public void deleteFence(long fence) {
+            GL33.glDeleteSync(fence);
+        }
+    };
+}
@@ -207,6 +207,8 @@ public class GLWindow extends Window {
 
     @Override
     public void swapBuffers() {
+        // Everything streamed this frame can be reused once the GPU is past this point
+        StreamingUploader.endSharedFrame();
         GLFW.glfwSwapBuffers(window);
     }
 
@@ -1,14 +1,17 @@
 package org.theosib.GraphicsEngine;
 
 import org.theosib.Geometry.AxisAlignedBox;
+import org.theosib.Geometry.BoxBuffer;
 import org.theosib.Geometry.CollisionShape;
 import org.theosib.Parser.ConfigParser;
 import org.theosib.Position.BlockPos;
 import org.theosib.Utils.Facing;
 import org.theosib.Utils.FileLocator;
+import org.joml.Vector2fc;
 import org.joml.Vector3dc;
+import org.joml.Vector3fc;
 
-import java.nio.FloatBuffer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -18,8 +21,29 @@ public class Mesh {
     Texture texture;
     List<Face> faces = new ArrayList<>();
     CollisionShape collision = new CollisionShape();
+    // The collision boxes in the block's own unit space, six values each (min x,y,z then max x,y,z), so
+    // that physics can place them at a block without making new boxes. Built from collision when first
+    // needed.
+    private volatile double[] collisionBoxes = null;
+    private volatile boolean fullCubeCollision = false;
     boolean translucent = false;
     int solidFaces;
+    UnitFace[] unitFaces = null;
+
+    /**
+     * Describes a quad face that exactly covers one side of the unit cube with an affine texture mapping.
+     * Such faces can be stretched over several blocks (greedy meshing) by scaling the (u,v) extent and
+     * tiling the texture coordinates. Axes u and v are those given by Facing.u_axis and Facing.v_axis.
+     */
+    public static class UnitFace {
+        // (u,v) position of each corner, in the original winding order
+        public final int[] cornerU = new int[4];
+        public final int[] cornerV = new int[4];
+        // Texture coordinate at (0,0) and its change per unit of u and per unit of v
+        public float tex0X, tex0Y;
+        public float texDuX, texDuY;
+        public float texDvX, texDvY;
+    }
 
     public Mesh() {
         System.out.println("Creating Mesh");
@@ -59,6 +83,79 @@ public class Mesh {
 
     public void setCollision(CollisionShape collision) {
         this.collision = collision;
+        collisionBoxes = null;
+    }
+
+    public double[] getCollisionBoxes() {
+        double[] boxes = collisionBoxes;
+        if (boxes == null) boxes = buildCollisionBoxes();
+        return boxes;
+    }
+
+    private synchronized double[] buildCollisionBoxes() {
+        int n = collision.numBoxes();
+        double[] boxes = new double[n * 6];
+        for (int i=0; i<n; i++) {
+            AxisAlignedBox box = collision.getBox(i);
+            boxes[i*6] = box.neg().x;
+            boxes[i*6+1] = box.neg().y;
+            boxes[i*6+2] = box.neg().z;
+            boxes[i*6+3] = box.pos().x;
+            boxes[i*6+4] = box.pos().y;
+            boxes[i*6+5] = box.pos().z;
+        }
+        fullCubeCollision = boxes.length == 6 && boxes[0] == 0 && boxes[1] == 0 && boxes[2] == 0 &&
+                boxes[3] == 1 && boxes[4] == 1 && boxes[5] == 1;
+        collisionBoxes = boxes;
+        return boxes;
+    }
+
+    /**
+     * @return true if the collision shape is exactly the unit cube
+     */
+    public boolean isFullCubeCollision() {
+        getCollisionBoxes();
+        return fullCubeCollision;
+    }
+
+    /**
+     * Add the collision boxes, placed at a block, to a buffer
+     * @param x block corner
+     */
+    public void appendCollision(BoxBuffer out, double x, double y, double z) {
+        double[] boxes = getCollisionBoxes();
+        if (fullCubeCollision) {
+            out.add(x, y, z, x + 1, y + 1, z + 1);
+            return;
+        }
+        for (int i=0; i<boxes.length; i+=6) {
+            out.add(boxes[i] + x, boxes[i+1] + y, boxes[i+2] + z, boxes[i+3] + x, boxes[i+4] + y, boxes[i+5] + z);
+        }
+    }
+
+    /**
+     * @param x block corner that the collision boxes are placed at
+     * @return index into getCollisionBoxes of the first box overlapping the given one, or -1 if none do.
+     * Boxes that only touch don't overlap.
+     */
+    public int findCollision(double x, double y, double z, double minX, double minY, double minZ,
+                             double maxX, double maxY, double maxZ) {
+        double[] boxes = getCollisionBoxes();
+        return findCollision(boxes, 0, x, y, z, minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Same as findCollision, starting from the box at index start
+     */
+    public static int findCollision(double[] boxes, int start, double x, double y, double z, double minX,
+                                    double minY, double minZ, double maxX, double maxY, double maxZ) {
+        for (int i=start; i<boxes.length; i+=6) {
+            if (boxes[i] + x < maxX && boxes[i+3] + x > minX && boxes[i+1] + y < maxY && boxes[i+4] + y > minY &&
+                    boxes[i+2] + z < maxZ && boxes[i+5] + z > minZ) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     public Face getFace(int index) {
@@ -68,9 +165,11 @@ public class Mesh {
 
     public void addFace(Face face) {
         faces.add(face);
+        unitFaces = null;
     }
 
     public Face allocateFace(int index, Class faceClass) {
+        unitFaces = null;
         if (index >= faces.size()) {
             while (faces.size() < index) {
                 faces.add(Face.NoFace.singleton);
@@ -102,76 +201,137 @@ public class Mesh {
             faces.add(Face.NoFace.singleton);
         }
         faces.set(index, face);
+        unitFaces = null;
     }
 
-    public boolean faceIsSolid(int index) {
-        return Facing.hasFace(solidFaces, index);
+    /**
+     * @param facenum which cube face
+     * @return Description of this face if it is a mergeable unit cube face, otherwise null
+     */
+    public UnitFace getUnitFace(int facenum) {
+        UnitFace[] uf = unitFaces;
+        if (uf == null) {
+            uf = new UnitFace[Facing.NUM_FACES()];
+            for (int i=0; i<uf.length; i++) {
+                uf[i] = computeUnitFace(i);
+            }
+            unitFaces = uf;
+        }
+        return uf[facenum];
     }
 
-    public int computeTriangleVertices(int show_faces) {
-        int total = 0;
-        for (int facenum=0; facenum<faces.size(); facenum++) {
-            if (facenum >= Facing.NUM_FACES() || Facing.hasFace(show_faces, facenum)) {
-                total += getFace(facenum).numTriangleVertices();
-            }
+    /**
+     * @return Bit mask of the faces for which getUnitFace is non-null
+     */
+    public int getUnitFaceMask() {
+        int mask = 0;
+        for (int i=0; i<Facing.NUM_FACES(); i++) {
+            if (getUnitFace(i) != null) mask |= Facing.bitMask(i, 1);
         }
-        return total;
+        return mask;
     }
 
-    public int computeVertexFloats(int show_faces) {
-        int total = 0;
-        for (int facenum=0; facenum<faces.size(); facenum++) {
-            if (facenum >= Facing.NUM_FACES() || Facing.hasFace(show_faces, facenum)) {
-                total += getFace(facenum).numVertexFloats();
-            }
+    private static float component(Vector3fc v, int axis) {
+        switch (axis) {
+            case 0: return v.x();
+            case 1: return v.y();
+            default: return v.z();
         }
-        return total;
     }
 
-    public int computeTextureFloats(int show_faces) {
-        int total = 0;
-        for (int facenum=0; facenum<faces.size(); facenum++) {
-            if (facenum >= Facing.NUM_FACES() || Facing.hasFace(show_faces, facenum)) {
-                total += getFace(facenum).numTextureFloats();
-            }
+    private static boolean near(float a, float b) {
+        return Math.abs(a - b) < 1.0e-5f;
+    }
+
+    private UnitFace computeUnitFace(int facenum) {
+        if (facenum >= faces.size()) return null;
+        Face face = faces.get(facenum);
+        if (!(face instanceof Face.Quad)) return null;
+
+        int axis = Facing.normal_axis()[facenum];
+        int uAxis = Facing.u_axis()[facenum];
+        int vAxis = Facing.v_axis()[facenum];
+        float plane = facenum & 1;
+
+        // Texture coordinates indexed by u + 2*v
+        Vector2fc[] tex = new Vector2fc[4];
+        UnitFace uf = new UnitFace();
+        for (int i=0; i<4; i++) {
+            Vector3fc corner = face.getCorner(i);
+            Vector2fc texcoord = face.getCornerTexCoord(i);
+            if (corner == null || texcoord == null) return null;
+            if (component(corner, axis) != plane) return null;
+            float u = component(corner, uAxis);
+            float v = component(corner, vAxis);
+            if ((u != 0 && u != 1) || (v != 0 && v != 1)) return null;
+            int slot = (int)u + 2 * (int)v;
+            if (tex[slot] != null) return null;
+            tex[slot] = texcoord;
+            uf.cornerU[i] = (int)u;
+            uf.cornerV[i] = (int)v;
         }
-        return total;
+
+        uf.tex0X = tex[0].x();
+        uf.tex0Y = tex[0].y();
+        uf.texDuX = tex[1].x() - tex[0].x();
+        uf.texDuY = tex[1].y() - tex[0].y();
+        uf.texDvX = tex[2].x() - tex[0].x();
+        uf.texDvY = tex[2].y() - tex[0].y();
+
+        // Tiling only works if the mapping is affine across the face
+        if (!near(tex[3].x(), uf.tex0X + uf.texDuX + uf.texDvX)) return null;
+        if (!near(tex[3].y(), uf.tex0Y + uf.texDuY + uf.texDvY)) return null;
+        return uf;
     }
 
-    public int computeNormalFloats(int show_faces) {
+    public boolean faceIsSolid(int index) {
+        return Facing.hasFace(solidFaces, index);
+    }
+
+    public int computeTriangleVertices(int show_faces) {
         int total = 0;
         for (int facenum=0; facenum<faces.size(); facenum++) {
             if (facenum >= Facing.NUM_FACES() || Facing.hasFace(show_faces, facenum)) {
-                total += getFace(facenum).numNormalFloats();
+                total += getFace(facenum).numTriangleVertices();
             }
         }
         return total;
     }
 
-    public void getVertexFloats(FloatBuffer outBuf, int show_faces, Vector3dc blockPos, BlockPos viewCenter) {
-        float offsetX = (float)(blockPos.x() - viewCenter.X());
-        float offsetY = (float)(blockPos.y() - viewCenter.Y());
-        float offsetZ = (float)(blockPos.z() - viewCenter.Z());
-
+    /**
+     * Number of vertices written by writeVertices, four per face
+     */
+    public int computeQuadVertices(int show_faces) {
+        int total = 0;
         for (int facenum=0; facenum<faces.size(); facenum++) {
             if (facenum >= Facing.NUM_FACES() || Facing.hasFace(show_faces, facenum)) {
-                getFace(facenum).getVertexFloats(outBuf, offsetX, offsetY, offsetZ);
+                total += getFace(facenum).numQuadVertices();
             }
         }
+        return total;
     }
 
-    public void getTexcoordFloats(FloatBuffer outBuf, int show_faces) {
-        for (int facenum=0; facenum<faces.size(); facenum++) {
-            if (facenum >= Facing.NUM_FACES() || Facing.hasFace(show_faces, facenum)) {
-                getFace(facenum).getTextcoordFloats(outBuf);
-            }
-        }
+    public int computeVertexBytes(int show_faces) {
+        return computeQuadVertices(show_faces) * VertexFormat.STRIDE;
     }
 
-    public void getNormalFloats(FloatBuffer outBuf, int show_faces) {
+    /**
+     * Write the corners of all shown faces into one interleaved vertex buffer, to be drawn with the
+     * shared QuadIndexBuffer
+     * @param outBuf output buffer
+     * @param show_faces which cube faces to include
+     * @param blockPos position of the block
+     * @param origin position that vertices are made relative to
+     */
+    public void writeVertices(ByteBuffer outBuf, int show_faces, Vector3dc blockPos, BlockPos origin) {
+        float offsetX = (float)(blockPos.x() - origin.X());
+        float offsetY = (float)(blockPos.y() - origin.Y());
+        float offsetZ = (float)(blockPos.z() - origin.Z());
+        int layer = (texture != null) ? texture.getLayer() : 0;
+
         for (int facenum=0; facenum<faces.size(); facenum++) {
             if (facenum >= Facing.NUM_FACES() || Facing.hasFace(show_faces, facenum)) {
-                getFace(facenum).getNormalFloats(outBuf);
+                getFace(facenum).writeVertices(outBuf, offsetX, offsetY, offsetZ, layer);
             }
         }
     }
@@ -234,6 +394,7 @@ public class Mesh {
         if (collision == null) {
             collision = new CollisionShape();
         }
+        collisionBoxes = null;
 
         for (int i=0; i<coords.length; i+=6) {
             float x1 = coords[i];
@@ -1,27 +1,93 @@
 package org.theosib.GraphicsEngine;
 
-import org.theosib.Adaptors.Disposable;
+import org.theosib.Adaptors.Recyclable;
 import org.theosib.Position.BlockPos;
+import org.theosib.Utils.Disposer;
 import org.joml.Vector3dc;
 import org.lwjgl.opengl.GL33;
+import org.lwjgl.system.MemoryUtil;
 
-public class MeshRenderer implements Disposable {
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MeshRenderer implements Recyclable, Batchable {
     int VAO;
     Texture tex;
-    RenderDataBuffer vertex_data, texcoord_data, normal_data;
-    GLArrayBuffer vertex_glarray, texcoord_glarray, normal_glarray;
+    RenderDataBuffer vertex_data;
+    GLArrayBuffer vertex_glarray;
     int total_vertices;
     BlockPos viewCenter;
+    BlockPos origin;
     Vector3dc transSortPosition;
     boolean needs_gl_load = false;
 
+    // Slabs are horizontal slices of a chunk whose vertices each occupy their own range of the buffer, so
+    // that an edit only rewrites and reuploads the slabs it touched. Ranges are counted in quads, and each
+    // has room to grow before the buffer has to be laid out again. Null when the renderer isn't split.
+    int[] slabStart;
+    int[] slabQuads;
+    int[] slabCapacity;
+    int[] slabVersion;
+    boolean[] slabNeedsUpload;
+    int slabEnd;
+    boolean needs_full_load = false;
+
+    // Vertex memory is leased from NativeBufferPool while building and given back once uploaded. After
+    // that, an edit to a slab that still fits its range only writes and uploads that slab, leaving the
+    // rest of the buffer unset; this is true when every slab's vertices are in it.
+    boolean vertexDataComplete = true;
+
+    // Set when the vertices were found missing by loadArena and thrown away, so that whoever builds this
+    // renderer knows to load them all again. Read from the thread that schedules builds.
+    volatile boolean needs_rebuild = false;
+
+    // Origin slot stamped into every vertex for BatchRenderer, or 0 if this is only drawn on its own
+    int batchSlot = 0;
+
+    // Range of quads this renderer holds in a BatchRenderer's VertexArena, if any
+    VertexArena arena;
+    int arenaStart;
+    int arenaQuads;
+
+    // Orders the quads of translucent geometry far to near, drawn through this renderer's own index
+    // buffer instead of the shared QuadIndexBuffer. Null for opaque geometry.
+    TranslucentSorter sorter;
+    int sortedEBO = 0;
+    boolean needs_index_upload = false;
+
+    // Spare room given to a slab when the buffer is laid out, as a fraction of its size plus a few quads
+    static final int SLAB_SLACK_DIVISOR = 4;
+    static final int SLAB_SLACK_QUADS = 16;
+
+    // Renderers handed back through the Disposer, kept with their GL objects so that the next chunk to
+    // load doesn't have to create them again. Their vertex memory goes back to NativeBufferPool.
+    static final int MAX_POOLED = 256;
+    private static final ConcurrentLinkedQueue<MeshRenderer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger poolSize = new AtomicInteger();
+
+    // Scratch for writing sorted indices, only used on the GL thread
+    private static IntBuffer indexScratch = null;
+
+    private boolean live = true;
+
     public boolean isValid() {
         return total_vertices > 0;
     }
 
+    /**
+     * @return true if this renderer has nothing to draw until it's loaded again, even though nothing it
+     * shows has changed
+     */
+    public boolean needsRebuild() {
+        return needs_rebuild;
+    }
+
     public void clear() {
         needs_gl_load = false;
         total_vertices = 0;
+        if (slabStart != null) setNumSlabs(slabStart.length);
     }
 
     public void reset(Texture tex) {
@@ -33,14 +99,61 @@ public class MeshRenderer implements Disposable {
         return tex;
     }
 
-//    public void setViewCenter(BlockPos pos) {
-//        viewCenter = pos;
-//    }
+    public void setViewCenter(BlockPos pos) {
+        viewCenter = pos;
+    }
 
     public BlockPos getViewCenter() {
         return viewCenter;
     }
 
+    /**
+     * Set the position that vertices are stored relative to. Packed vertex positions only reach 128 blocks,
+     * so this should be close to everything in the mesh, such as the corner of a chunk. If not set, the
+     * view center is used.
+     */
+    public void setOrigin(BlockPos pos) {
+        origin = pos;
+    }
+
+    @Override
+    public BlockPos getOrigin() {
+        return origin != null ? origin : viewCenter;
+    }
+
+    /**
+     * Set the origin slot that BatchRenderer uses to place these vertices. Renderers with the same origin
+     * can share a slot. Applies to vertices loaded from now on.
+     */
+    public void setBatchSlot(int slot) {
+        batchSlot = slot;
+    }
+
+    @Override
+    public int getBatchSlot() {
+        return batchSlot;
+    }
+
+    /**
+     * Draw quads in far to near order, as set by sortQuads. Only for renderers loaded with loadMeshes.
+     */
+    public void setSortQuads(boolean sort) {
+        sorter = sort ? new TranslucentSorter() : null;
+    }
+
+    /**
+     * Order the quads far to near from the camera. The order is only recomputed once the camera has moved
+     * a little, and the index buffer is only rewritten when the order changed. Call from the GL thread.
+     * @param cameraPos camera position in the world
+     */
+    public void sortQuads(Vector3dc cameraPos) {
+        if (sorter == null || total_vertices == 0) return;
+        BlockPos o = getOrigin();
+        if (sorter.sort((float)(cameraPos.x() - o.X()), (float)(cameraPos.y() - o.Y()), (float)(cameraPos.z() - o.Z()))) {
+            needs_index_upload = true;
+        }
+    }
+
     public void setTransSortPosition(Vector3dc pos) {
         transSortPosition = pos;
     }
@@ -50,26 +163,27 @@ public class MeshRenderer implements Disposable {
     }
 
     public void loadMeshes(Mesh[] meshes, Object[] positions, int[] faces, int count, BlockPos viewCenter) {
+        loadMeshes(meshes, positions, faces, count, null, viewCenter);
+    }
+
+    /**
+     * Load per-block meshes along with an optional list of free-standing quads (e.g. from greedy meshing)
+     * into the vertex buffers.
+     */
+    public void loadMeshes(Mesh[] meshes, Object[] positions, int[] faces, int count, QuadList quads, BlockPos viewCenter) {
         this.viewCenter = viewCenter;
-        System.out.println("Loading meshes " + count);
 
-        total_vertices = 0;
-        var total_vertex_floats = 0;
-        var total_texcoord_floats = 0;
-        var total_normal_floats = 0;
+        BlockPos relativeTo = getOrigin();
 
+        total_vertices = 0;
         for (int i=0; i<count; i++) {
-            Mesh m = meshes[i];
-            int f = faces[i];
-            total_vertices += m.computeTriangleVertices(f);
-            total_vertex_floats += m.computeVertexFloats(f);
-            total_texcoord_floats += m.computeTextureFloats(f);
-            total_normal_floats += m.computeNormalFloats(f);
+            total_vertices += meshes[i].computeQuadVertices(faces[i]);
+        }
+        if (quads != null) {
+            total_vertices += quads.numQuadVertices();
         }
 
-        vertex_data.reserveFloats(total_vertex_floats);
-        texcoord_data.reserveFloats(total_texcoord_floats);
-        normal_data.reserveFloats(total_normal_floats);
+        ByteBuffer buf = vertex_data.reserveBytes(total_vertices * VertexFormat.STRIDE);
 
         for (int i=0; i<count; i++) {
             Mesh m = meshes[i];
@@ -77,37 +191,252 @@ public class MeshRenderer implements Disposable {
             Object pi = positions[i];
             // XXX check type of just index 0?
             Vector3dc p = (pi instanceof BlockPos) ? ((BlockPos)pi).toVector3d() : (Vector3dc)pi;
-            m.getVertexFloats(vertex_data.getBuffer(), f, p, viewCenter);
-            m.getTexcoordFloats(texcoord_data.getBuffer(), f);
-            m.getNormalFloats(normal_data.getBuffer(), f);
+            m.writeVertices(buf, f, p, relativeTo);
+        }
+
+        if (quads != null) {
+            quads.writeVertices(buf, relativeTo);
         }
+        if (batchSlot != 0) VertexFormat.setSlot(buf, 0, total_vertices, batchSlot);
 
         vertex_data.flip();
-        texcoord_data.flip();
-        normal_data.flip();
+        vertexDataComplete = true;
+        needs_rebuild = false;
+
+        if (sorter != null) {
+            sorter.setQuads(buf, numQuads());
+            needs_index_upload = true;
+        }
 
         needs_gl_load = true;
     }
 
+    /**
+     * Split the vertex buffer into slabs that are loaded separately with loadSlab. This discards any
+     * vertices already loaded.
+     */
+    public void setNumSlabs(int n) {
+        slabStart = new int[n];
+        slabQuads = new int[n];
+        slabCapacity = new int[n];
+        slabVersion = new int[n];
+        slabNeedsUpload = new boolean[n];
+        java.util.Arrays.fill(slabVersion, -1);
+        slabEnd = 0;
+        total_vertices = 0;
+        needs_full_load = true;
+        vertexDataComplete = true;
+        needs_rebuild = false;
+    }
+
+    /**
+     * @return true if the slab was last loaded at the given version, and so doesn't need rebuilding
+     */
+    public boolean slabIsCurrent(int slab, int version) {
+        return slabVersion != null && slabVersion[slab] == version;
+    }
+
+    /**
+     * Replace the vertices of one slab, the same way loadMeshes replaces all of them. If the slab still
+     * fits in its range, only that range is uploaded to GL.
+     * @param version stored so that slabIsCurrent can tell when the slab changes again
+     * @return false if the slab outgrew its range after the vertices of the other slabs were given back,
+     * in which case those were discarded and have to be loaded again
+     */
+    public boolean loadSlab(int slab, int version, Mesh[] meshes, Object[] positions, int[] faces, int count, QuadList quads) {
+        BlockPos relativeTo = getOrigin();
+
+        int vertices = 0;
+        for (int i=0; i<count; i++) {
+            vertices += meshes[i].computeQuadVertices(faces[i]);
+        }
+        if (quads != null) {
+            vertices += quads.numQuadVertices();
+        }
+        int quadCount = vertices / QuadIndexBuffer.VERTICES_PER_QUAD;
+
+        boolean kept = true;
+        if (quadCount > slabCapacity[slab] || (vertex_data.getByteBuffer() == null && needs_full_load)) {
+            if (!vertexDataComplete) {
+                // Moving the other slabs needs their vertices, which only GL still has
+                discardSlabs();
+                kept = false;
+            }
+            layoutSlabs(slab, quadCount);
+        } else {
+            if (vertex_data.getByteBuffer() == null) {
+                // GL still has the other slabs, so only this one has to be written
+                vertex_data.reserveBytes(slabEnd * bytesPerQuad());
+                vertexDataComplete = false;
+            }
+            slabNeedsUpload[slab] = true;
+        }
+
+        ByteBuffer buf = vertex_data.getByteBuffer();
+        buf.limit(buf.capacity());
+        buf.position(slabStart[slab] * bytesPerQuad());
+        for (int i=0; i<count; i++) {
+            Mesh m = meshes[i];
+            Object pi = positions[i];
+            Vector3dc p = (pi instanceof BlockPos) ? ((BlockPos)pi).toVector3d() : (Vector3dc)pi;
+            m.writeVertices(buf, faces[i], p, relativeTo);
+        }
+        if (quads != null) {
+            quads.writeVertices(buf, relativeTo);
+        }
+        if (batchSlot != 0) {
+            VertexFormat.setSlot(buf, slabStart[slab] * QuadIndexBuffer.VERTICES_PER_QUAD, vertices, batchSlot);
+        }
+
+        total_vertices += (quadCount - slabQuads[slab]) * QuadIndexBuffer.VERTICES_PER_QUAD;
+        slabQuads[slab] = quadCount;
+        slabVersion[slab] = version;
+        needs_gl_load = true;
+        needs_rebuild = false;
+        return kept;
+    }
+
+    private void discardSlabs() {
+        java.util.Arrays.fill(slabQuads, 0);
+        java.util.Arrays.fill(slabVersion, -1);
+        total_vertices = 0;
+    }
+
+    /**
+     * Give the vertex memory back once GL has all of it
+     */
+    private void releaseVertexData() {
+        vertex_data.release();
+        vertexDataComplete = false;
+    }
+
+    private static int bytesPerQuad() {
+        return QuadIndexBuffer.VERTICES_PER_QUAD * VertexFormat.STRIDE;
+    }
+
+    /**
+     * Lay the slab ranges out again with fresh spare room, moving the vertices of every slab but the one
+     * about to be rewritten. The whole buffer is uploaded on the next draw.
+     */
+    private void layoutSlabs(int changed, int changedQuads) {
+        int n = slabStart.length;
+        int[] start = new int[n];
+        int end = 0;
+        for (int s=0; s<n; s++) {
+            int q = (s == changed) ? changedQuads : slabQuads[s];
+            slabCapacity[s] = q + q / SLAB_SLACK_DIVISOR + SLAB_SLACK_QUADS;
+            start[s] = end;
+            end += slabCapacity[s];
+        }
+
+        ByteBuffer old = vertex_data.getByteBuffer();
+        ByteBuffer fresh = NativeBufferPool.getShared().acquire(end * bytesPerQuad());
+        if (old != null) {
+            for (int s=0; s<n; s++) {
+                if (s != changed && slabQuads[s] > 0) {
+                    MemoryUtil.memCopy(MemoryUtil.memAddress0(old) + (long)slabStart[s] * bytesPerQuad(),
+                            MemoryUtil.memAddress0(fresh) + (long)start[s] * bytesPerQuad(),
+                            (long)slabQuads[s] * bytesPerQuad());
+                }
+            }
+        }
+        vertex_data.replaceBytes(fresh);
+
+        slabStart = start;
+        slabEnd = end;
+        java.util.Arrays.fill(slabNeedsUpload, false);
+        needs_full_load = true;
+        vertexDataComplete = true;
+    }
+
     public MeshRenderer(Texture t) {
         tex = t;
-        vertex_glarray = new GLArrayBuffer(0, 3);
-        texcoord_glarray = new GLArrayBuffer(2, 2);
-        normal_glarray = new GLArrayBuffer(1, 3);
-
+        vertex_glarray = new GLArrayBuffer();
         vertex_data = new RenderDataBuffer();
-        texcoord_data = new RenderDataBuffer();
-        normal_data = new RenderDataBuffer();
+        Disposer.created("MeshRenderer");
+    }
+
+    /**
+     * Get a renderer from the pool, or a new one if it's empty. Can be called from any thread.
+     */
+    public static MeshRenderer obtain(Texture t) {
+        MeshRenderer mr = pool.poll();
+        if (mr == null) return new MeshRenderer(t);
+        poolSize.decrementAndGet();
+        mr.tex = t;
+        return mr;
+    }
+
+    public static int pooledCount() {
+        return poolSize.get();
+    }
+
+    /**
+     * Destroy every pooled renderer. Call from the GL thread.
+     */
+    public static void destroyPool() {
+        MeshRenderer mr;
+        while ((mr = pool.poll()) != null) {
+            poolSize.decrementAndGet();
+            mr.destroy();
+        }
+    }
+
+    /**
+     * Give up this renderer's contents and put it in the pool. The VAO, vertex buffer, and vertex memory
+     * are kept for reuse. Call from the GL thread, normally by way of the Disposer.
+     */
+    @Override
+    public boolean recycle() {
+        if (!live) return true;
+        if (poolSize.incrementAndGet() > MAX_POOLED) {
+            poolSize.decrementAndGet();
+            return false;
+        }
+
+        if (arena != null) {
+            arena.free(arenaStart, arenaQuads);
+            arena = null;
+        }
+        tex = null;
+        total_vertices = 0;
+        needs_gl_load = false;
+        viewCenter = null;
+        origin = null;
+        transSortPosition = null;
+        slabStart = null;
+        slabQuads = null;
+        slabCapacity = null;
+        slabVersion = null;
+        slabNeedsUpload = null;
+        slabEnd = 0;
+        needs_full_load = false;
+        batchSlot = 0;
+        sorter = null;
+        needs_index_upload = false;
+        vertex_data.release();
+        vertexDataComplete = true;
+        needs_rebuild = false;
+
+        pool.add(this);
+        return true;
     }
 
     @Override
     public void destroy() {
+        if (!live) return;
+        live = false;
+        Disposer.destroyed("MeshRenderer");
         vertex_data.destroy();
-        texcoord_data.destroy();
-        normal_data.destroy();
         vertex_glarray.destroy();
-        texcoord_glarray.destroy();
-        normal_glarray.destroy();
+        if (sortedEBO != 0) {
+            GL33.glDeleteBuffers(sortedEBO);
+            sortedEBO = 0;
+        }
+        if (arena != null) {
+            arena.free(arenaStart, arenaQuads);
+            arena = null;
+        }
 
         if (VAO != 0) {
             GL33.glDeleteVertexArrays(VAO);
@@ -124,35 +453,171 @@ public class MeshRenderer implements Disposable {
         GL33.glBindVertexArray(0);
     }
 
+    public int numVertices() {
+        return total_vertices;
+    }
+
+    public int numQuads() {
+        return total_vertices / QuadIndexBuffer.VERTICES_PER_QUAD;
+    }
+
     public void loadGLBuffers() {
         if (total_vertices == 0) return;
 
         bindVAO();
         if (!needs_gl_load) return;
         needs_gl_load = false;
-        System.out.println("Loading GL buffers");
 
-        vertex_glarray.load(VAO, vertex_data.getBuffer());
-        texcoord_glarray.load(VAO, texcoord_data.getBuffer());
-        normal_glarray.load(VAO, normal_data.getBuffer());
+        if (slabStart == null) {
+            // Element buffer binding is part of the VAO state. Sorted quads bind their own in draw.
+            if (sorter == null) QuadIndexBuffer.bind(numQuads());
+            vertex_glarray.loadInterleaved(VAO, vertex_data.getByteBuffer());
+            bindVAO();
+            releaseVertexData();
+            return;
+        }
 
-//        for (int i=0; i<vertex_data.getBuffer().limit(); i++) {
-//            System.out.printf("%f ", vertex_data.getBuffer().get(i));
-//        }
-//        System.out.println();
+        ByteBuffer buf = vertex_data.getByteBuffer();
+        QuadIndexBuffer.bind(slabEnd);
+        if (needs_full_load) {
+            buf.position(0);
+            buf.limit(slabEnd * bytesPerQuad());
+            vertex_glarray.loadInterleaved(VAO, buf);
+            bindVAO();
+            needs_full_load = false;
+            java.util.Arrays.fill(slabNeedsUpload, false);
+        } else {
+            for (int s=0; s<slabStart.length; s++) {
+                if (!slabNeedsUpload[s]) continue;
+                slabNeedsUpload[s] = false;
+                if (slabQuads[s] == 0) continue;
+                buf.limit((slabStart[s] + slabQuads[s]) * bytesPerQuad());
+                buf.position(slabStart[s] * bytesPerQuad());
+                vertex_glarray.updateInterleaved(slabStart[s] * bytesPerQuad(), buf);
+            }
+        }
+        releaseVertexData();
+    }
+
+    /**
+     * Upload whatever changed into a range of the arena, the way loadGLBuffers does into this renderer's
+     * own buffer. The range is replaced when the buffer was laid out again.
+     * @return false if the arena doesn't hold the current vertices, in which case addCommands must not be
+     * used until a later call succeeds. If the vertices are gone, the renderer is emptied and needsRebuild
+     * becomes true.
+     */
+    @Override
+    public boolean loadArena(VertexArena a) {
+        if (total_vertices == 0) return false;
+        if (!needs_gl_load && arena == a) return true;
+
+        ByteBuffer buf = vertex_data.getByteBuffer();
+        int quads = (slabStart == null) ? numQuads() : slabEnd;
+        if (slabStart == null || needs_full_load || arena != a || arenaQuads != quads) {
+            // The vertices were given back after an earlier upload, so there's nothing to copy, and the old
+            // range no longer matches the layout. Nothing marks the slabs as changed, so drop them all and
+            // let the owner see that they have to be built again (see ChunkView.wantsVisualUpdate).
+            if (!vertexDataComplete) {
+                if (slabVersion != null) discardSlabs();
+                total_vertices = 0;
+                releaseVertexData();
+                needs_full_load = true;
+                needs_gl_load = false;
+                needs_rebuild = true;
+                return false;
+            }
+            needs_gl_load = false;
+            if (arena != null) arena.free(arenaStart, arenaQuads);
+            arena = a;
+            arenaQuads = quads;
+            arenaStart = a.allocate(quads);
+            buf.position(0);
+            buf.limit(quads * bytesPerQuad());
+            a.upload((long)arenaStart * bytesPerQuad(), buf);
+            needs_full_load = false;
+            if (slabStart != null) java.util.Arrays.fill(slabNeedsUpload, false);
+            releaseVertexData();
+            return true;
+        }
+
+        needs_gl_load = false;
+        for (int s=0; s<slabStart.length; s++) {
+            if (!slabNeedsUpload[s]) continue;
+            slabNeedsUpload[s] = false;
+            if (slabQuads[s] == 0) continue;
+            buf.limit((slabStart[s] + slabQuads[s]) * bytesPerQuad());
+            buf.position(slabStart[s] * bytesPerQuad());
+            a.upload((long)(arenaStart + slabStart[s]) * bytesPerQuad(), buf);
+        }
+        releaseVertexData();
+        return true;
+    }
+
+    /**
+     * Add the draw commands for this renderer's quads in its arena, one per slab that has any
+     */
+    @Override
+    public void addCommands(DrawCommandList list, float sortKey) {
+        int baseVertex = arenaStart * QuadIndexBuffer.VERTICES_PER_QUAD;
+        if (slabStart == null) {
+            list.add(0, numQuads(), baseVertex, sortKey);
+        } else {
+            for (int s=0; s<slabStart.length; s++) {
+                list.add(slabStart[s], slabQuads[s], baseVertex, sortKey);
+            }
+        }
+    }
+
+    /**
+     * Bind this renderer's own index buffer to its VAO, rewriting it if the sorted order changed
+     */
+    private void bindSortedIndices() {
+        bindVAO();
+        if (sortedEBO == 0) sortedEBO = GL33.glGenBuffers();
+        GL33.glBindBuffer(GL33.GL_ELEMENT_ARRAY_BUFFER, sortedEBO);
+        if (!needs_index_upload) return;
+        needs_index_upload = false;
+
+        int n = numQuads() * QuadIndexBuffer.INDICES_PER_QUAD;
+        if (indexScratch == null) {
+            indexScratch = MemoryUtil.memAllocInt(n);
+        } else if (indexScratch.capacity() < n) {
+            indexScratch = MemoryUtil.memRealloc(indexScratch, Math.max(n, indexScratch.capacity() * 2));
+        }
+        IntBuffer indices = indexScratch;
+        indices.clear();
+        sorter.writeIndices(indices);
+        indices.flip();
+        GL33.glBufferData(GL33.GL_ELEMENT_ARRAY_BUFFER, indices, GL33.GL_STREAM_DRAW);
     }
 
     public void draw(Shader shader) {
         if (total_vertices == 0) return;
 
         loadGLBuffers();
+        if (sorter != null) bindSortedIndices();
+        // Vertices are relative to the origin, but the view matrix is relative to the view center
+        BlockPos relativeTo = getOrigin();
+        shader.setVec3("originOffset", relativeTo.X() - viewCenter.X(), relativeTo.Y() - viewCenter.Y(),
+                relativeTo.Z() - viewCenter.Z());
         shader.bind();
-        tex.bind();
+        // Renderers mixing several textures have none of their own
+        if (tex != null) tex.bind(); else Texture.bindArray();
 
-        GL33.glDrawArrays(GL33.GL_TRIANGLES, 0, total_vertices);
+        if (slabStart == null) {
+            GL33.glDrawElements(GL33.GL_TRIANGLES, numQuads() * QuadIndexBuffer.INDICES_PER_QUAD, GL33.GL_UNSIGNED_INT, 0);
+        } else {
+            // Each slab's quads start at its own place in the shared index buffer
+            for (int s=0; s<slabStart.length; s++) {
+                if (slabQuads[s] == 0) continue;
+                GL33.glDrawElements(GL33.GL_TRIANGLES, slabQuads[s] * QuadIndexBuffer.INDICES_PER_QUAD,
+                        GL33.GL_UNSIGNED_INT, (long)slabStart[s] * QuadIndexBuffer.INDICES_PER_QUAD * Integer.BYTES);
+            }
+        }
 
-        shader.unbind();
-        tex.unbind();
+        Shader.unbind();
+        // Static, since tex is null for renderers drawn from the whole array
+        Texture.unbind();
         unbindVAO();
     }
 }
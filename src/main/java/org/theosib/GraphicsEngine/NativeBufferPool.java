@@ -0,0 +1,150 @@
+package org.theosib.GraphicsEngine;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap buffers leased out by size class, so that mesh builds on any thread reuse the memory of
+ * earlier ones instead of allocating and freeing it each time. Classes are powers of two, and a lease
+ * gets a buffer with the capacity of the smallest class that fits, limited to the size asked for.
+ * Buffers larger than the biggest class are allocated and freed directly.
+ *
+ * Returned buffers are kept for reuse only up to a total number of bytes, beyond which they are freed,
+ * so that the memory resident after a burst of building falls back to what is actually in use.
+ */
+public class NativeBufferPool {
+    static final int MIN_CLASS_SHIFT = 12;
+    static final int MAX_CLASS_SHIFT = 26;
+    static final int NUM_CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+    public static final long DEFAULT_MAX_POOLED = 32L << 20;
+
+    private static final NativeBufferPool shared = new NativeBufferPool(DEFAULT_MAX_POOLED);
+
+    private final long maxPooled;
+
+    // Free buffers of each class, most recently returned first
+    @SuppressWarnings("unchecked")
+    private final ConcurrentLinkedDeque<ByteBuffer>[] free = new ConcurrentLinkedDeque[NUM_CLASSES];
+
+    // Bytes by capacity, for reporting
+    private final AtomicLong leased = new AtomicLong();
+    private final AtomicLong pooled = new AtomicLong();
+    private final AtomicLong leasedHighWater = new AtomicLong();
+    private final AtomicLong residentHighWater = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    public NativeBufferPool(long maxPooled) {
+        this.maxPooled = maxPooled;
+        for (int i=0; i<NUM_CLASSES; i++) free[i] = new ConcurrentLinkedDeque<>();
+    }
+
+    public static NativeBufferPool getShared() {
+        return shared;
+    }
+
+    /**
+     * @return the size class for a number of bytes, or -1 if it's larger than any class
+     */
+    static int sizeClass(int bytes) {
+        if (bytes <= (1 << MIN_CLASS_SHIFT)) return 0;
+        int shift = 32 - Integer.numberOfLeadingZeros(bytes - 1);
+        if (shift > MAX_CLASS_SHIFT) return -1;
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    static int classBytes(int sizeClass) {
+        return 1 << (sizeClass + MIN_CLASS_SHIFT);
+    }
+
+    /**
+     * Lease a buffer in native byte order. Its contents are undefined. Can be called from any thread.
+     * @param bytes size needed
+     * @return buffer with position 0 and limit bytes, whose capacity may be larger
+     */
+    public ByteBuffer acquire(int bytes) {
+        int c = sizeClass(bytes);
+        ByteBuffer buf = null;
+        if (c >= 0) {
+            buf = free[c].pollFirst();
+            if (buf != null) {
+                pooled.addAndGet(-buf.capacity());
+                reuses.incrementAndGet();
+            } else {
+                buf = MemoryUtil.memAlloc(classBytes(c));
+                allocations.incrementAndGet();
+            }
+        } else {
+            buf = MemoryUtil.memAlloc(bytes);
+            allocations.incrementAndGet();
+        }
+
+        long l = leased.addAndGet(buf.capacity());
+        leasedHighWater.accumulateAndGet(l, Math::max);
+        residentHighWater.accumulateAndGet(l + pooled.get(), Math::max);
+
+        buf.clear();
+        buf.limit(bytes);
+        return buf;
+    }
+
+    /**
+     * Give back a buffer from acquire. It must not be used again. Can be called from any thread.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null) return;
+        int capacity = buf.capacity();
+        leased.addAndGet(-capacity);
+
+        int c = sizeClass(capacity);
+        if (c < 0 || classBytes(c) != capacity) {
+            MemoryUtil.memFree(buf);
+            return;
+        }
+        if (pooled.addAndGet(capacity) > maxPooled) {
+            pooled.addAndGet(-capacity);
+            MemoryUtil.memFree(buf);
+            return;
+        }
+        free[c].addFirst(buf);
+    }
+
+    /**
+     * Free every pooled buffer. Leased ones are unaffected.
+     */
+    public void trim() {
+        for (int c=0; c<NUM_CLASSES; c++) {
+            ByteBuffer buf;
+            while ((buf = free[c].pollFirst()) != null) {
+                pooled.addAndGet(-buf.capacity());
+                MemoryUtil.memFree(buf);
+            }
+        }
+    }
+
+    public long leasedBytes() {
+        return leased.get();
+    }
+
+    public long pooledBytes() {
+        return pooled.get();
+    }
+
+    public long leasedHighWater() {
+        return leasedHighWater.get();
+    }
+
+    public long residentHighWater() {
+        return residentHighWater.get();
+    }
+
+    public String report() {
+        return String.format("native buffers: %d KB leased (peak %d KB), %d KB pooled, peak resident %d KB, %d allocations, %d reuses",
+                leased.get() >> 10, leasedHighWater.get() >> 10, pooled.get() >> 10, residentHighWater.get() >> 10,
+                allocations.get(), reuses.get());
+    }
+}
@@ -0,0 +1,76 @@
+package org.theosib.GraphicsEngine;
+
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.IntBuffer;
+
+/**
+ * Element index buffer shared by all MeshRenderers. Every face is written as four corners (see
+ * Face.writeVertices), so the indices that split quads into triangles are the same for every mesh and only
+ * have to exist once. The buffer only ever grows, and it keeps the same GL name when it does, so VAOs that
+ * bound it earlier stay valid.
+ *
+ * All methods except fillIndices must be called from the GL thread.
+ */
+public class QuadIndexBuffer {
+    public static final int INDICES_PER_QUAD = 6;
+    public static final int VERTICES_PER_QUAD = 4;
+
+    // Same triangle split as Face.Quad used to produce by repeating vertices
+    static final private int[] quad_indices = {
+            0, 1, 2, 0, 2, 3
+    };
+
+    private static int EBO = 0;
+    private static int capacityQuads = 0;
+
+    private QuadIndexBuffer() {}
+
+    /**
+     * Write the indices for a run of quads. This doesn't touch GL, so it can be used headless.
+     * @param outBuf output buffer
+     * @param firstQuad index of first quad
+     * @param numQuads number of quads
+     */
+    public static void fillIndices(IntBuffer outBuf, int firstQuad, int numQuads) {
+        for (int q = firstQuad; q < firstQuad + numQuads; q++) {
+            int base = q * VERTICES_PER_QUAD;
+            for (int j = 0; j < INDICES_PER_QUAD; j++) {
+                outBuf.put(base + quad_indices[j]);
+            }
+        }
+    }
+
+    /**
+     * Bind the shared index buffer to the currently bound VAO, growing it first if it has fewer than
+     * numQuads quads.
+     */
+    public static void bind(int numQuads) {
+        if (EBO == 0) EBO = GL33.glGenBuffers();
+        GL33.glBindBuffer(GL33.GL_ELEMENT_ARRAY_BUFFER, EBO);
+
+        if (numQuads > capacityQuads) {
+            // Grow geometrically so a sequence of slightly larger chunks doesn't reupload every time
+            int newCapacity = Math.max(numQuads, Math.max(capacityQuads * 2, 1024));
+            IntBuffer indices = MemoryUtil.memAllocInt(newCapacity * INDICES_PER_QUAD);
+            fillIndices(indices, 0, newCapacity);
+            indices.flip();
+            GL33.glBufferData(GL33.GL_ELEMENT_ARRAY_BUFFER, indices, GL33.GL_STATIC_DRAW);
+            MemoryUtil.memFree(indices);
+            capacityQuads = newCapacity;
+        }
+    }
+
+    public static int getCapacityQuads() {
+        return capacityQuads;
+    }
+
+    public static void destroy() {
+        if (EBO != 0) {
+            GL33.glDeleteBuffers(EBO);
+            EBO = 0;
+            capacityQuads = 0;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.theosib.GraphicsEngine;
+
+import org.theosib.Position.BlockPos;
+import org.theosib.Utils.Facing;
+import org.joml.Vector3f;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable list of free-standing quads that don't come from a per-block Mesh, such as the merged faces
+ * produced by greedy meshing. Corner positions are stored relative to an origin block so that they stay
+ * small, and they are shifted relative to the renderer origin when written out.
+ */
+public class QuadList {
+    BlockPos origin = new BlockPos();
+    float[] positions = new float[12 * 64];
+    float[] texcoords = new float[8 * 64];
+    int[] facings = new int[64];
+    int[] layers = new int[64];
+    int count = 0;
+
+    public void clear(BlockPos origin) {
+        this.origin = origin;
+        count = 0;
+    }
+
+    public BlockPos getOrigin() {
+        return origin;
+    }
+
+    public int numQuads() {
+        return count;
+    }
+
+    public int numTriangleVertices() {
+        return count * 6;
+    }
+
+    public int numQuadVertices() {
+        return count * QuadIndexBuffer.VERTICES_PER_QUAD;
+    }
+
+    public int numVertexBytes() {
+        return numQuadVertices() * VertexFormat.STRIDE;
+    }
+
+    /**
+     * Start a new quad
+     * @param facing which way the quad faces, used for its normal
+     * @return index of the new quad, to be passed to setCorner
+     */
+    public int beginQuad(int facing) {
+        return beginQuad(facing, 0);
+    }
+
+    /**
+     * Start a new quad
+     * @param facing which way the quad faces, used for its normal
+     * @param layer TextureArray layer of its texture
+     * @return index of the new quad, to be passed to setCorner
+     */
+    public int beginQuad(int facing, int layer) {
+        if (count >= facings.length) {
+            int newSize = facings.length * 2;
+            facings = Arrays.copyOf(facings, newSize);
+            layers = Arrays.copyOf(layers, newSize);
+            positions = Arrays.copyOf(positions, newSize * 12);
+            texcoords = Arrays.copyOf(texcoords, newSize * 8);
+        }
+        facings[count] = facing;
+        layers[count] = layer;
+        return count++;
+    }
+
+    public void setCorner(int quad, int corner, float x, float y, float z, float u, float v) {
+        int p = quad * 12 + corner * 3;
+        positions[p] = x;
+        positions[p+1] = y;
+        positions[p+2] = z;
+        int t = quad * 8 + corner * 2;
+        texcoords[t] = u;
+        texcoords[t+1] = v;
+    }
+
+    /**
+     * Append the corners of all quads in the interleaved VertexFormat layout, to be drawn with the
+     * shared QuadIndexBuffer
+     * @param outBuf output buffer
+     * @param relativeTo position that vertices are made relative to
+     */
+    public void writeVertices(ByteBuffer outBuf, BlockPos relativeTo) {
+        float offsetX = origin.X() - relativeTo.X();
+        float offsetY = origin.Y() - relativeTo.Y();
+        float offsetZ = origin.Z() - relativeTo.Z();
+
+        for (int q=0; q<count; q++) {
+            Vector3f normal = Facing.float_vector()[facings[q]];
+            for (int corner=0; corner<4; corner++) {
+                int p = q * 12 + corner * 3;
+                int t = q * 8 + corner * 2;
+                VertexFormat.putVertex(outBuf, positions[p] + offsetX, positions[p+1] + offsetY, positions[p+2] + offsetZ,
+                        texcoords[t], texcoords[t+1], normal, layers[q]);
+            }
+        }
+    }
+}
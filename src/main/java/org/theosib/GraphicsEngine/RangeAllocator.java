@@ -0,0 +1,78 @@
+package org.theosib.GraphicsEngine;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * First-fit allocator of ranges within [0, capacity), with neighboring free ranges merged back together.
+ * Units are up to the caller. Nothing here touches GL, so it can be checked without a context.
+ */
+public class RangeAllocator {
+    private long capacity;
+
+    // Free ranges, start to length
+    private final TreeMap<Long, Long> free = new TreeMap<>();
+    private long used = 0;
+
+    public RangeAllocator(long capacity) {
+        this.capacity = capacity;
+        if (capacity > 0) free.put(0L, capacity);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getUsed() {
+        return used;
+    }
+
+    /**
+     * @return start of a free range of the given size, now in use, or -1 if there isn't one
+     */
+    public long allocate(long size) {
+        for (Map.Entry<Long, Long> e : free.entrySet()) {
+            long start = e.getKey();
+            long length = e.getValue();
+            if (length >= size) {
+                free.remove(start);
+                if (length > size) free.put(start + size, length - size);
+                used += size;
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return a range handed out by allocate
+     */
+    public void free(long start, long size) {
+        if (size <= 0) return;
+        used -= size;
+
+        Map.Entry<Long, Long> before = free.floorEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            start = before.getKey();
+            size += before.getValue();
+            free.remove(start);
+        }
+        Long afterLength = free.get(start + size);
+        if (afterLength != null) {
+            free.remove(start + size);
+            size += afterLength;
+        }
+        free.put(start, size);
+    }
+
+    /**
+     * Extend the space that ranges can come from
+     */
+    public void grow(long newCapacity) {
+        if (newCapacity <= capacity) return;
+        long oldCapacity = capacity;
+        capacity = newCapacity;
+        used += newCapacity - oldCapacity;
+        free(oldCapacity, newCapacity - oldCapacity);
+    }
+}
@@ -1,41 +1,82 @@
 package org.theosib.GraphicsEngine;
 
 import org.theosib.Adaptors.Disposable;
-import org.lwjgl.system.MemoryUtil;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
+/**
+ * Vertex data on its way to GL. The memory is leased from the shared NativeBufferPool, and can be given
+ * back with release once it's been uploaded, leaving the buffer empty until something is reserved again.
+ */
 public class RenderDataBuffer implements Disposable {
     FloatBuffer floats = null;
+    ByteBuffer floatBytes = null;
+    ByteBuffer bytes = null;
 
     public FloatBuffer getBuffer() {
         return floats;
     }
 
+    public ByteBuffer getByteBuffer() {
+        return bytes;
+    }
+
     public void flip() {
-        floats.flip();
+        if (floats != null) floats.flip();
+        if (bytes != null) bytes.flip();
     }
 
     public FloatBuffer reserveFloats(int num_floats) {
-        if (floats == null) {
-            floats = MemoryUtil.memAllocFloat(num_floats);
-            return floats;
-        }
-        if (floats.capacity() < num_floats) {
-            MemoryUtil.memFree(floats);
-            floats = MemoryUtil.memAllocFloat(num_floats);
-            return floats;
+        int num_bytes = num_floats * Float.BYTES;
+        if (floatBytes == null || floatBytes.capacity() < num_bytes) {
+            NativeBufferPool.getShared().release(floatBytes);
+            floatBytes = NativeBufferPool.getShared().acquire(num_bytes);
+            floatBytes.clear();
+            floats = floatBytes.asFloatBuffer();
         }
         floats.limit(num_floats);
         floats.position(0);
         return floats;
     }
 
+    /**
+     * Reserve space for raw bytes, such as interleaved vertices in VertexFormat. The buffer is in native
+     * byte order.
+     */
+    public ByteBuffer reserveBytes(int num_bytes) {
+        if (bytes == null || bytes.capacity() < num_bytes) {
+            NativeBufferPool.getShared().release(bytes);
+            bytes = NativeBufferPool.getShared().acquire(num_bytes);
+            return bytes;
+        }
+        bytes.limit(num_bytes);
+        bytes.position(0);
+        return bytes;
+    }
+
+    /**
+     * Take over a buffer leased from NativeBufferPool in place of the current byte buffer, which is
+     * given back
+     */
+    public void replaceBytes(ByteBuffer replacement) {
+        NativeBufferPool.getShared().release(bytes);
+        bytes = replacement;
+    }
+
+    /**
+     * Give the memory back to the pool
+     */
+    public void release() {
+        NativeBufferPool.getShared().release(floatBytes);
+        NativeBufferPool.getShared().release(bytes);
+        floatBytes = null;
+        floats = null;
+        bytes = null;
+    }
+
     @Override
     public void destroy() {
-        if (floats != null) {
-            MemoryUtil.memFree(floats);
-            floats = null;
-        }
+        release();
     }
 }
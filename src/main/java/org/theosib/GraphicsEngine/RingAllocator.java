@@ -0,0 +1,106 @@
+package org.theosib.GraphicsEngine;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bookkeeping for a ring buffer that is written front to back and freed a frame at a time. Allocations are
+ * contiguous, so one that doesn't fit before the end of the ring wraps around to the start. Nothing here
+ * touches GL, so the allocation pattern can be checked without a context.
+ */
+public class RingAllocator {
+    private final long capacity;
+    private final int alignment;
+
+    // Next byte to hand out, and the number of bytes not yet released, including any skipped at the end
+    // of the ring when an allocation wrapped
+    private long head = 0;
+    private long used = 0;
+
+    // Bytes taken by each frame that ended but hasn't been released yet, oldest first
+    private final ArrayDeque<Long> frames = new ArrayDeque<>();
+    private long frameUsed = 0;
+
+    // Number of allocations that didn't fit, for reporting
+    private long failedAllocations = 0;
+
+    /**
+     * @param capacity size of the ring in bytes
+     * @param alignment every allocation starts at a multiple of this
+     */
+    public RingAllocator(long capacity, int alignment) {
+        this.capacity = capacity;
+        this.alignment = alignment;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getUsed() {
+        return used;
+    }
+
+    public long getFailedAllocations() {
+        return failedAllocations;
+    }
+
+    /**
+     * Reserve space
+     * @param size number of bytes
+     * @return offset into the ring, or -1 if there isn't room until older frames are released
+     */
+    public long allocate(long size) {
+        long aligned = (size + alignment - 1) / alignment * alignment;
+        if (aligned > capacity) {
+            failedAllocations++;
+            return -1;
+        }
+
+        long start = head;
+        long skipped = 0;
+        if (start + aligned > capacity) {
+            // Doesn't fit before the end, so waste the rest and wrap around
+            skipped = capacity - start;
+            start = 0;
+        }
+        if (used + skipped + aligned > capacity) {
+            failedAllocations++;
+            return -1;
+        }
+
+        used += skipped + aligned;
+        frameUsed += skipped + aligned;
+        head = start + aligned;
+        if (head == capacity) head = 0;
+        return start;
+    }
+
+    /**
+     * Close the current frame. Everything allocated since the previous call is released together by
+     * releaseOldestFrame.
+     */
+    public void endFrame() {
+        frames.addLast(frameUsed);
+        frameUsed = 0;
+    }
+
+    /**
+     * @return number of frames ended but not yet released
+     */
+    public int pendingFrames() {
+        return frames.size();
+    }
+
+    /**
+     * Release the oldest unreleased frame, once the GPU is done reading what was written during it
+     */
+    public void releaseOldestFrame() {
+        Long freed = frames.pollFirst();
+        if (freed == null) return;
+
+        // Frames are released in the order they were allocated, so the freed bytes are always the ones
+        // just behind the live region
+        used -= freed;
+        if (used == 0) head = 0;
+    }
+}
@@ -110,6 +110,12 @@ public class Shader implements Disposable {
         return this;
     }
 
+    public Shader setVec3(String name, float x, float y, float z) {
+        bind();
+        GL33.glUniform3f(GL33.glGetUniformLocation(shaderProgram, name), x, y, z);
+        return this;
+    }
+
     public Shader setColor(String name, float[] components) {
         bind();
         GL33.glUniform4fv(GL33.glGetUniformLocation(shaderProgram, name), components);
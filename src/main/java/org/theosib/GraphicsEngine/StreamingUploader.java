@@ -0,0 +1,142 @@
+package org.theosib.GraphicsEngine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Uploads vertex data through one large staging buffer used as a ring. Each upload is copied into the
+ * next free range of the ring, which is mapped unsynchronized so the driver never has to wait for or
+ * reallocate it, and then copied on the GPU into its destination buffer. A fence at the end of each frame
+ * tells when that frame's part of the ring can be reused.
+ *
+ * OpenGL 3.3 has no persistent mapping, so the ring is mapped per upload on the GL thread, and mesh
+ * builders keep writing into their own RenderDataBuffers. Uploads too large for the ring, or made while
+ * it's full, fall back to glBufferSubData.
+ *
+ * All methods must be called from the GL thread.
+ */
+public class StreamingUploader {
+    public static final long DEFAULT_CAPACITY = 8L << 20;
+    static final int ALIGNMENT = 256;
+
+    private static StreamingUploader instance = null;
+
+    private final GLCalls gl;
+    private final RingAllocator ring;
+    private int stagingBuffer = 0;
+
+    // One fence per frame still held by the ring, oldest first
+    private final ArrayDeque<Long> fences = new ArrayDeque<>();
+
+    // Totals since creation, for reporting
+    private long bytesStaged = 0;
+    private long bytesDirect = 0;
+
+    public StreamingUploader(GLCalls gl, long capacity) {
+        this.gl = gl;
+        this.ring = new RingAllocator(capacity, ALIGNMENT);
+    }
+
+    /**
+     * Shared uploader used by GLArrayBuffer, created on first use
+     */
+    public static StreamingUploader get() {
+        if (instance == null) instance = new StreamingUploader(GLCalls.GL, DEFAULT_CAPACITY);
+        return instance;
+    }
+
+    /**
+     * Write data into part of a buffer
+     * @param dst destination buffer, which must already have storage covering the range
+     * @param dstOffset byte offset in the destination
+     * @param data bytes from position to limit, which are left unchanged
+     */
+    public void upload(int dst, long dstOffset, ByteBuffer data) {
+        int size = data.remaining();
+        if (size == 0) return;
+
+        reclaim();
+        long offset = ring.allocate(size);
+        if (offset < 0) {
+            gl.subData(dst, dstOffset, data);
+            bytesDirect += size;
+            return;
+        }
+
+        if (stagingBuffer == 0) {
+            stagingBuffer = gl.genBuffer();
+            gl.allocate(stagingBuffer, ring.getCapacity());
+        }
+
+        // A bulk put between direct buffers is a plain memory copy, and this way a fake GL can hand back
+        // heap buffers
+        ByteBuffer mapped = gl.mapRange(stagingBuffer, offset, size);
+        mapped.put(data.duplicate());
+        gl.unmap(stagingBuffer);
+        gl.copy(stagingBuffer, offset, dst, dstOffset, size);
+        bytesStaged += size;
+    }
+
+    /**
+     * Fence off everything staged this frame. Call once per frame, after the last draw.
+     */
+    public void endFrame() {
+        ring.endFrame();
+        fences.addLast(stagingBuffer == 0 ? 0L : gl.fence());
+    }
+
+    /**
+     * Release the ring space of every frame the GPU has finished with
+     */
+    private void reclaim() {
+        while (!fences.isEmpty()) {
+            long fence = fences.peekFirst();
+            if (fence != 0) {
+                if (!gl.isSignaled(fence)) return;
+                gl.deleteFence(fence);
+            }
+            fences.pollFirst();
+            ring.releaseOldestFrame();
+        }
+    }
+
+    public long getBytesStaged() {
+        return bytesStaged;
+    }
+
+    public long getBytesDirect() {
+        return bytesDirect;
+    }
+
+    public RingAllocator getRing() {
+        return ring;
+    }
+
+    public void destroy() {
+        for (long fence : fences) {
+            if (fence != 0) gl.deleteFence(fence);
+        }
+        fences.clear();
+        if (stagingBuffer != 0) {
+            gl.deleteBuffer(stagingBuffer);
+            stagingBuffer = 0;
+        }
+    }
+
+    /**
+     * Free the shared uploader, if one was created
+     */
+    public static void destroyShared() {
+        if (instance != null) {
+            instance.destroy();
+            instance = null;
+        }
+    }
+
+    /**
+     * Fence the shared uploader's frame, if it has been used
+     */
+    public static void endSharedFrame() {
+        if (instance != null) instance.endFrame();
+    }
+}
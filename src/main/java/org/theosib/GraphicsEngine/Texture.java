@@ -11,6 +11,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * A block texture. Textures are stored as layers of the shared TextureArray, one per texture index, so
+ * binding any of them binds the whole array.
+ */
 public class Texture implements Disposable {
     private static Map<String,Texture> library = new HashMap<>();
     private static ArrayList<Texture> texArray = new ArrayList<>();
@@ -57,23 +61,35 @@ public class Texture implements Disposable {
         String fname = name + ".png";
         String path = FileLocator.computePath(FileLocator.FileCategory.Textures, fname);
         imageBuf = new STBImageBuffer(path);
+
+        TextureArray.getShared().setLayer(index, imageBuf);
+        this.translucent = imageBuf.numComponents() > 3;
+        this.width = imageBuf.getWidth();
+        this.height = imageBuf.getHeight();
+
+        imageBuf.destroy();
+        imageBuf = null;
     }
 
-    private int texID = 0;
     private int width = 0;
     private int height = 0;
     private boolean destroyed = false;
 
     public int getWidth() {
-        if (texID == 0) loadGLTexture();
         return width;
     }
 
     public int getHeight() {
-        if (texID == 0) loadGLTexture();
         return height;
     }
 
+    /**
+     * Layer of the shared TextureArray holding this texture, to be written into each vertex
+     */
+    public int getLayer() {
+        return index;
+    }
+
     public boolean isValid() {
         return !destroyed;
     }
@@ -82,48 +98,21 @@ public class Texture implements Disposable {
         return texArray.get(index);
     }
 
-    private void loadGLTexture() {
-        int texID = GL33.glGenTextures();
-        GL33.glBindTexture(GL33.GL_TEXTURE_2D, texID);
-        GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_MAG_FILTER, GL33.GL_NEAREST);
-        GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_MIN_FILTER, GL33.GL_LINEAR);
-        GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_WRAP_S, GL33.GL_CLAMP_TO_EDGE);
-        GL33.glTexParameteri(GL33.GL_TEXTURE_2D, GL33.GL_TEXTURE_WRAP_T, GL33.GL_CLAMP_TO_EDGE);
-
-        int format;
-        if (imageBuf.numComponents() == 3) {
-            if ((imageBuf.getWidth() & 3) != 0) {
-                GL33.glPixelStorei(GL33.GL_UNPACK_ALIGNMENT, 2 - (imageBuf.getWidth() & 1));
-            }
-            format = GL33.GL_RGB;
-        } else {
-            imageBuf.premultiplyAlpha();
-            format = GL33.GL_RGBA;
-        }
-
-        GL33.glTexImage2D(GL33.GL_TEXTURE_2D, 0, format, imageBuf.getWidth(), imageBuf.getHeight(), 0, format, GL33.GL_UNSIGNED_BYTE, imageBuf.getByteBuffer());
-        GL33.glBindTexture(GL33.GL_TEXTURE_2D, 0);
-
-        this.translucent = imageBuf.numComponents() > 3;
-        this.texID = texID;
-        this.width = imageBuf.getWidth();
-        this.height = imageBuf.getHeight();
-
-        imageBuf.destroy();
-        imageBuf = null;
-    }
-
     void bind() {
-        if (texID == 0) loadGLTexture();
-
-        GL33.glBindTexture(GL33.GL_TEXTURE_2D, texID);
+        bindArray();
         if (translucent) GL33.glEnable(GL33.GL_BLEND);
-        GL33.glEnable(GL33.GL_TEXTURE_2D);
         GL33.glBlendFunc(GL33.GL_ONE, GL33.GL_ONE_MINUS_SRC_ALPHA);
     }
 
+    /**
+     * Bind the array holding every texture, for geometry that mixes several
+     */
+    static void bindArray() {
+        TextureArray.getShared().bind();
+    }
+
     static void unbind() {
-        GL33.glBindTexture(GL33.GL_TEXTURE_2D, 0);
+        TextureArray.unbind();
     }
 
     @Override
@@ -132,9 +121,7 @@ public class Texture implements Disposable {
             imageBuf.destroy();
             imageBuf = null;
         }
-        if (texID == 0) return;
-        GL33.glDeleteTextures(texID);
-        texID = 0;
+        if (destroyed) return;
         library.remove(name);
         texArray.set(index, null);
         destroyed = true;
@@ -0,0 +1,180 @@
+package org.theosib.GraphicsEngine;
+
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.system.MemoryUtil;
+import org.theosib.Images.ImageBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * All block textures as layers of one GL_TEXTURE_2D_ARRAY, so that geometry using different textures can
+ * be drawn together. Each vertex carries the layer of its texture (see VertexFormat), and texture
+ * coordinates are the same as for a standalone texture. Layers are separate images, so coordinates past 1
+ * still tile instead of running into a neighbor the way they would in a flat atlas.
+ *
+ * Every layer is the size of the largest texture, and smaller ones are scaled up to it. Packing is done
+ * on the CPU from the ImageBuffer data, so it can be checked without a context. The GL texture is
+ * (re)built from the packed layers on the GL thread whenever a texture was added since the last bind.
+ */
+public class TextureArray {
+    // Layers are stored in a vertex byte
+    public static final int MAX_LAYERS = 256;
+
+    private static final TextureArray shared = new TextureArray();
+
+    // RGBA pixels of each layer at the texture's own size, with alpha premultiplied, or null if unused
+    private final ArrayList<byte[]> pixels = new ArrayList<>();
+    private final ArrayList<int[]> sizes = new ArrayList<>();
+
+    private int texID = 0;
+    private boolean dirty = false;
+
+    public static TextureArray getShared() {
+        return shared;
+    }
+
+    public synchronized int numLayers() {
+        return pixels.size();
+    }
+
+    /**
+     * Copy an image into a layer, converting it to RGBA
+     */
+    public synchronized void setLayer(int layer, ImageBuffer image) {
+        if (layer >= MAX_LAYERS) throw new RuntimeException("Too many textures for texture array: " + layer);
+        while (pixels.size() <= layer) {
+            pixels.add(null);
+            sizes.add(null);
+        }
+        pixels.set(layer, toRGBA(image));
+        sizes.set(layer, new int[] {image.getWidth(), image.getHeight()});
+        dirty = true;
+    }
+
+    /**
+     * Size of every layer, which is the largest width and height of any texture
+     * @return width and height
+     */
+    public synchronized int[] layerSize() {
+        int w = 1, h = 1;
+        for (int[] size : sizes) {
+            if (size == null) continue;
+            w = Math.max(w, size[0]);
+            h = Math.max(h, size[1]);
+        }
+        return new int[] {w, h};
+    }
+
+    /**
+     * Convert an image to premultiplied RGBA
+     */
+    static byte[] toRGBA(ImageBuffer image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int comp = image.numComponents();
+        int stride = image.getStride();
+        ByteBuffer src = image.getByteBuffer();
+        byte[] out = new byte[w * h * 4];
+
+        for (int y=0; y<h; y++) {
+            for (int x=0; x<w; x++) {
+                int i = y * stride + x * comp;
+                int o = (y * w + x) * 4;
+                int r = src.get(i) & 0xFF;
+                int g = comp > 1 ? src.get(i + 1) & 0xFF : r;
+                int b = comp > 2 ? src.get(i + 2) & 0xFF : r;
+                int a = comp > 3 ? src.get(i + 3) & 0xFF : 255;
+                if (a != 255) {
+                    float alpha = a / 255.0f;
+                    r = Math.round(r * alpha);
+                    g = Math.round(g * alpha);
+                    b = Math.round(b * alpha);
+                }
+                out[o] = (byte)r;
+                out[o + 1] = (byte)g;
+                out[o + 2] = (byte)b;
+                out[o + 3] = (byte)a;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Scale RGBA pixels to a different size by picking the nearest source pixel
+     * @param dst receives dw*dh*4 bytes starting at its position, which is advanced past them
+     */
+    static void resample(byte[] src, int sw, int sh, ByteBuffer dst, int dw, int dh) {
+        for (int y=0; y<dh; y++) {
+            int sy = y * sh / dh;
+            for (int x=0; x<dw; x++) {
+                int sx = x * sw / dw;
+                dst.put(src, (sy * sw + sx) * 4, 4);
+            }
+        }
+    }
+
+    /**
+     * Pack every layer at the common layer size, one after another, as glTexImage3D expects them
+     * @param out receives width*height*4 bytes per layer; unused layers are left transparent
+     */
+    public synchronized void pack(ByteBuffer out, int width, int height) {
+        int layerBytes = width * height * 4;
+        for (int layer=0; layer<pixels.size(); layer++) {
+            byte[] p = pixels.get(layer);
+            int start = out.position();
+            if (p == null) {
+                for (int i=0; i<layerBytes; i++) out.put((byte)0);
+            } else {
+                int[] size = sizes.get(layer);
+                resample(p, size[0], size[1], out, width, height);
+            }
+            out.position(start + layerBytes);
+        }
+    }
+
+    /**
+     * Bind the array to the active texture unit, uploading it first if any layer changed
+     */
+    synchronized void bind() {
+        if (dirty || texID == 0) upload();
+        GL33.glBindTexture(GL33.GL_TEXTURE_2D_ARRAY, texID);
+    }
+
+    static void unbind() {
+        GL33.glBindTexture(GL33.GL_TEXTURE_2D_ARRAY, 0);
+    }
+
+    private void upload() {
+        dirty = false;
+        if (texID == 0) texID = GL33.glGenTextures();
+
+        int[] size = layerSize();
+        int layers = Math.max(pixels.size(), 1);
+        ByteBuffer buf = MemoryUtil.memAlloc(size[0] * size[1] * 4 * layers);
+        MemoryUtil.memSet(buf, 0);
+        pack(buf, size[0], size[1]);
+        buf.position(0);
+
+        GL33.glBindTexture(GL33.GL_TEXTURE_2D_ARRAY, texID);
+        GL33.glTexParameteri(GL33.GL_TEXTURE_2D_ARRAY, GL33.GL_TEXTURE_MAG_FILTER, GL33.GL_NEAREST);
+        GL33.glTexParameteri(GL33.GL_TEXTURE_2D_ARRAY, GL33.GL_TEXTURE_MIN_FILTER, GL33.GL_LINEAR);
+        // Repeat so that greedy-meshed faces spanning several blocks can tile the texture
+        GL33.glTexParameteri(GL33.GL_TEXTURE_2D_ARRAY, GL33.GL_TEXTURE_WRAP_S, GL33.GL_REPEAT);
+        GL33.glTexParameteri(GL33.GL_TEXTURE_2D_ARRAY, GL33.GL_TEXTURE_WRAP_T, GL33.GL_REPEAT);
+        GL33.glPixelStorei(GL33.GL_UNPACK_ALIGNMENT, 4);
+        GL33.glTexImage3D(GL33.GL_TEXTURE_2D_ARRAY, 0, GL33.GL_RGBA, size[0], size[1], layers, 0,
+                GL33.GL_RGBA, GL33.GL_UNSIGNED_BYTE, buf);
+        GL33.glBindTexture(GL33.GL_TEXTURE_2D_ARRAY, 0);
+
+        MemoryUtil.memFree(buf);
+    }
+
+    public synchronized void destroy() {
+        if (texID != 0) {
+            GL33.glDeleteTextures(texID);
+            texID = 0;
+        }
+        dirty = true;
+    }
+}
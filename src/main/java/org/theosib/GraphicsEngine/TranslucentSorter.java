@@ -0,0 +1,150 @@
+package org.theosib.GraphicsEngine;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Orders the quads of one translucent mesh from far to near, so they blend correctly when drawn in that
+ * order. Quads are sorted by the squared distance from the camera to their centers with an LSD radix
+ * sort on the float bits, which order the same way as the values since distances are never negative.
+ *
+ * Sorting is skipped until the camera has moved far enough from where the last sort was done, and a sort
+ * that comes out the same as before reports no change, so the index buffer is only rewritten when the
+ * order actually changed. Nothing here touches GL, so it can be checked without a context.
+ */
+public class TranslucentSorter {
+    // Camera movement, in blocks, before the quads are sorted again
+    static final float RESORT_DISTANCE = 0.5f;
+
+    private int numQuads = 0;
+    private float[] centers = new float[3 * 64];
+    private int[] keys = new int[64];
+    private int[] order = new int[64];
+    private int[] tmpKeys = new int[64];
+    private int[] tmpOrder = new int[64];
+    private int[] prevOrder = new int[64];
+    private final int[] counts = new int[256];
+
+    private boolean sorted = false;
+    private float lastX, lastY, lastZ;
+
+    public int numQuads() {
+        return numQuads;
+    }
+
+    /**
+     * Take the quad centers from packed vertices, four per quad, positioned relative to the mesh origin.
+     * The next call to sort always sorts.
+     * @param buf vertices in VertexFormat layout, starting at index 0
+     * @param quads number of quads
+     */
+    public void setQuads(ByteBuffer buf, int quads) {
+        ensureCapacity(quads);
+        numQuads = quads;
+        for (int q=0; q<quads; q++) {
+            float x = 0, y = 0, z = 0;
+            for (int c=0; c<QuadIndexBuffer.VERTICES_PER_QUAD; c++) {
+                int base = (q * QuadIndexBuffer.VERTICES_PER_QUAD + c) * VertexFormat.STRIDE + VertexFormat.POSITION_OFFSET;
+                x += buf.getShort(base);
+                y += buf.getShort(base + 2);
+                z += buf.getShort(base + 4);
+            }
+            float scale = 1.0f / (QuadIndexBuffer.VERTICES_PER_QUAD * VertexFormat.POSITION_SCALE);
+            centers[q*3] = x * scale;
+            centers[q*3+1] = y * scale;
+            centers[q*3+2] = z * scale;
+            order[q] = q;
+        }
+        sorted = false;
+    }
+
+    private void ensureCapacity(int quads) {
+        if (keys.length >= quads) return;
+        int n = Math.max(quads, keys.length * 2);
+        centers = new float[3 * n];
+        keys = new int[n];
+        order = new int[n];
+        tmpKeys = new int[n];
+        tmpOrder = new int[n];
+        prevOrder = new int[n];
+    }
+
+    /**
+     * Sort the quads for a camera position, if it moved far enough since the last sort
+     * @param x camera position relative to the mesh origin
+     * @return true if the order changed
+     */
+    public boolean sort(float x, float y, float z) {
+        if (sorted) {
+            float dx = x - lastX, dy = y - lastY, dz = z - lastZ;
+            if (dx*dx + dy*dy + dz*dz < RESORT_DISTANCE * RESORT_DISTANCE) return false;
+        }
+        lastX = x;
+        lastY = y;
+        lastZ = z;
+        boolean first = !sorted;
+        sorted = true;
+
+        // Keys are taken in the current order, so that a stable sort of an unchanged scene keeps it
+        for (int i=0; i<numQuads; i++) {
+            int q = order[i];
+            float dx = centers[q*3] - x, dy = centers[q*3+1] - y, dz = centers[q*3+2] - z;
+            // Inverted so that ascending order is far to near
+            keys[i] = ~Float.floatToRawIntBits(dx*dx + dy*dy + dz*dz);
+        }
+
+        boolean changed = radixSort();
+        return changed || first;
+    }
+
+    /**
+     * Stable sort of order by keys, treating them as unsigned
+     * @return true if any element moved
+     */
+    private boolean radixSort() {
+        System.arraycopy(order, 0, prevOrder, 0, numQuads);
+        int[] k = keys, o = order, tk = tmpKeys, to = tmpOrder;
+        for (int shift=0; shift<32; shift+=8) {
+            java.util.Arrays.fill(counts, 0);
+            for (int i=0; i<numQuads; i++) counts[(k[i] >>> shift) & 255]++;
+            // Every key has the same byte, so this pass wouldn't move anything
+            if (counts[(k[0] >>> shift) & 255] == numQuads) continue;
+
+            int sum = 0;
+            for (int b=0; b<256; b++) {
+                int c = counts[b];
+                counts[b] = sum;
+                sum += c;
+            }
+            for (int i=0; i<numQuads; i++) {
+                int dst = counts[(k[i] >>> shift) & 255]++;
+                tk[dst] = k[i];
+                to[dst] = o[i];
+            }
+            int[] t = k; k = tk; tk = t;
+            t = o; o = to; to = t;
+        }
+
+        boolean changed = false;
+        for (int i=0; i<numQuads && !changed; i++) changed = o[i] != prevOrder[i];
+
+        keys = k;
+        tmpKeys = tk;
+        order = o;
+        tmpOrder = to;
+        return changed;
+    }
+
+    /**
+     * Write element indices for the quads in sorted order
+     */
+    public void writeIndices(IntBuffer out) {
+        for (int i=0; i<numQuads; i++) {
+            QuadIndexBuffer.fillIndices(out, order[i], 1);
+        }
+    }
+
+    public int getOrder(int i) {
+        return order[i];
+    }
+}
@@ -0,0 +1,125 @@
+package org.theosib.GraphicsEngine;
+
+import org.lwjgl.opengl.GL33;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One large vertex buffer shared by many MeshRenderers, each holding a range of it, so that all of them
+ * can be drawn with the same VAO in a single multi-draw call. Ranges are counted in quads. When the
+ * buffer runs out of room, it's replaced by one twice as large and the contents are copied over on the
+ * GPU.
+ *
+ * All methods except the constructor must be called from the GL thread.
+ */
+public class VertexArena {
+    static final int INITIAL_QUADS = 1 << 16;
+
+    private final RangeAllocator ranges;
+    private int VBO = 0;
+    private int VAO = 0;
+
+    public VertexArena() {
+        ranges = new RangeAllocator(INITIAL_QUADS);
+    }
+
+    private static int bytesPerQuad() {
+        return QuadIndexBuffer.VERTICES_PER_QUAD * VertexFormat.STRIDE;
+    }
+
+    /**
+     * Reserve a range, growing the buffer if necessary
+     * @return first quad of the range
+     */
+    public int allocate(int quads) {
+        long start = ranges.allocate(quads);
+        while (start < 0) {
+            grow(Math.max(ranges.getCapacity() * 2, ranges.getCapacity() + quads));
+            start = ranges.allocate(quads);
+        }
+        return (int)start;
+    }
+
+    public void free(int start, int quads) {
+        ranges.free(start, quads);
+    }
+
+    /**
+     * Write vertices into the buffer
+     * @param byteOffset where to write them
+     * @param data bytes from position to limit
+     */
+    public void upload(long byteOffset, ByteBuffer data) {
+        createBuffer();
+        StreamingUploader.get().upload(VBO, byteOffset, data);
+    }
+
+    /**
+     * Bind the VAO, along with an index buffer long enough for runs of up to numQuads quads
+     */
+    public void bind(int numQuads) {
+        createBuffer();
+        GL33.glBindVertexArray(VAO);
+        QuadIndexBuffer.bind(numQuads);
+    }
+
+    public static void unbind() {
+        GL33.glBindVertexArray(0);
+    }
+
+    public long getCapacityQuads() {
+        return ranges.getCapacity();
+    }
+
+    public long getUsedQuads() {
+        return ranges.getUsed();
+    }
+
+    private void createBuffer() {
+        if (VBO != 0) return;
+        VBO = GL33.glGenBuffers();
+        GL33.glBindBuffer(GL33.GL_ARRAY_BUFFER, VBO);
+        GL33.glBufferData(GL33.GL_ARRAY_BUFFER, ranges.getCapacity() * bytesPerQuad(), GL33.GL_DYNAMIC_DRAW);
+        pointVAO();
+    }
+
+    private void grow(long newQuads) {
+        if (VBO != 0) {
+            int bigger = GL33.glGenBuffers();
+            GL33.glBindBuffer(GL33.GL_COPY_WRITE_BUFFER, bigger);
+            GL33.glBufferData(GL33.GL_COPY_WRITE_BUFFER, newQuads * bytesPerQuad(), GL33.GL_DYNAMIC_DRAW);
+            GL33.glBindBuffer(GL33.GL_COPY_READ_BUFFER, VBO);
+            GL33.glCopyBufferSubData(GL33.GL_COPY_READ_BUFFER, GL33.GL_COPY_WRITE_BUFFER, 0, 0,
+                    ranges.getCapacity() * bytesPerQuad());
+            GL33.glBindBuffer(GL33.GL_COPY_READ_BUFFER, 0);
+            GL33.glBindBuffer(GL33.GL_COPY_WRITE_BUFFER, 0);
+            GL33.glDeleteBuffers(VBO);
+            VBO = bigger;
+            GL33.glBindBuffer(GL33.GL_ARRAY_BUFFER, VBO);
+            pointVAO();
+        }
+        ranges.grow(newQuads);
+    }
+
+    /**
+     * Point the VAO's attributes at the buffer bound to GL_ARRAY_BUFFER
+     */
+    private void pointVAO() {
+        if (VAO == 0) VAO = GL33.glGenVertexArrays();
+        GL33.glBindVertexArray(VAO);
+        VertexFormat.setupAttributes();
+        GL33.glBindVertexArray(0);
+        GL33.glBindBuffer(GL33.GL_ARRAY_BUFFER, 0);
+    }
+
+    public void destroy() {
+        if (VBO != 0) {
+            GL33.glDeleteBuffers(VBO);
+            VBO = 0;
+        }
+        if (VAO != 0) {
+            GL33.glDeleteVertexArrays(VAO);
+            VAO = 0;
+        }
+    }
+}
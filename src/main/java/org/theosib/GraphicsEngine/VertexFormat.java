@@ -0,0 +1,140 @@
+package org.theosib.GraphicsEngine;
+
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import org.lwjgl.opengl.GL33;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packed, interleaved vertex layout used by MeshRenderer. Each vertex is 16 bytes:
+ *
+ *   offset 0:  short x, y, z        position in 1/256 block units, relative to the renderer origin
+ *   offset 6:  ushort slot          BatchRenderer origin slot, or 0 when drawn on its own
+ *   offset 8:  short u, v           texture coordinate in 1/1024 units (tiled coordinates may exceed 1)
+ *   offset 12: byte nx, ny, nz      normal as signed normalized bytes
+ *   offset 15: ubyte layer          TextureArray layer of the texture
+ *
+ * Positions therefore have to stay within 128 blocks of the origin, which is the chunk corner for
+ * chunk meshes. The shader undoes the fixed-point scaling; see block_vertex.glsl.
+ *
+ * That's half the 32 bytes of the old float vertex, not a quarter: entity and custom block meshes need
+ * arbitrary normals, and greedy quads need texcoords past 1, so neither fits in a face index or a
+ * normalized short.
+ */
+public class VertexFormat {
+    public static final int STRIDE = 16;
+    public static final int POSITION_OFFSET = 0;
+    public static final int TEXCOORD_OFFSET = 8;
+    public static final int SLOT_OFFSET = 6;
+    public static final int NORMAL_OFFSET = 12;
+    public static final int LAYER_OFFSET = 15;
+
+    public static final float POSITION_SCALE = 256.0f;
+    public static final float TEXCOORD_SCALE = 1024.0f;
+    public static final float NORMAL_SCALE = 127.0f;
+
+    // Attribute locations, matching the block shaders
+    public static final int POSITION_ATTRIBUTE = 0;
+    public static final int NORMAL_ATTRIBUTE = 1;
+    public static final int TEXCOORD_ATTRIBUTE = 2;
+    public static final int SLOT_ATTRIBUTE = 3;
+    public static final int LAYER_ATTRIBUTE = 4;
+
+    private VertexFormat() {}
+
+    private static short toFixed(float value, float scale) {
+        int fixed = Math.round(value * scale);
+        if (fixed > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (fixed < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short)fixed;
+    }
+
+    /**
+     * Append one vertex at the buffer's current position
+     */
+    public static void putVertex(ByteBuffer out, float x, float y, float z, float u, float v, float nx, float ny, float nz) {
+        putVertex(out, x, y, z, u, v, nx, ny, nz, 0);
+    }
+
+    /**
+     * Append one vertex at the buffer's current position
+     * @param layer TextureArray layer to sample
+     */
+    public static void putVertex(ByteBuffer out, float x, float y, float z, float u, float v, float nx, float ny, float nz, int layer) {
+        out.putShort(toFixed(x, POSITION_SCALE));
+        out.putShort(toFixed(y, POSITION_SCALE));
+        out.putShort(toFixed(z, POSITION_SCALE));
+        out.putShort((short)0);
+        out.putShort(toFixed(u, TEXCOORD_SCALE));
+        out.putShort(toFixed(v, TEXCOORD_SCALE));
+        out.put((byte)Math.round(nx * NORMAL_SCALE));
+        out.put((byte)Math.round(ny * NORMAL_SCALE));
+        out.put((byte)Math.round(nz * NORMAL_SCALE));
+        out.put((byte)layer);
+    }
+
+    public static void putVertex(ByteBuffer out, float x, float y, float z, float u, float v, Vector3fc normal) {
+        putVertex(out, x, y, z, u, v, normal.x(), normal.y(), normal.z(), 0);
+    }
+
+    public static void putVertex(ByteBuffer out, float x, float y, float z, float u, float v, Vector3fc normal, int layer) {
+        putVertex(out, x, y, z, u, v, normal.x(), normal.y(), normal.z(), layer);
+    }
+
+    /**
+     * Stamp an origin slot into a run of vertices already in the buffer
+     * @param first index of the first vertex
+     * @param count number of vertices
+     */
+    public static void setSlot(ByteBuffer buf, int first, int count, int slot) {
+        short s = (short)slot;
+        for (int i=0; i<count; i++) {
+            buf.putShort((first + i) * STRIDE + SLOT_OFFSET, s);
+        }
+    }
+
+    public static Vector3f decodePosition(ByteBuffer buf, int vertex, Vector3f out) {
+        int base = vertex * STRIDE + POSITION_OFFSET;
+        return out.set(buf.getShort(base) / POSITION_SCALE,
+                buf.getShort(base + 2) / POSITION_SCALE,
+                buf.getShort(base + 4) / POSITION_SCALE);
+    }
+
+    public static int decodeSlot(ByteBuffer buf, int vertex) {
+        return buf.getShort(vertex * STRIDE + SLOT_OFFSET) & 0xFFFF;
+    }
+
+    public static int decodeLayer(ByteBuffer buf, int vertex) {
+        return buf.get(vertex * STRIDE + LAYER_OFFSET) & 0xFF;
+    }
+
+    public static Vector2f decodeTexCoord(ByteBuffer buf, int vertex, Vector2f out) {
+        int base = vertex * STRIDE + TEXCOORD_OFFSET;
+        return out.set(buf.getShort(base) / TEXCOORD_SCALE, buf.getShort(base + 2) / TEXCOORD_SCALE);
+    }
+
+    public static Vector3f decodeNormal(ByteBuffer buf, int vertex, Vector3f out) {
+        int base = vertex * STRIDE + NORMAL_OFFSET;
+        return out.set(Math.max(buf.get(base) / NORMAL_SCALE, -1.0f),
+                Math.max(buf.get(base + 1) / NORMAL_SCALE, -1.0f),
+                Math.max(buf.get(base + 2) / NORMAL_SCALE, -1.0f));
+    }
+
+    /**
+     * Point the vertex attributes at the currently bound GL_ARRAY_BUFFER
+     */
+    static void setupAttributes() {
+        GL33.glVertexAttribPointer(POSITION_ATTRIBUTE, 3, GL33.GL_SHORT, false, STRIDE, POSITION_OFFSET);
+        GL33.glEnableVertexAttribArray(POSITION_ATTRIBUTE);
+        GL33.glVertexAttribPointer(TEXCOORD_ATTRIBUTE, 2, GL33.GL_SHORT, false, STRIDE, TEXCOORD_OFFSET);
+        GL33.glEnableVertexAttribArray(TEXCOORD_ATTRIBUTE);
+        GL33.glVertexAttribPointer(NORMAL_ATTRIBUTE, 3, GL33.GL_BYTE, true, STRIDE, NORMAL_OFFSET);
+        GL33.glEnableVertexAttribArray(NORMAL_ATTRIBUTE);
+        GL33.glVertexAttribIPointer(SLOT_ATTRIBUTE, 1, GL33.GL_UNSIGNED_SHORT, STRIDE, SLOT_OFFSET);
+        GL33.glEnableVertexAttribArray(SLOT_ATTRIBUTE);
+        GL33.glVertexAttribIPointer(LAYER_ATTRIBUTE, 1, GL33.GL_UNSIGNED_BYTE, STRIDE, LAYER_OFFSET);
+        GL33.glEnableVertexAttribArray(LAYER_ATTRIBUTE);
+    }
+}
@@ -19,6 +19,8 @@ object Air extends BlockImpl {
    */
   override def getDefaultCollision(offset: Vector3dc): CollisionShape = collision
 
+  override def collisionMesh: Mesh = mesh
+
   /**
    * @return Name of the type of block
    */
@@ -19,6 +19,8 @@ class StaticCubeBlock(val name: String) extends BlockImpl {
    */
   override def getDefaultCollision(offset: Vector3dc): CollisionShape = default_mesh.getCollision(offset)
 
+  override def collisionMesh: Mesh = default_mesh
+
   /**
    * @return Name of the type of block
    */
@@ -0,0 +1,39 @@
+package org.theosib.Geometry
+
+/**
+ * Growable list of axis-aligned boxes stored as plain doubles, six per box (min x,y,z then max x,y,z),
+ * for collision work that would otherwise allocate an AxisAlignedBox per box. Cleared and refilled
+ * rather than reallocated.
+ */
+class BoxBuffer(initialBoxes: Int = 64) {
+  private var data = new Array[Double](initialBoxes * 6)
+  private var count = 0
+
+  def size: Int = count
+
+  def clear(): Unit = count = 0
+
+  def add(minX: Double, minY: Double, minZ: Double, maxX: Double, maxY: Double, maxZ: Double): Unit = {
+    if ((count + 1) * 6 > data.length) data = java.util.Arrays.copyOf(data, data.length * 2)
+    val i = count * 6
+    data(i) = minX
+    data(i + 1) = minY
+    data(i + 2) = minZ
+    data(i + 3) = maxX
+    data(i + 4) = maxY
+    data(i + 5) = maxZ
+    count += 1
+  }
+
+  def add(box: AxisAlignedBox): Unit = add(box.neg.x, box.neg.y, box.neg.z, box.pos.x, box.pos.y, box.pos.z)
+
+  def add(box: AxisAlignedBox, dx: Double, dy: Double, dz: Double): Unit =
+    add(box.neg.x + dx, box.neg.y + dy, box.neg.z + dz, box.pos.x + dx, box.pos.y + dy, box.pos.z + dz)
+
+  @inline def minX(i: Int): Double = data(i * 6)
+  @inline def minY(i: Int): Double = data(i * 6 + 1)
+  @inline def minZ(i: Int): Double = data(i * 6 + 2)
+  @inline def maxX(i: Int): Double = data(i * 6 + 3)
+  @inline def maxY(i: Int): Double = data(i * 6 + 4)
+  @inline def maxZ(i: Int): Double = data(i * 6 + 5)
+}
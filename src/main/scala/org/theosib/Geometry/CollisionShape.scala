@@ -35,6 +35,9 @@ class CollisionShape(val collision: SortedArrayBuffer[AxisAlignedBox]) extends I
   def getBuffer = collision
   def getArray = collision.getArray
 
+  def numBoxes: Int = collision.length
+  def getBox(i: Int): AxisAlignedBox = collision.getArray(i)
+
   def sort(): CollisionShape = {
     collision.sort()
     this
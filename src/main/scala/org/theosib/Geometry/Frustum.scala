@@ -0,0 +1,82 @@
+package org.theosib.Geometry
+
+import org.joml.{Matrix4f, Matrix4fc, Vector4f}
+
+/**
+ * The six clipping planes of the view frustum, extracted once per frame from the projection and view
+ * matrices so that each test is only a few multiply-adds per plane.
+ * http://web.archive.org/web/20120531231005/http://crazyjoke.free.fr/doc/3D/plane%20extraction.pdf
+ *
+ * Plane coefficients are kept in one flat array per component so the box test runs over plain floats.
+ * Coordinates are in the space of the view matrix, which is relative to the view center.
+ */
+class Frustum {
+  // Plane i holds points with nx(i)*x + ny(i)*y + nz(i)*z + d(i) >= 0 on its inside
+  private val nx = new Array[Float](6)
+  private val ny = new Array[Float](6)
+  private val nz = new Array[Float](6)
+  private val d = new Array[Float](6)
+
+  private val xform = new Matrix4f()
+  private val row = new Vector4f()
+  private val row4 = new Vector4f()
+
+  /**
+   * Extract the planes
+   * @param projection projection matrix
+   * @param view view matrix, relative to the view center
+   * @return this
+   */
+  def set(projection: Matrix4fc, view: Matrix4fc): Frustum = {
+    projection.mul(view, xform)
+    xform.getRow(3, row4)
+    var axis = 0
+    while (axis < 3) {
+      xform.getRow(axis, row)
+      setPlane(axis * 2, row4.x + row.x, row4.y + row.y, row4.z + row.z, row4.w + row.w)
+      setPlane(axis * 2 + 1, row4.x - row.x, row4.y - row.y, row4.z - row.z, row4.w - row.w)
+      axis += 1
+    }
+    this
+  }
+
+  private def setPlane(i: Int, a: Float, b: Float, c: Float, e: Float): Unit = {
+    nx(i) = a
+    ny(i) = b
+    nz(i) = c
+    d(i) = e
+  }
+
+  /**
+   * Classify an axis-aligned box against the frustum
+   * @return Frustum.Outside, Frustum.Intersect, or Frustum.Inside
+   */
+  def testBox(minX: Float, minY: Float, minZ: Float, maxX: Float, maxY: Float, maxZ: Float): Int = {
+    var result = Frustum.Inside
+    var i = 0
+    while (i < 6) {
+      val a = nx(i)
+      val b = ny(i)
+      val c = nz(i)
+      // The corner furthest along the plane normal is the last to leave the inside
+      val far = a * (if (a >= 0) maxX else minX) + b * (if (b >= 0) maxY else minY) +
+        c * (if (c >= 0) maxZ else minZ) + d(i)
+      if (far < 0) return Frustum.Outside
+      val near = a * (if (a >= 0) minX else maxX) + b * (if (b >= 0) minY else maxY) +
+        c * (if (c >= 0) minZ else maxZ) + d(i)
+      if (near < 0) result = Frustum.Intersect
+      i += 1
+    }
+    result
+  }
+
+  def intersectsBox(minX: Float, minY: Float, minZ: Float, maxX: Float, maxY: Float, maxZ: Float): Boolean = {
+    testBox(minX, minY, minZ, maxX, maxY, maxZ) != Frustum.Outside
+  }
+}
+
+object Frustum {
+  val Outside = 0
+  val Intersect = 1
+  val Inside = 2
+}
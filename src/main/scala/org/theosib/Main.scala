@@ -4,14 +4,14 @@ package org.theosib
 //import org.apache.logging.log4j.LogManager
 import org.theosib.Adaptors.{RenderAgent, Window}
 import org.theosib.Camera.{CameraController, CameraModel}
-import org.theosib.GraphicsEngine.{Face, FontAtlas, GLWindow, Mesh, MeshRenderer, Shader, Texture}
+import org.theosib.GraphicsEngine.{Face, FontAtlas, GLWindow, Mesh, MeshRenderer, NativeBufferPool, Shader, Texture}
 import org.theosib.UIElements.Crosshair
 import org.theosib.Utils.{Disposer, FileLocator, WindowDimensions}
 import org.joml.Vector3d
 import org.theosib.Noise.PerlinNoise
 import org.theosib.Parser.ConfigParser
 import org.theosib.Position.BlockPos
-import org.theosib.WorkerThreads.{UpdateRenderThread, UpdateRepaintThread}
+import org.theosib.WorkerThreads.{ChunkSaveThread, UpdateRenderThread, UpdateRepaintThread}
 import org.theosib.WorldElements.{World, WorldView}
 
 object Main {
@@ -25,6 +25,7 @@ object Main {
   var block : TestBlock = null
   var updaterThread : UpdateRepaintThread = null
   var renderThread : UpdateRenderThread = null
+  var saveThread : ChunkSaveThread = null
 
   def main(args: Array[String]): Unit = {
     FileLocator.setBaseDir(System.getProperty("user.dir") + "/resources")
@@ -47,7 +48,7 @@ object Main {
     worldView = new WorldView(world)
 
     // Setup camera
-    camera = new CameraModel(window, world, worldView).setPos(0, 0, 5).setYaw(-90f).setPitch(0)
+    camera = new CameraModel(window, world, worldView).setPos(0, 48, 5).setYaw(-90f).setPitch(0)
     val controller = new CameraController(camera);
     window.addInputter(controller)
 
@@ -64,6 +65,10 @@ object Main {
     updaterThread = new UpdateRepaintThread(world)
     updaterThread.start()
 
+    // Thread that writes modified chunks to disk
+    saveThread = new ChunkSaveThread(world)
+    saveThread.start()
+
     println("Render thread")
     // Thread that computes the meshes for visible chunks
     renderThread = new UpdateRenderThread(camera, worldView)
@@ -90,8 +95,18 @@ object Main {
 
     updaterThread.quit()
     renderThread.quit()
-
-    Disposer.drainRenderDisposal()
+    world.shutdown()
+    saveThread.quit()
+
+    // Tear down the world's rendering while the context is still current, so that everything it hands
+    // back is destroyed by the drain below and counted before the leak check
+    window.removeRenderer(worldView)
+    worldView.destroy()
+    Disposer.drainAll()
+    MeshRenderer.destroyPool()
+    println(NativeBufferPool.getShared.report())
+    NativeBufferPool.getShared.trim()
+    Disposer.checkLeaks()
     // Final save, etc
     window.destroy()
   }
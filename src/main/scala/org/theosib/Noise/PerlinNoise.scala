@@ -1,13 +1,30 @@
 package org.theosib.Noise
 
+import org.theosib.Noise.PerlinNoise.{fade, grad, grad3, lerp}
+
 import scala.util.Random
 
-object PerlinNoise {
-  def perlinNoise(xIn: Double, yIn: Double): Double = {
-    val X = math.floor(xIn).toInt & 255
-    val Y = math.floor(yIn).toInt & 255
-    val x = xIn - math.floor(xIn)
-    val y = yIn - math.floor(yIn)
+/**
+ * Seeded 2D and 3D gradient noise (Ken Perlin's improved noise), with fractal octave sums and batch
+ * versions that fill a whole grid of samples at once. One instance is immutable after construction, so it
+ * can be shared between threads.
+ *
+ * @param seed permutation seed
+ */
+class PerlinNoise(val seed: Long) {
+  // Shuffled 0..255, repeated so that lookups of p(X+1) etc. don't need wrapping
+  private val p: Array[Int] = {
+    val perm = new Random(seed).shuffle((0 until 256).toVector).toArray
+    perm ++ perm
+  }
+
+  def noise(xIn: Double, yIn: Double): Double = {
+    val fx = math.floor(xIn)
+    val fy = math.floor(yIn)
+    val X = fx.toInt & 255
+    val Y = fy.toInt & 255
+    val x = xIn - fx
+    val y = yIn - fy
     val u = fade(x)
     val v = fade(y)
     val A = p(X  ) + Y
@@ -18,23 +35,153 @@ object PerlinNoise {
         grad(p(B+1), x-1, y-1)))
   }
 
+  def noise(xIn: Double, yIn: Double, zIn: Double): Double = {
+    val fx = math.floor(xIn)
+    val fy = math.floor(yIn)
+    val fz = math.floor(zIn)
+    val X = fx.toInt & 255
+    val Y = fy.toInt & 255
+    val Z = fz.toInt & 255
+    val x = xIn - fx
+    val y = yIn - fy
+    val z = zIn - fz
+    val u = fade(x)
+    val v = fade(y)
+    val w = fade(z)
+    val A = p(X  ) + Y
+    val AA = p(A) + Z
+    val AB = p(A+1) + Z
+    val B = p(X+1) + Y
+    val BA = p(B) + Z
+    val BB = p(B+1) + Z
+    lerp(w, lerp(v, lerp(u, grad3(p(AA  ), x  , y  , z  ),
+                            grad3(p(BA  ), x-1, y  , z  )),
+                    lerp(u, grad3(p(AB  ), x  , y-1, z  ),
+                            grad3(p(BB  ), x-1, y-1, z  ))),
+            lerp(v, lerp(u, grad3(p(AA+1), x  , y  , z-1),
+                            grad3(p(BA+1), x-1, y  , z-1)),
+                    lerp(u, grad3(p(AB+1), x  , y-1, z-1),
+                            grad3(p(BB+1), x-1, y-1, z-1))))
+  }
+
+  /**
+   * Sum of octaves of 2D noise, each at lacunarity times the frequency and persistence times the
+   * amplitude of the one before
+   */
+  def fractal(x: Double, y: Double, octaves: Int, persistence: Double = 0.5, lacunarity: Double = 2.0): Double = {
+    var sum = 0.0
+    var freq = 1.0
+    var amp = 1.0
+    var o = 0
+    while (o < octaves) {
+      sum += amp * noise(x * freq, y * freq)
+      freq *= lacunarity
+      amp *= persistence
+      o += 1
+    }
+    sum
+  }
+
+  def fractal(x: Double, y: Double, z: Double, octaves: Int, persistence: Double, lacunarity: Double): Double = {
+    var sum = 0.0
+    var freq = 1.0
+    var amp = 1.0
+    var o = 0
+    while (o < octaves) {
+      sum += amp * noise(x * freq, y * freq, z * freq)
+      freq *= lacunarity
+      amp *= persistence
+      o += 1
+    }
+    sum
+  }
+
+  /**
+   * Fill a grid of 2D fractal samples, out(i + j * nx) = fractal(x0 + i * step, y0 + j * step). Each octave
+   * makes one pass over the whole grid, so the loops stay small and free of allocation.
+   */
+  def fillFractal(out: Array[Double], nx: Int, ny: Int, x0: Double, y0: Double, step: Double,
+                  octaves: Int, persistence: Double = 0.5, lacunarity: Double = 2.0): Unit = {
+    java.util.Arrays.fill(out, 0, nx * ny, 0.0)
+    var freq = 1.0
+    var amp = 1.0
+    var o = 0
+    while (o < octaves) {
+      var j = 0
+      while (j < ny) {
+        val y = (y0 + j * step) * freq
+        var i = 0
+        while (i < nx) {
+          out(i + j * nx) += amp * noise((x0 + i * step) * freq, y)
+          i += 1
+        }
+        j += 1
+      }
+      freq *= lacunarity
+      amp *= persistence
+      o += 1
+    }
+  }
+
+  /**
+   * Fill a grid of 3D fractal samples, indexed like chunk storage: out(i + k * nx + j * nx * nz) for x, z,
+   * and y offsets i, k, and j.
+   */
+  def fillFractal(out: Array[Double], nx: Int, ny: Int, nz: Int, x0: Double, y0: Double, z0: Double, step: Double,
+                  octaves: Int, persistence: Double, lacunarity: Double): Unit = {
+    java.util.Arrays.fill(out, 0, nx * ny * nz, 0.0)
+    var freq = 1.0
+    var amp = 1.0
+    var o = 0
+    while (o < octaves) {
+      var j = 0
+      while (j < ny) {
+        val y = (y0 + j * step) * freq
+        var k = 0
+        while (k < nz) {
+          val z = (z0 + k * step) * freq
+          val row = k * nx + j * nx * nz
+          var i = 0
+          while (i < nx) {
+            out(row + i) += amp * noise((x0 + i * step) * freq, y, z)
+            i += 1
+          }
+          k += 1
+        }
+        j += 1
+      }
+      freq *= lacunarity
+      amp *= persistence
+      o += 1
+    }
+  }
+}
+
+object PerlinNoise {
+  // Shared default instance, for callers that don't care about the seed
+  val default = new PerlinNoise(0)
+
+  def perlinNoise(xIn: Double, yIn: Double): Double = default.noise(xIn, yIn)
+
+  @inline
   def fade(t: Double): Double = t * t * t * (t * (t * 6 - 15) + 10)
 
+  @inline
   def lerp(t: Double, a: Double, b: Double): Double = a + t * (b - a)
 
+  @inline
   def grad(hash: Int, x: Double, y: Double): Double = {
     val h = hash & 15
     val u = if (h<8) x else y
     val v = if (h<4) y else if (h==12||h==14) x else 0
-    ((h&1) match {
-      case 0 => u
-      case _ => -u
-    }) + ((h&2) match {
-      case 0 => v
-      case _ => -v
-    })
+    (if ((h&1) == 0) u else -u) + (if ((h&2) == 0) v else -v)
   }
 
-  val p = Array.fill(512)(0) ++ Array.fill(512)(1)
-  Random.shuffle(p.toList).toArray
+  @inline
+  def grad3(hash: Int, x: Double, y: Double, z: Double): Double = {
+    val h = hash & 15
+    val u = if (h<8) x else y
+    val v = if (h<4) y else if (h==12||h==14) x else z
+    (if ((h&1) == 0) u else -u) + (if ((h&2) == 0) v else -v)
+  }
 }
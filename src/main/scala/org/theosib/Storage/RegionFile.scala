@@ -0,0 +1,182 @@
+package org.theosib.Storage
+
+import org.theosib.Storage.RegionFile.{chunksPerRegion, headerBytes, headerSectors, magic, sectorSize, version}
+
+import java.io.IOException
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, Path, StandardOpenOption}
+import java.util.BitSet
+
+/**
+ * One file holding up to 8x8x8 chunks. The file starts with a header: a magic number, a version, and
+ * an offset table with one (sector, length) entry per chunk slot. Payloads are stored in whole 4 KiB
+ * sectors after the header.
+ *
+ * A payload is never overwritten in place. Each write goes to free sectors, and the old ones are only
+ * reused once flush has written an offset table that no longer points at them, so a crash mid-write
+ * leaves the previous copy intact. The offset table itself is rewritten in place, and a crash while it
+ * is being written can still damage it.
+ *
+ * Reads go through a read-only memory mapping of the file, which is remapped when the file grows.
+ * Reads and writes may come from different threads, so all access is synchronized on the file.
+ *
+ * @param path location of the file, which is created if it doesn't exist
+ */
+class RegionFile(val path: Path) {
+  private val channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+    StandardOpenOption.WRITE)
+
+  // Offset table: first sector and byte length of each chunk payload, zero if absent
+  private val sectors = new Array[Int](chunksPerRegion)
+  private val lengths = new Array[Int](chunksPerRegion)
+
+  // Sectors holding the header or a payload, and those to free once the offset table stops using them
+  private val used = new BitSet
+  private val pendingFree = new BitSet
+  used.set(0, headerSectors)
+
+  private var mapped: MappedByteBuffer = null
+  private var headerDirty = false
+
+  if (channel.size() == 0) {
+    headerDirty = true
+    flush()
+  } else {
+    readHeader()
+  }
+
+  private def readHeader(): Unit = {
+    val header = ByteBuffer.allocate(headerBytes)
+    channel.read(header, 0)
+    header.flip()
+    if (header.getInt != magic) throw new IOException(s"Not a region file: ${path}")
+    val v = header.getInt
+    if (v != version) throw new IOException(s"Unsupported region file version ${v}: ${path}")
+
+    for (i <- 0 until chunksPerRegion) {
+      sectors(i) = header.getInt
+      lengths(i) = header.getInt
+      if (sectors(i) != 0) {
+        used.set(sectors(i), sectors(i) + RegionFile.sectorsFor(lengths(i)))
+      }
+    }
+  }
+
+  /**
+   * Fetch a chunk's payload
+   * @param slot chunk slot within the region, see RegionFile.slot
+   * @return read-only view of the payload, or null if the chunk has never been saved
+   */
+  def read(slot: Int): ByteBuffer = synchronized {
+    val length = lengths(slot)
+    if (length == 0) return null
+
+    val start = sectors(slot).toLong * sectorSize
+    if (mapped == null || start + length > mapped.capacity()) {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+    }
+    mapped.slice(start.toInt, length).asReadOnlyBuffer()
+  }
+
+  /**
+   * Find and claim the first run of free sectors long enough
+   * @return first sector of the run
+   */
+  private def allocate(needed: Int): Int = {
+    var start = used.nextClearBit(headerSectors)
+    var next = used.nextSetBit(start)
+    while (next >= 0 && next - start < needed) {
+      start = used.nextClearBit(next)
+      next = used.nextSetBit(start)
+    }
+    used.set(start, start + needed)
+    start
+  }
+
+  /**
+   * Store a chunk's payload in free sectors. The offset table isn't written until flush, and until then
+   * the file still holds the previous payload.
+   * @param slot chunk slot within the region
+   * @param payload bytes between position and limit are stored
+   */
+  def write(slot: Int, payload: ByteBuffer): Unit = synchronized {
+    val length = payload.remaining()
+    val start = allocate(RegionFile.sectorsFor(length))
+
+    var pos = start.toLong * sectorSize
+    while (payload.hasRemaining) {
+      pos += channel.write(payload, pos)
+    }
+
+    if (sectors(slot) != 0) {
+      pendingFree.set(sectors(slot), sectors(slot) + RegionFile.sectorsFor(lengths(slot)))
+    }
+    sectors(slot) = start
+    lengths(slot) = length
+    headerDirty = true
+  }
+
+  /**
+   * Write the offset table if it changed and push everything to disk. Payloads are forced out before the
+   * table that points at them.
+   */
+  def flush(): Unit = synchronized {
+    if (!headerDirty) return
+    channel.force(false)
+
+    val header = ByteBuffer.allocate(headerBytes)
+    header.putInt(magic)
+    header.putInt(version)
+    for (i <- 0 until chunksPerRegion) {
+      header.putInt(sectors(i))
+      header.putInt(lengths(i))
+    }
+    header.flip()
+    var pos = 0L
+    while (header.hasRemaining) {
+      pos += channel.write(header, pos)
+    }
+    channel.force(false)
+    headerDirty = false
+
+    used.andNot(pendingFree)
+    pendingFree.clear()
+  }
+
+  def close(): Unit = synchronized {
+    flush()
+    mapped = null
+    channel.close()
+  }
+}
+
+object RegionFile {
+  val magic: Int = 0x45565247 // "EVRG"
+  val version: Int = 1
+
+  // Regions are 8 chunks on a side
+  val regionShift = 3
+  val regionMask: Int = (1 << regionShift) - 1
+  val chunksPerRegion: Int = 1 << (regionShift * 3)
+
+  val sectorSize = 4096
+  val headerBytes: Int = 8 + chunksPerRegion * 8
+  val headerSectors: Int = sectorsFor(headerBytes)
+
+  def sectorsFor(length: Int): Int = (length + sectorSize - 1) / sectorSize
+
+  /**
+   * Slot of a chunk within its region
+   */
+  def slot(chunkX: Int, chunkY: Int, chunkZ: Int): Int = {
+    (chunkX & regionMask) | ((chunkZ & regionMask) << regionShift) | ((chunkY & regionMask) << (regionShift * 2))
+  }
+
+  def fileName(regionX: Int, regionY: Int, regionZ: Int): String = s"r.${regionX}.${regionY}.${regionZ}.region"
+
+  def open(dir: Path, regionX: Int, regionY: Int, regionZ: Int): RegionFile = {
+    Files.createDirectories(dir)
+    new RegionFile(dir.resolve(fileName(regionX, regionY, regionZ)))
+  }
+}
@@ -0,0 +1,122 @@
+package org.theosib.Storage
+
+import org.theosib.Position.ChunkPos
+import org.theosib.Utils.FileLocator
+import org.theosib.WorldElements.Chunk
+
+import java.io.{ByteArrayOutputStream, DataInputStream, DataOutputStream, IOException, InputStream}
+import java.nio.ByteBuffer
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.{Deflater, DeflaterOutputStream, InflaterInputStream}
+
+/**
+ * Saves and loads chunks through region files. Each chunk payload is its palette and packed block storage
+ * (see Chunk.writePayload), deflate-compressed. Region files are opened on first use and kept open.
+ *
+ * @param dir directory holding the region files
+ */
+class RegionStorage(val dir: Path) {
+  def this() = this(Path.of(FileLocator.computePath(FileLocator.FileCategory.Chunk, null)))
+
+  private val regions = new ConcurrentHashMap[Long, RegionFile]
+
+  private def regionFor(pos: ChunkPos): RegionFile = {
+    val rx = pos.X >> RegionFile.regionShift
+    val ry = pos.Y >> RegionFile.regionShift
+    val rz = pos.Z >> RegionFile.regionShift
+    val key = new ChunkPos(rx, ry, rz).packed()
+    regions.computeIfAbsent(key, _ => RegionFile.open(dir, rx, ry, rz))
+  }
+
+  private def slotFor(pos: ChunkPos): Int = RegionFile.slot(pos.X, pos.Y, pos.Z)
+
+  /**
+   * Fill in a chunk from disk
+   * @param chunk newly created, empty chunk
+   * @return false if the chunk has never been saved
+   */
+  def loadChunk(chunk: Chunk): Boolean = {
+    val pos = chunk.getChunkPos()
+    val payload = try {
+      regionFor(pos).read(slotFor(pos))
+    } catch {
+      case e: IOException =>
+        e.printStackTrace()
+        null
+    }
+    if (payload == null) return false
+
+    val in = new DataInputStream(new InflaterInputStream(new RegionStorage.ByteBufferInputStream(payload)))
+    try {
+      chunk.readPayload(in)
+      true
+    } catch {
+      case e: IOException =>
+        // A damaged chunk is regenerated rather than taking the world down with it
+        println(s"Failed to load ${chunk}: ${e}")
+        false
+    } finally {
+      in.close()
+    }
+  }
+
+  /**
+   * Write a batch of chunks, grouped by region so that each region's offset table is written once. Chunks
+   * are only marked saved once every region is flushed, so that a failed write leaves them to be saved
+   * again next time.
+   * @param chunks chunks to save
+   * @param deflater compressor, reset and reused for every chunk
+   */
+  def saveChunks(chunks: Iterable[Chunk], deflater: Deflater): Unit = {
+    val bytes = new ByteArrayOutputStream(8192)
+    val touched = new java.util.HashSet[RegionFile]
+    val stamps = new Array[Int](chunks.size)
+
+    var i = 0
+    chunks.foreach { chunk =>
+      bytes.reset()
+      deflater.reset()
+      val out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))
+      stamps(i) = chunk.writePayload(out)
+      out.close()
+
+      val pos = chunk.getChunkPos()
+      val region = regionFor(pos)
+      region.write(slotFor(pos), ByteBuffer.wrap(bytes.toByteArray))
+      touched.add(region)
+      i += 1
+    }
+
+    touched.forEach(_.flush())
+
+    i = 0
+    chunks.foreach { chunk =>
+      chunk.markSaved(stamps(i))
+      i += 1
+    }
+  }
+
+  def close(): Unit = {
+    regions.values().forEach(_.close())
+    regions.clear()
+  }
+}
+
+object RegionStorage {
+  /**
+   * Stream over a ByteBuffer, so that mapped payloads can be inflated without copying them first
+   */
+  class ByteBufferInputStream(buf: ByteBuffer) extends InputStream {
+    override def read(): Int = if (buf.hasRemaining) buf.get() & 0xff else -1
+
+    override def read(b: Array[Byte], off: Int, len: Int): Int = {
+      if (!buf.hasRemaining) return -1
+      val n = len.min(buf.remaining())
+      buf.get(b, off, n)
+      n
+    }
+
+    override def available(): Int = buf.remaining()
+  }
+}
@@ -86,13 +86,15 @@ object TestQuad {
       |
       |uniform mat4 view;
       |uniform mat4 projection;
+      |uniform vec3 originOffset;
       |
       |void main()
       |{
-      |    gl_Position = projection * view * vec4(aPos, 1.0);
-      |    FragPos = aPos;
+      |    vec3 pos = aPos * (1.0 / 256.0) + originOffset;
+      |    gl_Position = projection * view * vec4(pos, 1.0);
+      |    FragPos = pos;
       |    Normal = aNormal;
-      |    TexCoord = aTexCoord;
+      |    TexCoord = aTexCoord * (1.0 / 1024.0);
       |}
       |
       |
@@ -1,37 +1,153 @@
 package org.theosib.Utils
 
-import org.theosib.Adaptors.{Disposable, RenderAgent, Window}
+import org.theosib.Adaptors.{Disposable, Recyclable, RenderAgent, Window}
 
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
 import java.util.concurrent.ConcurrentLinkedQueue
-import scala.jdk.CollectionConverters.IterableHasAsJava
 
+/**
+ * Destroys GL resources on the render thread on behalf of other threads. Each frame only gets through
+ * as much of the queue as its budget allows, so a big unload is spread over several frames instead of
+ * stalling one. Resources that are Recyclable are offered back to their pools instead of being
+ * destroyed.
+ *
+ * Also keeps count of live resources by kind, so that anything never destroyed is reported at shutdown.
+ */
 object Disposer extends RenderAgent {
   val deadQueue = new ConcurrentLinkedQueue[Disposable]
   val deadListQueue = new ConcurrentLinkedQueue[Iterable[Disposable]]
 
+  // Most resources released per frame, and most time spent on it; whichever comes first ends the frame's
+  // share. At least one is always released so that the queue can't stall.
+  @volatile var maxPerFrame: Int = 256
+  @volatile var frameBudgetNanos: Long = 2000000L
+
+  // The clock is only read every this many releases
+  private val clockInterval = 16
+
+  // Remainder of a list that didn't fit in the last frame's budget. Only touched by the render thread.
+  private var current: Iterator[Disposable] = null
+
+  // Metrics
+  private val pending = new AtomicInteger
+  private val totalReleased = new AtomicLong
+  private val totalRecycled = new AtomicLong
+  @volatile private var highWater = 0
+  @volatile private var lastReleased = 0
+  @volatile private var lastNanos = 0L
+
+  // Live resources by kind
+  private val live = new ConcurrentHashMap[String, AtomicInteger]
+
   // Schedule disposal from any thread
   def dispose(mr: Disposable): Unit = {
     if (mr == null) return
+    pending.incrementAndGet()
     deadQueue.add(mr)
   }
 
   def dispose(mrs: Iterable[Disposable]): Unit = {
     if (mrs == null) return
+    pending.addAndGet(mrs.size)
     deadListQueue.add(mrs)
   }
 
-  // Dispose from main rendering thread
-  def drainRenderDisposal(): Unit = {
-//    println(s"disposing ${deadQueue.size()} + ${deadListQueue.size()}")
-    // XXX Limit how many can be disposed at once to avoid framerate hits
-    while (!deadQueue.isEmpty) {
-      val mr = deadQueue.remove()
-      mr.destroy()
+  // Dispose from main rendering thread, within this frame's budget
+  def drainRenderDisposal(): Unit = drain(maxPerFrame, frameBudgetNanos)
+
+  // Dispose everything queued, such as at shutdown
+  def drainAll(): Unit = drain(Int.MaxValue, Long.MaxValue)
+
+  private def drain(maxCount: Int, budgetNanos: Long): Unit = {
+    val depth = pending.get
+    if (depth > highWater) highWater = depth
+
+    val start = System.nanoTime()
+    var count = 0
+    var done = false
+    while (!done && count < maxCount) {
+      val d = next()
+      if (d == null) {
+        done = true
+      } else {
+        release(d)
+        count += 1
+        if (count % clockInterval == 0 && System.nanoTime() - start >= budgetNanos) done = true
+      }
+    }
+
+    pending.addAndGet(-count)
+    totalReleased.addAndGet(count)
+    lastReleased = count
+    lastNanos = System.nanoTime() - start
+  }
+
+  private def next(): Disposable = {
+    while (true) {
+      if (current != null) {
+        if (current.hasNext) return current.next()
+        current = null
+      }
+      val d = deadQueue.poll()
+      if (d != null) return d
+      val list = deadListQueue.poll()
+      if (list == null) return null
+      current = list.iterator
+    }
+    null
+  }
+
+  private def release(d: Disposable): Unit = {
+    d match {
+      case r: Recyclable if r.recycle() => totalRecycled.incrementAndGet()
+      case _ => d.destroy()
     }
-    while (!deadListQueue.isEmpty) {
-      val mrs = deadListQueue.remove()
-      mrs.foreach(_.destroy())
+  }
+
+  // Resources waiting to be released
+  def queueDepth: Int = pending.get
+
+  // Deepest the queue has been at the start of a frame
+  def queueHighWater: Int = highWater
+
+  def lastFrameReleased: Int = lastReleased
+
+  def lastFrameNanos: Long = lastNanos
+
+  def releasedCount: Long = totalReleased.get
+
+  def recycledCount: Long = totalRecycled.get
+
+  /**
+   * Count a resource of some kind as created. Call once per resource, paired with destroyed.
+   */
+  def created(kind: String): Unit = live.computeIfAbsent(kind, _ => new AtomicInteger).incrementAndGet()
+
+  def destroyed(kind: String): Unit = {
+    val n = live.computeIfAbsent(kind, _ => new AtomicInteger).decrementAndGet()
+    if (n < 0) println(s"Disposer: more ${kind} destroyed than created")
+  }
+
+  def liveCount(kind: String): Int = {
+    val n = live.get(kind)
+    if (n == null) 0 else n.get
+  }
+
+  /**
+   * Report every kind of resource that still has live instances, after everything is supposed to have
+   * been destroyed
+   * @return true if there were none
+   */
+  def checkLeaks(): Boolean = {
+    var clean = true
+    live.forEach { (kind, n) =>
+      if (n.get != 0) {
+        println(s"Disposer: ${n.get} ${kind} never destroyed")
+        clean = false
+      }
     }
+    clean
   }
 
 
@@ -39,6 +39,11 @@ object Facing {
     (-1, 0, 0),
     (1, 0, 0))
 
+  // Coordinate axis (0=X, 1=Y, 2=Z) perpendicular to each face, and the two axes spanning it
+  val normal_axis = Array(1, 1, 2, 2, 0, 0)
+  val u_axis = Array(0, 0, 0, 0, 2, 2)
+  val v_axis = Array(2, 2, 1, 1, 1, 1)
+
   val int_vector: Array[Vector3i] = int_tuple.map(t => new Vector3i(t._1, t._2, t._3))
   val float_vector: Array[Vector3f] = int_tuple.map(t => new Vector3f(t._1, t._2, t._3))
 
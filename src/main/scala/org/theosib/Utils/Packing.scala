@@ -24,4 +24,56 @@ object Packing {
   val chunkX_mask = (1L << chunkX_bits) - 1
   val chunkZ_mask = (1L << chunkZ_bits) - 1
   val chunkY_mask = (1L << chunkY_bits) - 1
+
+  // Only the low bits of a block's y fit above x and z, so packed y runs from 0 up to (not including) this
+  val blockY_limit = 1 << (64 - blockY_shift)
+
+  /**
+   * Same packing as ChunkPos.packed, without making a ChunkPos
+   */
+  @inline
+  def packChunk(chunkX: Int, chunkY: Int, chunkZ: Int): Long = {
+    ((chunkX & chunkX_mask) << chunkX_shift) | ((chunkY & chunkY_mask) << chunkY_shift) |
+      ((chunkZ & chunkZ_mask) << chunkZ_shift)
+  }
+
+  /**
+   * Same packing as BlockPos.packed, without making a BlockPos
+   */
+  @inline
+  def packBlock(x: Int, y: Int, z: Int): Long = {
+    ((x & blockX_mask) << blockX_shift) | ((y & blockY_mask) << blockY_shift) | ((z & blockZ_mask) << blockZ_shift)
+  }
+
+  @inline
+  def unpackBlockX(packed: Long): Int = ((packed << (64 - blockX_shift - blockX_bits)) >> (64 - blockX_bits)).toInt
+
+  @inline
+  def unpackBlockZ(packed: Long): Int = ((packed << (64 - blockZ_shift - blockZ_bits)) >> (64 - blockZ_bits)).toInt
+
+  // y is never negative once packed
+  @inline
+  def unpackBlockY(packed: Long): Int = (packed >>> blockY_shift).toInt
+
+  /**
+   * Packed position of the chunk holding a packed block position
+   */
+  @inline
+  def blockToChunk(packed: Long): Long = {
+    val x = ((packed >>> blockX_shift) & blockX_mask) >>> 4
+    val z = ((packed >>> blockZ_shift) & blockZ_mask) >>> 4
+    val y = (packed >>> blockY_shift) >>> 4
+    (x << chunkX_shift) | (y << chunkY_shift) | (z << chunkZ_shift)
+  }
+
+  /**
+   * Index within its chunk of a packed block position, as Chunk.chunkBlockIndex
+   */
+  @inline
+  def blockIndex(packed: Long): Int = {
+    val x = (packed >>> blockX_shift).toInt & 15
+    val z = (packed >>> blockZ_shift).toInt & 15
+    val y = (packed >>> blockY_shift).toInt & 15
+    x | (z << 4) | (y << 8)
+  }
 }
@@ -0,0 +1,84 @@
+package org.theosib.WorkerThreads
+
+import org.theosib.Position.ChunkPos
+
+import java.util.concurrent.{PriorityBlockingQueue, ThreadFactory, ThreadPoolExecutor, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Pool of threads that load or generate chunks, nearest to the focus (normally the camera's chunk) first.
+ * Priorities are computed when a chunk is submitted and recomputed for everything still queued when the
+ * focus moves to a different chunk.
+ *
+ * @param threads number of worker threads
+ */
+class ChunkGenerator(val threads: Int = ChunkGenerator.defaultThreads) {
+  private val queue = new PriorityBlockingQueue[Runnable](64, (a: Runnable, b: Runnable) =>
+    java.lang.Long.compare(a.asInstanceOf[ChunkGenerator.Task].priority, b.asInstanceOf[ChunkGenerator.Task].priority))
+
+  // Threads are only started once there is work, so a World that never loads anything costs nothing
+  private val pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, queue, ChunkGenerator.threadFactory)
+  pool.allowCoreThreadTimeOut(true)
+
+  @volatile private var focus: ChunkPos = new ChunkPos()
+
+  /**
+   * Move the center that priorities are measured from
+   */
+  def setFocus(pos: ChunkPos): Unit = {
+    if (pos == focus) return
+    focus = pos
+
+    // Heap order can't change in place, so pull everything out and put it back
+    val tasks = new java.util.ArrayList[Runnable]()
+    queue.drainTo(tasks)
+    tasks.forEach { t =>
+      val task = t.asInstanceOf[ChunkGenerator.Task]
+      task.priority = ChunkGenerator.distanceSquared(task.pos, pos)
+    }
+    queue.addAll(tasks)
+  }
+
+  /**
+   * Queue work for a chunk
+   * @param pos chunk being produced, used for priority
+   * @param work what to do
+   */
+  def submit(pos: ChunkPos, work: Runnable): Unit = {
+    pool.execute(new ChunkGenerator.Task(pos, ChunkGenerator.distanceSquared(pos, focus), work))
+  }
+
+  /**
+   * @return number of chunks waiting for a worker
+   */
+  def pendingChunks(): Int = queue.size()
+
+  def shutdown(): Unit = {
+    pool.shutdownNow()
+    pool.awaitTermination(1, TimeUnit.SECONDS)
+  }
+}
+
+object ChunkGenerator {
+  // Leave cores for the GL, tick, and mesh threads
+  def defaultThreads: Int = (Runtime.getRuntime.availableProcessors() / 2).max(1)
+
+  private class Task(val pos: ChunkPos, @volatile var priority: Long, work: Runnable) extends Runnable {
+    override def run(): Unit = work.run()
+  }
+
+  def distanceSquared(a: ChunkPos, b: ChunkPos): Long = {
+    val dx = (a.X - b.X).toLong
+    val dy = (a.Y - b.Y).toLong
+    val dz = (a.Z - b.Z).toLong
+    dx * dx + dy * dy + dz * dz
+  }
+
+  private val threadCount = new AtomicInteger()
+
+  private val threadFactory: ThreadFactory = (r: Runnable) => {
+    val t = new Thread(r, s"ChunkGenerator-${threadCount.incrementAndGet()}")
+    t.setDaemon(true)
+    t
+  }
+}
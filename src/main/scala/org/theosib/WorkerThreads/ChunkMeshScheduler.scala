@@ -0,0 +1,82 @@
+package org.theosib.WorkerThreads
+
+import org.theosib.Geometry.Frustum
+import org.theosib.Position.BlockPos
+import org.theosib.WorldElements.ChunkView
+
+import java.util.concurrent.{ConcurrentLinkedQueue, ForkJoinPool, TimeUnit}
+
+/**
+ * Rebuilds the meshes of visually modified chunks concurrently on a ForkJoinPool. Each chunk is built into
+ * its back buffers by a worker, and the finished ChunkView is then queued for the GL thread, which swaps
+ * it to the front by calling publishCompleted.
+ *
+ * @param parallelism number of worker threads
+ */
+class ChunkMeshScheduler(val parallelism: Int = ChunkMeshScheduler.defaultParallelism) {
+  private val pool = new ForkJoinPool(parallelism)
+
+  // Chunks whose back buffers are ready to be swapped in by the GL thread
+  private val completed = new ConcurrentLinkedQueue[ChunkView]
+
+  /**
+   * Start rebuilding a chunk, if it needs it and isn't already being built. Does not wait for the build.
+   * @param view chunk to rebuild
+   * @param viewCenter world recentering position to build relative to
+   * @param frustum view frustum relative to viewCenter, for frustum culling
+   * @return true if a build was started
+   */
+  def schedule(view: ChunkView, viewCenter: BlockPos, frustum: Frustum): Boolean = {
+    if (!view.wantsVisualUpdate(viewCenter, frustum)) return false
+    view.buildInFlight = true
+
+    val task: Runnable = () => {
+      try {
+        view.computeVisualUpdates(viewCenter)
+        completed.add(view)
+      } catch {
+        case e: Throwable =>
+          // Don't leave the chunk stuck; let a later pass try again
+          e.printStackTrace()
+          view.chunkVisualModified = true
+          view.buildInFlight = false
+      }
+    }
+    pool.execute(task)
+    true
+  }
+
+  /**
+   * Make finished builds visible. Must be called from the GL thread.
+   * @return number of chunks published
+   */
+  def publishCompleted(): Int = {
+    var count = 0
+    var view = completed.poll()
+    while (view != null) {
+      view.publishRenders()
+      count += 1
+      view = completed.poll()
+    }
+    count
+  }
+
+  /**
+   * @return number of builds that haven't been picked up by the workers yet
+   */
+  def pendingBuilds(): Long = pool.getQueuedSubmissionCount + pool.getQueuedTaskCount
+
+  /**
+   * Stop the workers, waiting briefly for builds in progress, and drop builds that weren't published
+   */
+  def shutdown(): Unit = {
+    pool.shutdownNow()
+    pool.awaitTermination(1, TimeUnit.SECONDS)
+    completed.clear()
+  }
+}
+
+object ChunkMeshScheduler {
+  // Leave a core for the GL thread
+  def defaultParallelism: Int = (Runtime.getRuntime.availableProcessors() - 1).max(1)
+}
@@ -0,0 +1,48 @@
+package org.theosib.WorkerThreads
+
+import org.theosib.Adaptors.Window
+import org.theosib.WorldElements.World
+
+import java.util.zip.Deflater
+
+/**
+ * Periodically writes all modified chunks to their region files, so that saving never stalls the tick or
+ * render threads. Chunks modified again while a batch is being written, or in a batch that failed, are
+ * picked up by the next batch. A final batch is written on quit.
+ */
+class ChunkSaveThread(val world: World) extends Thread {
+  @volatile var quitFlag = false;
+  val savePeriod = 5.0
+
+  // Favor speed; chunk payloads are small and mostly runs of the same bits
+  private val deflater = new Deflater(Deflater.BEST_SPEED)
+
+  override def run(): Unit = {
+    var lastSave: Double = Window.getCurrentTime
+    while (!quitFlag) {
+      Thread.sleep(100)
+      val now = Window.getCurrentTime
+      if (now - lastSave >= savePeriod) {
+        lastSave = now
+        saveBatch()
+      }
+    }
+    saveBatch()
+    deflater.end()
+  }
+
+  private def saveBatch(): Unit = {
+    try {
+      val count = world.saveModifiedChunks(deflater)
+      if (count > 0) println(s"Saved ${count} chunks")
+    } catch {
+      case e: Exception => e.printStackTrace()
+    }
+  }
+
+  def quit(): Unit = {
+    quitFlag = true
+    join()
+    world.regionStorage.close()
+  }
+}
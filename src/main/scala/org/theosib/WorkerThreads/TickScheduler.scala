@@ -0,0 +1,158 @@
+package org.theosib.WorkerThreads
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap
+import org.theosib.Utils.Packing
+import org.theosib.WorldElements.{Chunk, World}
+
+import java.util.concurrent.{Callable, ExecutionException, ForkJoinPool, TimeUnit}
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Runs one game tick of a World at a time: block updates and repaints, then block ticks, then entities.
+ *
+ * Block ticks are spread over a ForkJoinPool. Chunks with ticking blocks are grouped into regions of
+ * whole chunk columns, and the regions are split into four phases by the parity of their x and z. Regions
+ * in the same phase are always at least a region apart, so a block tick can change its own chunk and the
+ * chunks next to it without racing another worker. The phases run one after another. Entities are ticked
+ * afterwards on the calling thread.
+ *
+ * Keeps timing of every tick for reporting.
+ *
+ * @param parallelism number of worker threads
+ */
+class TickScheduler(val world: World, val parallelism: Int = TickScheduler.defaultParallelism) {
+  import TickScheduler._
+
+  private val pool = new ForkJoinPool(parallelism)
+
+  // Regions of ticking chunks by packed (regionX, 0, regionZ), for each phase. Refilled every tick.
+  private val phases = Array.fill(numPhases)(new Long2ObjectOpenHashMap[ArrayBuffer[Chunk]])
+  private val tasks = new java.util.ArrayList[Callable[Int]]
+
+  // Metrics, in nanoseconds where they're times
+  @volatile private var ticks = 0L
+  @volatile private var skipped = 0L
+  @volatile private var overruns = 0L
+  @volatile private var lastNanos = 0L
+  @volatile private var lastBlockNanos = 0L
+  @volatile private var lastEntityNanos = 0L
+  @volatile private var maxNanos = 0L
+  @volatile private var averageNanos = 0.0
+  @volatile private var lastBlocksTicked = 0
+
+  /**
+   * Run one tick. Only one thread may call this at a time.
+   * @param tickPeriod length of a tick in seconds
+   */
+  def tick(tickPeriod: Double): Unit = {
+    val start = System.nanoTime()
+    world.doBlockUpdates()
+    world.doRepaintEvents()
+
+    val blockStart = System.nanoTime()
+    lastBlocksTicked = tickBlocks()
+    val entityStart = System.nanoTime()
+    world.tickEntities(tickPeriod)
+    val end = System.nanoTime()
+
+    lastBlockNanos = entityStart - blockStart
+    lastEntityNanos = end - entityStart
+    val nanos = end - start
+    lastNanos = nanos
+    if (nanos > maxNanos) maxNanos = nanos
+    averageNanos = if (ticks == 0) nanos.toDouble else averageNanos + (nanos - averageNanos) * averageWeight
+    if (nanos > tickPeriod * 1e9) overruns += 1
+    ticks += 1
+  }
+
+  /**
+   * Count ticks that were dropped because the loop fell too far behind
+   */
+  def noteSkipped(n: Long): Unit = skipped += n
+
+  private def tickBlocks(): Int = {
+    var numChunks = 0
+    world.listAllChunks().foreach { chunk =>
+      if (chunk.numTickingBlocks > 0) {
+        val pos = chunk.getChunkPos()
+        val rx = pos.X >> regionShift
+        val rz = pos.Z >> regionShift
+        val regions = phases((rx & 1) | ((rz & 1) << 1))
+        val key = Packing.packChunk(rx, 0, rz)
+        var region = regions.get(key)
+        if (region == null) {
+          region = new ArrayBuffer[Chunk]
+          regions.put(key, region)
+        }
+        region += chunk
+        numChunks += 1
+      }
+    }
+
+    var ticked = 0
+    // Not worth handing out to the pool
+    val serial = numChunks < minParallelChunks || parallelism < 2
+    phases.foreach { regions =>
+      if (serial) {
+        regions.values().forEach(region => ticked += tickRegion(region))
+      } else if (!regions.isEmpty) {
+        regions.values().forEach(region => tasks.add(() => tickRegion(region)))
+        pool.invokeAll(tasks).forEach { future =>
+          try {
+            ticked += future.get()
+          } catch {
+            case e: ExecutionException => e.getCause.printStackTrace()
+          }
+        }
+        tasks.clear()
+      }
+      regions.clear()
+    }
+    ticked
+  }
+
+  private def tickRegion(region: ArrayBuffer[Chunk]): Int = {
+    var ticked = 0
+    region.foreach(chunk => ticked += chunk.tickAllBlocks())
+    ticked
+  }
+
+  def tickCount: Long = ticks
+  def skippedTicks: Long = skipped
+  def overrunTicks: Long = overruns
+  def lastTickNanos: Long = lastNanos
+  def lastBlockTickNanos: Long = lastBlockNanos
+  def lastEntityTickNanos: Long = lastEntityNanos
+  def maxTickNanos: Long = maxNanos
+  def averageTickNanos: Double = averageNanos
+  def lastBlockTicks: Int = lastBlocksTicked
+
+  def report(): String = {
+    f"ticks: ${ticks}%d (${skipped}%d skipped, ${overruns}%d overran), last ${lastNanos / 1e6}%.2f ms " +
+      f"(blocks ${lastBlockNanos / 1e6}%.2f, entities ${lastEntityNanos / 1e6}%.2f), " +
+      f"average ${averageNanos / 1e6}%.2f ms, max ${maxNanos / 1e6}%.2f ms, ${lastBlocksTicked}%d block ticks"
+  }
+
+  def shutdown(): Unit = {
+    pool.shutdownNow()
+    pool.awaitTermination(1, TimeUnit.SECONDS)
+  }
+}
+
+object TickScheduler {
+  // Leave a core for the GL thread
+  def defaultParallelism: Int = (Runtime.getRuntime.availableProcessors() - 1).max(1)
+
+  // Regions are 2^regionShift chunk columns on a side. They must be at least two wide, so that two
+  // regions of the same phase never touch a common chunk.
+  val regionShift = 1
+
+  // x parity and z parity of a region
+  val numPhases = 4
+
+  // Fewer ticking chunks than this are ticked on the calling thread
+  val minParallelChunks = 16
+
+  // Weight of each new tick in the running average
+  val averageWeight = 0.05
+}
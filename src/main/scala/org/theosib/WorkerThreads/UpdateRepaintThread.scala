@@ -1,32 +1,46 @@
 package org.theosib.WorkerThreads
 
-import org.theosib.Adaptors.Window
 import org.theosib.WorldElements.World
 
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Runs the world's ticks on a fixed timestep. Every tick advances the world by exactly tickPeriod, and
+ * ticks are scheduled against the clock rather than after each other, so time lost to a slow tick is made
+ * up by running the next ones back to back. If the loop falls more than maxCatchUp ticks behind, the
+ * missed ticks are dropped instead, so a stall doesn't turn into a burst.
+ */
 class UpdateRepaintThread(val world: World) extends Thread {
-  var quitFlag = false;
+  @volatile var quitFlag = false;
   val tickPeriod = 50.0 / 1000.0
+  val maxCatchUp = 5
+
+  val scheduler = new TickScheduler(world)
 
   override def run(): Unit = {
-    var lastTime: Double = Window.getCurrentTime
+    val periodNanos = (tickPeriod * 1e9).toLong
+    var nextTick = System.nanoTime() + periodNanos
     while (!quitFlag) {
-      val now = Window.getCurrentTime
-      val target = lastTime + tickPeriod
-      val remaining = target - now
-      val elapsed = now - lastTime
-      val sleepTime: Long = ((remaining * 1000).round).max(1)
-      lastTime = now
-      Thread.sleep(sleepTime)
+      val wait = nextTick - System.nanoTime()
+      if (wait > 0) {
+        LockSupport.parkNanos(wait)
+      } else {
+        val behind = -wait / periodNanos
+        if (behind > maxCatchUp) {
+          scheduler.noteSkipped(behind)
+          nextTick += behind * periodNanos
+        }
 
-      world.doBlockUpdates()
-      world.doRepaintEvents()
-      world.doGameTickEvents(elapsed)
-      // world.doLoadSave() // Move this to its own thread
+        scheduler.tick(tickPeriod)
+        // world.doLoadSave() // Move this to its own thread
+        nextTick += periodNanos
+      }
     }
   }
 
   def quit(): Unit = {
     quitFlag = true
     join()
+    scheduler.shutdown()
   }
 }
@@ -13,6 +13,9 @@ import org.theosib.GraphicsEngine.Mesh
  * Return values of action events indicate that the action has been consumed.
  */
 abstract class BlockImpl {
+  // Numeric ID that means the same type in every chunk, assigned by BlockLibrary. Air is zero.
+  @volatile private[WorldElements] var globalID: Int = -1
+
   /**
    * @return Default mesh according to the block config file
    */
@@ -39,6 +42,13 @@ abstract class BlockImpl {
     getDefaultCollision(block.getBlockPos().toVector3d)
   }
 
+  /**
+   * Mesh whose collision boxes are the collision shape of every block of this type, which lets physics
+   * place them without asking each block. Null if getCollision has to be asked, as for types whose shape
+   * depends on the block.
+   */
+  def collisionMesh: Mesh = null
+
   /**
    * @return Default hitbox according to block config file
    */
@@ -7,26 +7,67 @@ import scala.collection.mutable
 object BlockLibrary {
   val library: mutable.Map[String,BlockImpl] = new mutable.HashMap[String,BlockImpl]()
 
+  // Block types by global ID
+  @volatile private var byGlobalID: Array[BlockImpl] = new Array[BlockImpl](0)
+
   // Make dead sure that Air gets registered regardless of class loading order, so register it here
   registerBlockType("Air", Air)
 
-  def lookupBlockType(name: String): BlockImpl = {
+  // Chunks are generated on several threads, so lookups that might load a type are serialized
+  def lookupBlockType(name: String): BlockImpl = synchronized {
     val option: Option[BlockImpl] = library.get(name)
     option match {
       case Some(impl) => impl
       case None =>
         val impl = loadBlockType(name)
         library.put(name, impl)
+        globalID(impl)
         impl
     }
   }
 
+  /**
+   * Numeric ID of a block type that is the same in every chunk, unlike chunk palette IDs. IDs are
+   * handed out in order of first use, starting with Air as zero.
+   * @param impl
+   * @return
+   */
+  def globalID(impl: BlockImpl): Int = {
+    val id = impl.globalID
+    if (id >= 0) return id
+    synchronized {
+      if (impl.globalID < 0) {
+        impl.globalID = byGlobalID.length
+        byGlobalID = byGlobalID :+ impl
+      }
+      impl.globalID
+    }
+  }
+
+  /**
+   * @param id global ID
+   * @return the block type, or null if no type has that ID
+   */
+  def lookupGlobalID(id: Int): BlockImpl = {
+    val impls = byGlobalID
+    if (id >= 0 && id < impls.length) impls(id) else null
+  }
+
   private def loadBlockType(name: String): BlockImpl = {
     new StaticCubeBlock(name)
   }
 
-  def registerBlockType(name: String, impl: BlockImpl): Unit = {
+  def registerBlockType(name: String, impl: BlockImpl): Unit = synchronized {
     library.put(name, impl)
+    globalID(impl)
+  }
+
+  /**
+   * Forget a block type by name. Its global ID stays assigned, since chunks may still hold it.
+   * @param name
+   */
+  def unregisterBlockType(name: String): Unit = synchronized {
+    library.remove(name)
   }
 
   def getBlockTypes(): Iterable[BlockImpl] = {
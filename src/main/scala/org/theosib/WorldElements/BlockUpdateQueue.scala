@@ -0,0 +1,135 @@
+package org.theosib.WorldElements
+
+import it.unimi.dsi.fastutil.longs.{LongArrayList, LongArrays, LongComparator, LongOpenHashSet}
+import org.theosib.Position.BlockPos
+import org.theosib.Utils.Packing
+
+/**
+ * Block positions waiting for an event, such as an update or a repaint, packed into longs as by
+ * Packing.packBlock.
+ *
+ * Positions can be added from any thread. They go into a pending set, which drops repeats. Each call to
+ * process swaps the pending set for an empty one under the same lock that adds take, so nothing added
+ * concurrently is lost. Positions added while processing, including the ones added by the events being
+ * handled, wait for the next call.
+ *
+ * New positions are sorted by chunk and then by position. That keeps each chunk's events together, and
+ * the order doesn't depend on which threads queued them or when, so a cascade of updates plays out the
+ * same way every time. At most budget positions are handled per call. The rest spill over, and they go
+ * first the next time.
+ *
+ * @param budget most positions to handle per call to process
+ */
+class BlockUpdateQueue(var budget: Int) {
+  import BlockUpdateQueue._
+
+  // Set being added to, and an empty one to swap in for it
+  private var pending = new LongOpenHashSet(initialCapacity)
+  private var spare = new LongOpenHashSet(initialCapacity)
+
+  // Positions taken from pending and not handled yet, in order, and a set of the ones that spilled over
+  // from the last call. Only touched by process.
+  private val batch = new LongArrayList
+  private val spilled = new LongOpenHashSet
+
+  @volatile private var lastProcessed = 0
+  @volatile private var lastSpilled = 0
+  @volatile private var totalProcessed = 0L
+
+  def add(x: Int, y: Int, z: Int): Unit = {
+    if (y < 0 || y >= Packing.blockY_limit) return
+    add(Packing.packBlock(x, y, z))
+  }
+
+  def add(pos: BlockPos): Unit = add(pos.X, pos.Y, pos.Z)
+
+  /**
+   * Add a position that's already packed
+   */
+  def add(packed: Long): Unit = synchronized {
+    pending.add(packed)
+  }
+
+  def addAll(packed: LongArrayList): Unit = synchronized {
+    pending.addAll(packed)
+  }
+
+  /**
+   * Add the 26 blocks around one, taking the lock once
+   */
+  def addSurrounding(x: Int, y: Int, z: Int): Unit = synchronized {
+    for (dy <- -1 to 1; dz <- -1 to 1; dx <- -1 to 1) {
+      val by = y + dy
+      if ((dx != 0 || dy != 0 || dz != 0) && by >= 0 && by < Packing.blockY_limit) {
+        pending.add(Packing.packBlock(x + dx, by, z + dz))
+      }
+    }
+  }
+
+  /**
+   * Hand up to budget positions to f, the ones that spilled over from last time first. Only one thread
+   * may call this at a time.
+   * @return number of positions handled
+   */
+  def process(f: Long => Unit): Int = {
+    val drained = synchronized {
+      val set = pending
+      pending = spare
+      spare = set
+      set
+    }
+
+    val start = batch.size
+    val it = drained.iterator()
+    while (it.hasNext) {
+      val p = it.nextLong()
+      if (spilled.isEmpty || !spilled.contains(p)) batch.add(p)
+    }
+    // Don't keep a burst's worth of table around
+    drained.clear()
+    drained.trim(initialCapacity)
+    LongArrays.quickSort(batch.elements(), start, batch.size, chunkOrder)
+
+    val count = batch.size.min(budget)
+    val positions = batch.elements()
+    var i = 0
+    while (i < count) {
+      f(positions(i))
+      i += 1
+    }
+
+    batch.removeElements(0, count)
+    spilled.clear()
+    if (!batch.isEmpty) spilled.addAll(batch)
+
+    lastProcessed = count
+    lastSpilled = batch.size
+    totalProcessed += count
+    count
+  }
+
+  /**
+   * @return number of positions waiting, roughly, since other threads may be adding
+   */
+  def size: Int = synchronized { pending.size } + lastSpilled
+
+  def isEmpty: Boolean = size == 0
+
+  def processedLastTime: Int = lastProcessed
+  def spilledLastTime: Int = lastSpilled
+  def processedCount: Long = totalProcessed
+
+  def report(): String = {
+    s"handled ${lastProcessed} (${totalProcessed} total), ${lastSpilled} spilled over, budget ${budget}"
+  }
+}
+
+object BlockUpdateQueue {
+  val initialCapacity = 1024
+
+  // Chunk first, then position within the chunk
+  private val chunkOrder: LongComparator = (a: Long, b: Long) => {
+    val c = java.lang.Long.compare(Packing.blockToChunk(a), Packing.blockToChunk(b))
+    if (c != 0) c else java.lang.Long.compare(a, b)
+  }
+}
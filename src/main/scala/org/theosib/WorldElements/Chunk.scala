@@ -5,7 +5,12 @@ import org.theosib.GraphicsEngine.Mesh
 import org.theosib.Position.{BlockPos, ChunkPos}
 import org.theosib.WorldElements.Chunk.{chunkBlockIndex, chunkStorageSize, indexToTuple}
 
-import scala.collection.mutable
+import org.theosib.Adaptors.Window
+import it.unimi.dsi.fastutil.ints.{Int2ObjectOpenHashMap, IntArrayList}
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+
+import java.io.{DataInputStream, DataOutputStream, IOException}
+import java.util.concurrent.locks.StampedLock
 import scala.collection.mutable.ArrayBuffer
 
 /**
@@ -16,23 +21,50 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
   @inline
   def getChunkPos() = chunkPos
 
+  // Key of this chunk in ChunkMap
+  val packedPos: Long = chunkPos.packed()
+
   // save time info
   private var lastSaveTime: Double = 0
   private var unloadedTime: Double = 0
-  private var modified: Boolean = false
-  private var needsTicks: Boolean = false
+  // Changes made, and how many of them are on disk. Counted rather than flagged so that a change made
+  // while a save is in flight isn't marked saved with it.
+  @volatile private var modCount: Int = 0
+  @volatile private var savedCount: Int = 0
+
+  // Indices of the blocks whose type wants game ticks, in no particular order, and where each index is in
+  // the list (-1 if absent). The positions are only allocated once some block needs ticks.
+  private val tickList = new IntArrayList(0)
+  private var tickSlot: Array[Short] = null
+
+  // Mapping from block index to block ID, bit-packed against the palette below
+  val blockStorage: PalettedBlockStorage = new PalettedBlockStorage()
+
+  // Sparse mapping from block index to custom mesh, or null if there are none. This is replaced rather
+  // than modified, since mesh builders read it from other threads.
+  @volatile private var meshes: Int2ObjectOpenHashMap[Mesh] = null
 
-  // Mapping from block index to block ID
-  var blockStorage: Array[Short] = new Array[Short](chunkStorageSize)
+  // Palette: mapping from block type ID number to implementation. IDs no longer in use are null.
+  @volatile private var id2impl: Array[BlockImpl] = new Array[BlockImpl](4)
 
-  // Mapping from block index to optional custom mesh
-  private var meshes: Array[Mesh] = new Array[Mesh](chunkStorageSize)
+  // Palette: mapping from block type ID number to BlockLibrary global ID, kept in step with id2impl
+  @volatile private var id2global: Array[Int] = new Array[Int](4)
 
-  // Mapping from block type ID number to implementation
-  private val id2impl: ArrayBuffer[BlockImpl] = new ArrayBuffer[BlockImpl]()
+  // Number of blocks in the chunk using each ID
+  private var idCounts: Array[Int] = new Array[Int](4)
+
+  // One past the highest ID handed out
+  private var paletteSize: Int = 0
 
   // Mapping from block type name to block type ID number
-  private val name2id: mutable.Map[String,Short] = new mutable.HashMap[String,Short]()
+  private val name2id: Object2IntOpenHashMap[String] = new Object2IntOpenHashMap[String]()
+  name2id.defaultReturnValue(-1)
+
+  // Writers hold the chunk lock, and also take this write lock around anything that changes what a palette
+  // ID means: handing one out, freeing one, renumbering, and loading. Readers on other threads look up a
+  // storage entry and its palette entry optimistically and retry under the read lock if one of those
+  // happened in between, so they never pair an ID with the wrong palette.
+  private val paletteLock = new StampedLock
 
   lazy val view: ChunkView = new ChunkView(this)
   def getChunkView: ChunkView = view
@@ -44,19 +76,20 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
    * @return
    */
   def getMesh(index: Int): Mesh = {
-    val mesh = meshes(index)
-    if (mesh != null) return mesh
-    getDefaultMesh(blockStorage(index))
+    val m = meshes
+    if (m != null) {
+      val mesh = m.get(index)
+      if (mesh != null) return mesh
+    }
+    getDefaultMesh(readImpl(index))
   }
 
   /**
    * Get default mesh from implementation of block
-   * @param id block type ID
+   * @param impl block type, or null for air
    * @return
    */
-  private def getDefaultMesh(id: Int): Mesh = {
-    val impl = id2impl(id)
-    println(s"Default mesh for id=${id} is ${impl}, texDefault=${impl.getDefaultMesh().getTexture}, texMesh=${impl.getMesh(this).getTexture}")
+  private def getDefaultMesh(impl: BlockImpl): Mesh = {
     if (impl == null) {
       Air.getDefaultMesh()
     } else {
@@ -64,16 +97,80 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
     }
   }
 
+  /**
+   * Face culling info (see ChunkView.cullInfo) for each palette ID, zero for air and unused IDs
+   */
+  private def paletteCullInfo(): Array[Int] = {
+    val table = new Array[Int](paletteSize)
+    for (id <- 1 until paletteSize) {
+      val impl = id2impl(id)
+      if (impl != null) table(id) = ChunkView.cullInfo(impl.getMesh(this))
+    }
+    table
+  }
+
+  /**
+   * Fill in face culling info for every block, from one consistent view of the storage and palette
+   * @param out receives ChunkView.cullInfo of each block index
+   */
+  def fillCullInfo(out: Array[Int]): Unit = synchronized {
+    val table = paletteCullInfo()
+    blockStorage.unpack(out)
+    var index = 0
+    while (index < chunkStorageSize) {
+      out(index) = table(out(index))
+      index += 1
+    }
+
+    val m = meshes
+    if (m != null) m.int2ObjectEntrySet().forEach { e =>
+      if (out(e.getIntKey) != 0) out(e.getIntKey) = ChunkView.cullInfo(e.getValue)
+    }
+  }
+
+  /**
+   * Fill in face culling info for the layer of blocks on one side of the chunk, for a neighboring chunk to
+   * cull its own faces against
+   * @param face side of this chunk
+   * @param out receives 256 entries, indexed as in ChunkView.layerIndex
+   */
+  def fillCullLayer(face: Int, out: Array[Int]): Unit = synchronized {
+    val table = paletteCullInfo()
+    val m = meshes
+    for (b <- 0 until 16; a <- 0 until 16) {
+      val index = ChunkView.layerIndex(face, a, b)
+      var info = table(blockStorage(index))
+      if (info != 0 && m != null) {
+        val mesh = m.get(index)
+        if (mesh != null) info = ChunkView.cullInfo(mesh)
+      }
+      out(a | (b << 4)) = info
+    }
+  }
+
   /**
    * Set a custom mesh for this block
    * @param index
    * @param mesh
    */
   def setMesh(index: Int, mesh: Mesh): Unit = {
-    meshes(index) = mesh
+    replaceMesh(index, mesh)
     requestVisualUpdate(index)
   }
 
+  /**
+   * Copy the custom mesh map with one entry changed. Custom meshes are rare, so copying is cheaper than
+   * locking every reader.
+   */
+  private def replaceMesh(index: Int, mesh: Mesh): Unit = {
+    val old = meshes
+    if (mesh == null && (old == null || !old.containsKey(index))) return
+
+    val m = if (old == null) new Int2ObjectOpenHashMap[Mesh]() else old.clone()
+    if (mesh == null) m.remove(index) else m.put(index, mesh)
+    meshes = if (m.isEmpty) null else m
+  }
+
   /**
    * Compute BlockPos from index
    * @param index
@@ -91,41 +188,259 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
 
   /**
    * Each chunk maintains its own mapping from block type to ID so that the numerical representation
-   * remains compact. This looks up the ID for a block type, creating a new one if necessary.
-   * TODO: Do locking for new blocks
+   * remains compact. This looks up the ID for a block type, creating a new one if necessary. An ID that
+   * isn't stored anywhere yet can be freed again by the next block change, so callers that aren't storing
+   * it right away under the chunk lock must not let the chunk change in between.
    * @param name Name of block type
    * @return
    */
-  def getBlockID(name: String): Int = {
-    val option = name2id.get(name)
-    option match {
-      case Some(id) => id
-      case None =>
-        val impl: BlockImpl = BlockLibrary.lookupBlockType(name)
-        val id = id2impl.length
-        id2impl.append(impl)
-        name2id.put(name, id.toShort)
-        id
-    }
+  def getBlockID(name: String): Int = synchronized {
+    val id = name2id.getInt(name)
+    if (id >= 0) id else allocateID(BlockLibrary.lookupBlockType(name), name)
   }
 
   /**
    * Each chunk maintains its own mapping from block type to ID so that the numerical representation
    * remains compact. This looks up the ID for a block type, creating a new one if necessary.
-   * TODO: Do locking for new blocks
    * @param impl Implementation of block type
    * @return
    */
-  def getBlockID(impl: BlockImpl): Int = {
-    println(s"${impl} ${name2id}")
-    val option = name2id.get(impl.getName)
-    option match {
-      case Some(id) => id
-      case None =>
-        val id = id2impl.length
-        id2impl.append(impl)
-        name2id.put(impl.getName, id.toShort)
-        id
+  def getBlockID(impl: BlockImpl): Int = synchronized {
+    val id = name2id.getInt(impl.getName)
+    if (id >= 0) id else allocateID(impl, impl.getName)
+  }
+
+  /**
+   * Add a block type to the palette, reusing a freed ID if there is one. Called with the chunk lock held.
+   */
+  private def allocateID(impl: BlockImpl, name: String): Int = {
+    val stamp = paletteLock.writeLock()
+    try {
+      allocateIDLocked(impl, name)
+    } finally {
+      paletteLock.unlockWrite(stamp)
+    }
+  }
+
+  private def allocateIDLocked(impl: BlockImpl, name: String): Int = {
+    var id = 1
+    while (id < paletteSize && id2impl(id) != null) id += 1
+    if (id > 0xffff) throw new IllegalStateException(s"Too many block types in ${this}")
+
+    if (id >= id2impl.length) {
+      val newSize = id2impl.length * 2
+      id2impl = java.util.Arrays.copyOf(id2impl, newSize)
+      id2global = java.util.Arrays.copyOf(id2global, newSize)
+      idCounts = java.util.Arrays.copyOf(idCounts, newSize)
+    }
+    if (paletteSize == 0) id = 0
+
+    id2impl(id) = impl
+    id2global(id) = BlockLibrary.globalID(impl)
+    idCounts(id) = 0
+    if (id >= paletteSize) paletteSize = id + 1
+    name2id.put(name, id)
+    id
+  }
+
+  @inline
+  private def lookupImpl(id: Int): BlockImpl = {
+    val impls = id2impl
+    if (id < impls.length) impls(id) else null
+  }
+
+  @inline
+  private def lookupGlobal(id: Int): Int = {
+    val globals = id2global
+    if (id < globals.length) globals(id) else 0
+  }
+
+  /**
+   * Block type at an index, or null for air, consistent with the palette even while another thread
+   * changes the chunk
+   */
+  private def readImpl(index: Int): BlockImpl = {
+    val stamp = paletteLock.tryOptimisticRead()
+    val impl = lookupImpl(blockStorage(index))
+    if (paletteLock.validate(stamp)) {
+      impl
+    } else {
+      val read = paletteLock.readLock()
+      try lookupImpl(blockStorage(index)) finally paletteLock.unlockRead(read)
+    }
+  }
+
+  /**
+   * Store a block ID, keeping the palette counts up to date. When a block type disappears from the
+   * chunk, its ID is freed, and the palette is compacted if that lets the storage use narrower entries.
+   * @param settle false to leave freeing and compaction to the caller, for bulk stores whose IDs aren't
+   * all in the chunk yet
+   */
+  private def storeID(index: Int, id: Int, settle: Boolean = true): Unit = synchronized {
+    val old = blockStorage(index)
+    if (old == id) return
+    val oldImpl = lookupImpl(old)
+    if (oldImpl != null && oldImpl.wantsGameTicks()) removeTick(index)
+    val newImpl = lookupImpl(id)
+    if (newImpl != null && newImpl.wantsGameTicks()) addTick(index)
+
+    blockStorage(index) = id
+    idCounts(id) += 1
+    idCounts(old) -= 1
+    if (settle && idCounts(old) == 0) {
+      // Air keeps its ID even when it's absent
+      if (old != 0) releaseID(old)
+      shrinkIfPossible()
+    }
+  }
+
+  /**
+   * Free every ID but air's that no block uses, and compact the palette if that helps
+   */
+  private def releaseUnused(): Unit = {
+    for (id <- 1 until paletteSize) {
+      if (id2impl(id) != null && idCounts(id) == 0) releaseID(id)
+    }
+    shrinkIfPossible()
+  }
+
+  private def addTick(index: Int): Unit = {
+    if (tickSlot == null) {
+      tickSlot = new Array[Short](chunkStorageSize)
+      java.util.Arrays.fill(tickSlot, (-1).toShort)
+    }
+    if (tickSlot(index) >= 0) return
+    tickSlot(index) = tickList.size.toShort
+    tickList.add(index)
+  }
+
+  private def removeTick(index: Int): Unit = {
+    if (tickSlot == null) return
+    val slot = tickSlot(index)
+    if (slot < 0) return
+    // Move the last entry into the hole
+    val last = tickList.popInt()
+    if (last != index) {
+      tickList.set(slot, last)
+      tickSlot(last) = slot
+    }
+    tickSlot(index) = -1
+  }
+
+  /**
+   * Rebuild the tick list from scratch, after all of the blocks were replaced
+   */
+  private def rebuildTicks(): Unit = {
+    tickList.clear()
+    if (tickSlot != null) java.util.Arrays.fill(tickSlot, (-1).toShort)
+    for (index <- 0 until chunkStorageSize) {
+      val impl = lookupImpl(blockStorage(index))
+      if (impl != null && impl.wantsGameTicks()) addTick(index)
+    }
+  }
+
+  /**
+   * @return number of blocks in the chunk that want game ticks
+   */
+  def numTickingBlocks: Int = synchronized { tickList.size }
+
+  private def releaseID(id: Int): Unit = {
+    val stamp = paletteLock.writeLock()
+    try {
+      name2id.removeInt(id2impl(id).getName)
+      id2impl(id) = null
+      id2global(id) = 0
+    } finally {
+      paletteLock.unlockWrite(stamp)
+    }
+  }
+
+  /**
+   * Compact the palette if the types still present would fit narrower storage entries
+   */
+  private def shrinkIfPossible(): Unit = {
+    // Air stays at zero, and the remaining types would be renumbered from 1
+    var live = 0
+    var distinct = if (idCounts(0) > 0) 1 else 0
+    for (i <- 1 until paletteSize) {
+      if (id2impl(i) != null && idCounts(i) > 0) {
+        live += 1
+        distinct += 1
+      }
+    }
+    val bits = if (distinct <= 1) 0 else PalettedBlockStorage.bitsFor(live)
+    if (bits < blockStorage.bitsPerEntry) compactPalette()
+  }
+
+  /**
+   * Renumber the palette densely, dropping unused types, and repack the storage to match
+   */
+  private def compactPalette(): Unit = {
+    val stamp = paletteLock.writeLock()
+    try {
+      compactPaletteLocked()
+    } finally {
+      paletteLock.unlockWrite(stamp)
+    }
+  }
+
+  private def compactPaletteLocked(): Unit = {
+    val remap = new Array[Int](paletteSize)
+    val impls = new Array[BlockImpl](id2impl.length)
+    val globals = new Array[Int](id2impl.length)
+    val counts = new Array[Int](idCounts.length)
+    impls(0) = id2impl(0)
+    counts(0) = idCounts(0)
+    var next = 1
+    var distinct = if (idCounts(0) > 0) 1 else 0
+
+    for (id <- 1 until paletteSize) {
+      val impl = id2impl(id)
+      if (impl != null) {
+        if (idCounts(id) > 0) {
+          remap(id) = next
+          impls(next) = impl
+          globals(next) = id2global(id)
+          counts(next) = idCounts(id)
+          name2id.put(impl.getName, next)
+          next += 1
+          distinct += 1
+        } else {
+          name2id.removeInt(impl.getName)
+        }
+      }
+    }
+
+    blockStorage.repack(remap, next - 1, distinct)
+    id2global = globals
+    id2impl = impls
+    idCounts = counts
+    paletteSize = next
+  }
+
+  /**
+   * Approximate heap footprint of the block data, in bytes
+   */
+  def memoryUsage: Int = {
+    val m = meshes
+    blockStorage.memoryUsage + id2impl.length * 8 + idCounts.length * 4 + (if (m == null) 0 else m.size * 32)
+  }
+
+  /**
+   * Block type at an index as a BlockLibrary global ID, which unlike the chunk's own IDs can be compared
+   * across chunks. This is the allocation-free path used by World.getBlockId.
+   * @param index block in chunk
+   * @return
+   */
+  @inline
+  def getGlobalID(index: Int): Int = {
+    val stamp = paletteLock.tryOptimisticRead()
+    val global = lookupGlobal(blockStorage(index))
+    if (paletteLock.validate(stamp)) {
+      global
+    } else {
+      val read = paletteLock.readLock()
+      try lookupGlobal(blockStorage(index)) finally paletteLock.unlockRead(read)
     }
   }
 
@@ -136,7 +451,8 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
    */
   @inline
   def getBlockImpl(index: Int): BlockImpl = {
-    id2impl(blockStorage(index))
+    val impl = readImpl(index)
+    if (impl == null) Air else impl
   }
 
   /**
@@ -206,21 +522,23 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
 //    }
 
     val index = oldBlock.getStorageIndex()
-    val blockID = getBlockID(name)
-
-    blockStorage(index) = blockID.toShort
-    meshes(index) = null;
+    // Allocate and store together, so that no other change can free the new ID before it's in use
+    val blockID = synchronized {
+      val id = getBlockID(name)
+      storeID(index, id)
+      id
+    }
+    replaceMesh(index, null)
 
     if (blockID != 0) {
       val impl = getBlockImpl(index)
-      if (impl.wantsGameTicks()) needsTicks = true
       val block = new Block(this, pos, index, impl)
       block.placeEvent()
       block.repaintEvent()
     }
 
     requestVisualUpdate(index)
-    modified = true
+    markModified()
   }
 
   /**
@@ -232,6 +550,11 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
     if (block != null) block.updateEvent()
   }
 
+  def updateBlock(index: Int): Unit = {
+    val block = getBlockNullable(index)
+    if (block != null) block.updateEvent()
+  }
+
   /**
    * Queue all blocks for update
    * @param noLoad
@@ -250,11 +573,12 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
    * This is the actual repaint action.
    * @param pos
    */
-  def repaintBlock(pos: BlockPos): Unit = {
-    val block = getBlockNullable(pos)
+  def repaintBlock(pos: BlockPos): Unit = repaintBlock(chunkBlockIndex(pos))
+
+  def repaintBlock(index: Int): Unit = {
+    val block = getBlockNullable(index)
     if (block != null) {
       block.repaintEvent()
-      println(s"Marking block ${block} as visually updated")
       requestVisualUpdate(block.getStorageIndex())
     }
   }
@@ -268,24 +592,33 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
       val id = blockStorage(index)
       if (id != 0) nonAirBlocks.addOne(indexToBlockPos(index))
     }
-    println(s"repainting ${nonAirBlocks}")
     world.repaintBlocks(nonAirBlocks)
   }
 
-  def tickAllBlocks(): Unit = {
-    if (!needsTicks) return;
+  /**
+   * Send a game tick to every block whose type wants them
+   * @return number of blocks ticked
+   */
+  def tickAllBlocks(): Int = {
+    // Ticks may change blocks, and so the list, so work from a copy of it
+    val indices = Chunk.tickScratch.get()
+    val count = synchronized {
+      tickList.getElements(0, indices, 0, tickList.size)
+      tickList.size
+    }
 
-    for (index <- 0 until chunkStorageSize) {
-      val id = blockStorage(index)
-      if (id != 0) {
-        val impl = id2impl(id)
-        if (impl.wantsGameTicks()) {
-          val pos = indexToBlockPos(index)
-          val block = new Block(this, pos, index, impl)
-          block.tickEvent(-1)
-        }
+    var ticked = 0
+    for (i <- 0 until count) {
+      val index = indices(i)
+      val impl = readImpl(index)
+      if (impl != null && impl.wantsGameTicks()) {
+        val pos = indexToBlockPos(index)
+        val block = new Block(this, pos, index, impl)
+        block.tickEvent(-1)
+        ticked += 1
       }
     }
+    ticked
   }
 
   /**
@@ -293,15 +626,22 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
    * @param pos
    * @param name
    */
-  def genBlock(pos: BlockPos, name: String): Unit = {
+  def genBlock(pos: BlockPos, name: String): Unit = synchronized {
     val index = chunkBlockIndex(pos)
-    val blockID = getBlockID(name);
-    println(s"ID(${name})=${blockID}")
-    blockStorage(index) = blockID.toShort
+    storeID(index, getBlockID(name))
 
-    if (id2impl(blockID).wantsGameTicks()) needsTicks = true
+    markModified()
+  }
 
-    modified = true
+  /**
+   * For worldgen, set every block at once. Repaint and update will occur later in bulk.
+   * @param ids block ID for each index, from getBlockID with nothing else changing the chunk since
+   */
+  def genBlocks(ids: Array[Int]): Unit = synchronized {
+    // IDs are only freed once all are stored, since some may not be in use until further along
+    for (index <- 0 until chunkStorageSize) storeID(index, ids(index), settle = false)
+    releaseUnused()
+    markModified()
   }
 
   /**
@@ -321,38 +661,113 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
   }
 
   /**
-   * Try to load block from disk
-   * @return
+   * Try to load chunk from disk
+   * @return true if the chunk was found
    */
-  def load(): Boolean = false
+  def load(): Boolean = {
+    val ok = world.regionStorage.loadChunk(this)
+    if (ok) markSaved(modCount)
+    ok
+  }
 
-  def generate(): Unit = {
-    for (x <- 0 until 4; z <- 0 until 4) {
-      genBlock(new BlockPos(x, 0, z), "cobble")
+  private def markModified(): Unit = synchronized {
+    modCount += 1
+  }
+
+  def isModified: Boolean = modCount != savedCount
+
+  /**
+   * Record that a payload has reached the disk. Changes made after it was written stay modified.
+   * @param stamp value returned by writePayload
+   */
+  def markSaved(stamp: Int): Unit = synchronized {
+    // Saves may finish out of order, and an older one mustn't take back a newer one
+    if (stamp - savedCount > 0) {
+      savedCount = stamp
+      lastSaveTime = Window.getCurrentTime
     }
-//    genBlock(new BlockPos(0, 0, 0), "wood")
-    repaintAllBlocks()
   }
 
   /**
-   * Get the corners of chunk, relative to the camera view center. This is used for frustum culling.
-   * @param center
-   * @return
+   * Serialize palette and block storage for saving. Custom meshes aren't saved, since block
+   * implementations set them again when repainted. Holds the chunk lock so that a concurrent block
+   * change can't renumber the palette halfway through. The chunk stays modified until markSaved is
+   * called with the returned stamp, once the payload is on disk.
+   * @param out
+   * @return stamp of the changes the payload holds
    */
-  def getCorners(center: BlockPos): Array[BlockPos] = {
-    val x = (chunkPos.X << 4) - center.X
-    val y = (chunkPos.Y << 4) - center.Y
-    val z = (chunkPos.Z << 4) - center.Z
-    val arr = new Array[BlockPos](8)
-    arr(0) = new BlockPos(x, y, z)
-    arr(1) = new BlockPos(x + 16, y, z)
-    arr(2) = new BlockPos(x, y + 16, z)
-    arr(3) = new BlockPos(x + 16, y + 16, z)
-    arr(4) = new BlockPos(x, y, z + 16)
-    arr(5) = new BlockPos(x + 16, y, z + 16)
-    arr(6) = new BlockPos(x, y + 16, z + 16)
-    arr(7) = new BlockPos(x + 16, y + 16, z + 16)
-    arr
+  def writePayload(out: DataOutputStream): Int = synchronized {
+    out.writeByte(Chunk.payloadVersion)
+    out.writeShort(paletteSize)
+    for (id <- 0 until paletteSize) {
+      val impl = id2impl(id)
+      out.writeUTF(if (impl == null || idCounts(id) == 0) "" else impl.getName)
+    }
+
+    val bits = blockStorage.bitsPerEntry
+    out.writeByte(bits)
+    if (bits == 0) {
+      out.writeShort(blockStorage.uniformValue)
+    } else {
+      blockStorage.rawData.foreach(out.writeLong)
+    }
+    modCount
+  }
+
+  /**
+   * Restore palette and block storage written by writePayload into this freshly created chunk
+   * @param in
+   */
+  def readPayload(in: DataInputStream): Unit = synchronized {
+    val v = in.readByte()
+    if (v != Chunk.payloadVersion) throw new IOException(s"Unsupported chunk payload version ${v}")
+
+    val size = in.readUnsignedShort()
+    val impls = new Array[BlockImpl](Integer.highestOneBit(size.max(2) - 1) << 1)
+    for (id <- 0 until size) {
+      val name = in.readUTF()
+      if (name.nonEmpty) impls(id) = BlockLibrary.lookupBlockType(name)
+    }
+    impls(0) = Air
+
+    val bits = in.readUnsignedByte()
+    val uniform = if (bits == 0) in.readUnsignedShort() else 0
+    val data = if (bits == 0) null else new Array[Long](chunkStorageSize * bits / 64)
+    if (data != null) for (i <- data.indices) data(i) = in.readLong()
+
+    val stamp = paletteLock.writeLock()
+    try {
+      loadPalette(impls, size, bits, data, uniform)
+    } finally {
+      paletteLock.unlockWrite(stamp)
+    }
+    rebuildTicks()
+  }
+
+  private def loadPalette(impls: Array[BlockImpl], size: Int, bits: Int, data: Array[Long], uniform: Int): Unit = {
+    blockStorage.load(bits, data, uniform)
+
+    name2id.clear()
+    val counts = new Array[Int](impls.length)
+    for (index <- 0 until chunkStorageSize) counts(blockStorage(index)) += 1
+    for (id <- 0 until size) {
+      val impl = impls(id)
+      if (impl != null) {
+        name2id.put(impl.getName, id)
+      }
+    }
+
+    idCounts = counts
+    paletteSize = size
+    id2global = impls.map(impl => if (impl == null) 0 else BlockLibrary.globalID(impl))
+    id2impl = impls
+  }
+
+  /**
+   * Fill in a freshly created chunk. The world repaints it once it's been stored.
+   */
+  def generate(): Unit = {
+    world.terrainGenerator.generate(this)
   }
 
   override def toString: String = {
@@ -360,13 +775,20 @@ class Chunk(val world: World, val chunkPos: ChunkPos) {
   }
 
   /* Initialization */
-  // Get Air registered as block ID zero
+  // Get Air registered as block ID zero, which the empty storage is filled with
   getBlockID(Air)
+  idCounts(0) = chunkStorageSize
 }
 
 object Chunk {
   val chunkStorageSize: Int = 16 * 16 * 16;
 
+  // Copy of a chunk's tick list, for each thread that ticks chunks
+  private val tickScratch = ThreadLocal.withInitial(() => new Array[Int](chunkStorageSize))
+
+  // Format of writePayload
+  val payloadVersion: Int = 1
+
   /**
    * Decompose chunk block index into in-chunk coordinates
    * @param index
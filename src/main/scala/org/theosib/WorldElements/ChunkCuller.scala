@@ -0,0 +1,212 @@
+package org.theosib.WorldElements
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap
+import org.joml.{Matrix4fc, Vector3dc}
+import org.theosib.Geometry.Frustum
+import org.theosib.Position.BlockPos
+import org.theosib.Utils.{Facing, Packing}
+import org.theosib.WorldElements.ChunkCuller.{Region, regionShift, useCaveCulling}
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Decides which chunks are drawn each frame. The frustum planes are extracted once per frame. Chunks are
+ * grouped into regions of whole chunk columns, so that a region entirely outside the frustum is skipped
+ * with one test and one entirely inside needs no per-chunk tests.
+ *
+ * On top of that, cave culling walks outward from the camera's chunk, only stepping from one chunk to the
+ * next through faces that the chunk's visibility (see ChunkView.canSeeThrough) says are connected, and
+ * never back toward the camera. Chunks sealed off behind solid terrain are never reached. Unloaded
+ * chunks can't be walked through, so if the camera itself is in one, only the frustum is used.
+ *
+ * Only to be used from the GL thread.
+ */
+class ChunkCuller(val world: World) {
+  val frustum = new Frustum
+
+  private var frame = 0
+
+  // Regions by packed (regionX, 0, regionZ), rebuilt whenever chunks are added or removed
+  private val regions = new Long2ObjectOpenHashMap[Region]
+  private var regionsSize = -1
+  private var regionsVersion = -1
+
+  // Breadth-first queue of chunks, the face each was entered through, and the directions taken to reach it
+  private var queue = new Array[Chunk](1024)
+  private var queueFrom = new Array[Int](1024)
+  private var queueDirs = new Array[Int](1024)
+
+  // Chunks whose tests were decided by their region alone, for reporting
+  private var lastRegionCulled = 0
+  def getLastRegionCulled: Int = lastRegionCulled
+
+  /**
+   * Find the chunks to draw this frame
+   * @param cameraPos camera position
+   * @param viewCenter position that the view matrix is relative to
+   * @param projection projection matrix
+   * @param view view matrix, relative to viewCenter
+   * @param out receives the visible chunks, nearest first when cave culling
+   */
+  def cull(cameraPos: Vector3dc, viewCenter: BlockPos, projection: Matrix4fc, view: Matrix4fc,
+           out: ArrayBuffer[Chunk]): Unit = {
+    frame += 1
+    frustum.set(projection, view)
+    updateRegions()
+    lastRegionCulled = 0
+
+    val cx = Math.floor(cameraPos.x).toInt >> 4
+    val cy = Math.floor(cameraPos.y).toInt >> 4
+    val cz = Math.floor(cameraPos.z).toInt >> 4
+    val start = world.chunkStorage.get(Packing.packChunk(cx, cy, cz))
+
+    if (useCaveCulling && start != null) {
+      walk(start, viewCenter, out)
+    } else {
+      testAll(viewCenter, out)
+    }
+  }
+
+  /**
+   * Frustum test every loaded chunk, a region at a time
+   */
+  private def testAll(viewCenter: BlockPos, out: ArrayBuffer[Chunk]): Unit = {
+    val it = regions.values().iterator()
+    while (it.hasNext) {
+      val region = it.next()
+      val state = regionState(region, viewCenter)
+      if (state == Frustum.Outside) {
+        lastRegionCulled += region.chunks.length
+      } else if (state == Frustum.Inside) {
+        lastRegionCulled += region.chunks.length
+        out ++= region.chunks
+      } else {
+        region.chunks.foreach { chunk =>
+          if (chunk.getChunkView.insideFrustum(frustum, viewCenter)) out += chunk
+        }
+      }
+    }
+  }
+
+  /**
+   * Breadth-first walk from the camera's chunk through connected faces
+   */
+  private def walk(start: Chunk, viewCenter: BlockPos, out: ArrayBuffer[Chunk]): Unit = {
+    var head = 0
+    var tail = 0
+    start.getChunkView.cullFrame = frame
+    out += start
+    queue(tail) = start
+    queueFrom(tail) = -1
+    queueDirs(tail) = 0
+    tail += 1
+
+    while (head < tail) {
+      val chunk = queue(head)
+      val from = queueFrom(head)
+      val dirs = queueDirs(head)
+      queue(head) = null
+      head += 1
+
+      val view = chunk.getChunkView
+      val pos = chunk.getChunkPos()
+      var dir = 0
+      while (dir < Facing.NUM_FACES) {
+        // Going back the way we came can't reveal anything that isn't reachable some other way
+        if ((dirs & Facing.bitMask(Facing.oppositeFace(dir))) == 0 && (from < 0 || view.canSeeThrough(from, dir))) {
+          val (dx, dy, dz) = Facing.int_tuple(dir)
+          val next = world.chunkStorage.get(Packing.packChunk(pos.X + dx, pos.Y + dy, pos.Z + dz))
+          if (next != null && next.getChunkView.cullFrame != frame) {
+            next.getChunkView.cullFrame = frame
+            if (isVisible(next, viewCenter)) {
+              out += next
+              if (tail == queue.length) growQueue()
+              queue(tail) = next
+              queueFrom(tail) = Facing.oppositeFace(dir)
+              queueDirs(tail) = dirs | Facing.bitMask(dir)
+              tail += 1
+            }
+          }
+        }
+        dir += 1
+      }
+    }
+  }
+
+  private def isVisible(chunk: Chunk, viewCenter: BlockPos): Boolean = {
+    val pos = chunk.getChunkPos()
+    val region = regions.get(ChunkCuller.regionKey(pos.X, pos.Z))
+    val state = if (region == null) Frustum.Intersect else regionState(region, viewCenter)
+    if (state != Frustum.Intersect) {
+      lastRegionCulled += 1
+      return state == Frustum.Inside
+    }
+    chunk.getChunkView.insideFrustum(frustum, viewCenter)
+  }
+
+  /**
+   * Frustum test of a region's bounds, done at most once per frame
+   */
+  private def regionState(region: Region, viewCenter: BlockPos): Int = {
+    if (region.frame != frame) {
+      region.frame = frame
+      val x = ((region.x << (regionShift + 4)) - viewCenter.X).toFloat
+      val z = ((region.z << (regionShift + 4)) - viewCenter.Z).toFloat
+      val y0 = ((region.minY << 4) - viewCenter.Y).toFloat
+      val y1 = (((region.maxY + 1) << 4) - viewCenter.Y).toFloat
+      val size = (16 << regionShift).toFloat
+      region.state = frustum.testBox(x, y0, z, x + size, y1, z + size)
+    }
+    region.state
+  }
+
+  private def updateRegions(): Unit = {
+    val storage = world.chunkStorage
+    if (storage.size == regionsSize && storage.version == regionsVersion) return
+    regionsSize = storage.size
+    regionsVersion = storage.version
+
+    regions.clear()
+    storage.values().foreach { chunk =>
+      val pos = chunk.getChunkPos()
+      val key = ChunkCuller.regionKey(pos.X, pos.Z)
+      var region = regions.get(key)
+      if (region == null) {
+        region = new Region(pos.X >> regionShift, pos.Z >> regionShift)
+        region.minY = pos.Y
+        region.maxY = pos.Y
+        regions.put(key, region)
+      }
+      region.chunks += chunk
+      region.minY = region.minY.min(pos.Y)
+      region.maxY = region.maxY.max(pos.Y)
+    }
+  }
+
+  private def growQueue(): Unit = {
+    val n = queue.length * 2
+    queue = java.util.Arrays.copyOf(queue, n)
+    queueFrom = java.util.Arrays.copyOf(queueFrom, n)
+    queueDirs = java.util.Arrays.copyOf(queueDirs, n)
+  }
+}
+
+object ChunkCuller {
+  // Skip chunks that can't be seen through the terrain between them and the camera
+  @volatile var useCaveCulling: Boolean = true
+
+  // Regions are 2^regionShift chunk columns on a side
+  val regionShift = 2
+
+  def regionKey(chunkX: Int, chunkZ: Int): Long = Packing.packChunk(chunkX >> regionShift, 0, chunkZ >> regionShift)
+
+  class Region(val x: Int, val z: Int) {
+    val chunks = new ArrayBuffer[Chunk]
+    var minY = 0
+    var maxY = 0
+
+    // Frustum test result, and the frame it was computed in
+    var state: Int = Frustum.Intersect
+    var frame: Int = -1
+  }
+}
@@ -0,0 +1,116 @@
+package org.theosib.WorldElements
+
+import java.util.concurrent.atomic.AtomicReferenceArray
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Map from packed chunk position (see ChunkPos.packed) to loaded chunk, using open addressing on the
+ * chunk's own packed position, so lookups neither box keys nor allocate.
+ *
+ * Lookups take no lock and may run on any thread. Changes are serialized on the map. Inserts go into an
+ * empty slot of the current table, which concurrent readers see either before or after the chunk arrives.
+ * Growing and removing build a new table and publish it whole, so a reader never sees a half-moved
+ * table.
+ */
+class ChunkMap {
+  @volatile private var table = new AtomicReferenceArray[Chunk](ChunkMap.initialCapacity)
+  private var count = 0
+
+  // Incremented whenever a chunk is removed, so that caches of chunk references know to drop them
+  @volatile private var removals = 0
+
+  def version: Int = removals
+
+  def size: Int = count
+
+  /**
+   * @param key packed chunk position
+   * @return the chunk, or null if it isn't loaded
+   */
+  def get(key: Long): Chunk = {
+    val t = table
+    val mask = t.length() - 1
+    var i = ChunkMap.hash(key) & mask
+    while (true) {
+      val c = t.get(i)
+      if (c == null) return null
+      if (c.packedPos == key) return c
+      i = (i + 1) & mask
+    }
+    null
+  }
+
+  /**
+   * Add a chunk, unless one is already stored at its position
+   * @return the chunk already stored, or null if the new one was added
+   */
+  def putIfAbsent(chunk: Chunk): Chunk = synchronized {
+    val already = get(chunk.packedPos)
+    if (already != null) return already
+
+    if ((count + 1) * 2 > table.length()) table = rebuild(table.length() * 2, null)
+    insert(table, chunk)
+    count += 1
+    null
+  }
+
+  /**
+   * Add or replace a chunk
+   */
+  def put(chunk: Chunk): Unit = synchronized {
+    if (get(chunk.packedPos) != null) remove(chunk.packedPos)
+    putIfAbsent(chunk)
+  }
+
+  def remove(key: Long): Chunk = synchronized {
+    val c = get(key)
+    if (c == null) return null
+    table = rebuild(table.length(), c)
+    count -= 1
+    removals += 1
+    c
+  }
+
+  /**
+   * Snapshot of all loaded chunks
+   */
+  def values(): Iterable[Chunk] = {
+    val t = table
+    val out = new ArrayBuffer[Chunk](count)
+    for (i <- 0 until t.length()) {
+      val c = t.get(i)
+      if (c != null) out += c
+    }
+    out
+  }
+
+  private def insert(t: AtomicReferenceArray[Chunk], chunk: Chunk): Unit = {
+    val mask = t.length() - 1
+    var i = ChunkMap.hash(chunk.packedPos) & mask
+    while (t.get(i) != null) i = (i + 1) & mask
+    t.set(i, chunk)
+  }
+
+  private def rebuild(capacity: Int, without: Chunk): AtomicReferenceArray[Chunk] = {
+    val old = table
+    val t = new AtomicReferenceArray[Chunk](capacity)
+    for (i <- 0 until old.length()) {
+      val c = old.get(i)
+      if (c != null && (c ne without)) insert(t, c)
+    }
+    t
+  }
+}
+
+object ChunkMap {
+  val initialCapacity = 256
+
+  /**
+   * Mix the bits of a packed position, since neighboring chunks differ only in a few low bits of each field
+   */
+  @inline
+  def hash(key: Long): Int = {
+    val h = key * 0x9E3779B97F4A7C15L
+    (h ^ (h >>> 32)).toInt
+  }
+}
@@ -1,12 +1,12 @@
 package org.theosib.WorldElements
 
 import org.theosib.Adaptors.Disposable
-import org.theosib.Camera.CameraModel
-import org.theosib.GraphicsEngine.{Mesh, MeshRenderer, Shader, Texture}
+import org.theosib.GraphicsEngine.{BatchRenderer, Mesh, MeshRenderer, QuadList}
 import org.theosib.Position.BlockPos
 import org.theosib.Utils.{Disposer, Facing}
-import org.joml.{Matrix4f, Matrix4fc, Vector3d}
-import org.theosib.WorldElements.ChunkView.{tmpFaceList, tmpMeshList, tmpPosList}
+import org.theosib.Geometry.Frustum
+import org.joml.Vector3d
+import org.theosib.WorldElements.ChunkView.{CullScratch, MeshScratch, allVisible, cullScratch, cullTranslucent, layerIndex, numSlabs, occludes, scratch, slabHeight, slabOf, useGreedyMeshing}
 
 import java.util
 import scala.collection.mutable.ArrayBuffer
@@ -20,6 +20,9 @@ class ChunkView(val chunk: Chunk) extends Disposable {
   // Have any visual changes occurred at all?
   var chunkVisualModified: Boolean = false
 
+  // Merge coplanar faces of opaque blocks into larger quads for this chunk
+  var greedyMeshing: Boolean = useGreedyMeshing
+
   // Which blocks have been modified?
   val blockVisualModified: Array[Boolean] = new Array[Boolean](Chunk.chunkStorageSize)
 
@@ -29,17 +32,29 @@ class ChunkView(val chunk: Chunk) extends Disposable {
 
   @volatile var renderIsValid: Boolean = false
 
+  // Set when a rebuild has been scheduled and cleared once the GL thread has published the result.
+  // While set, the back buffers belong to the builder and no other rebuild may be started.
+  @volatile var buildInFlight: Boolean = false
+
   // Arrays of mesh renderers
   @volatile var render: ArrayBuffer[MeshRenderer] = new ArrayBuffer[MeshRenderer]()
   @volatile var render_alt: ArrayBuffer[MeshRenderer] = new ArrayBuffer[MeshRenderer]()
 
-  // Arrays of mesh renderer for translucent blocks
+  // Mesh renderer for translucent blocks, one per chunk with its quads sorted when drawn
   @volatile var trans: ArrayBuffer[MeshRenderer] = new ArrayBuffer[MeshRenderer]()
   @volatile var trans_alt: ArrayBuffer[MeshRenderer] = new ArrayBuffer[MeshRenderer]()
 
   def getTransRenders(): ArrayBuffer[MeshRenderer] = trans
 
+  // Bumped whenever a block in the slab changes, so that each MeshRenderer can tell which of its slabs
+  // are out of date. Only touched by the thread building this chunk.
+  private val slabVersion = new Array[Int](numSlabs)
+
+  // Origin slot shared by this chunk's opaque renderers when they're drawn through BatchRenderer
+  private val batchSlot = BatchRenderer.allocateSlot()
+
   override def destroy(): Unit = {
+    BatchRenderer.freeSlot(batchSlot)
     Disposer.dispose(render)
     Disposer.dispose(render_alt)
     Disposer.dispose(trans)
@@ -64,7 +79,6 @@ class ChunkView(val chunk: Chunk) extends Disposable {
    * @param index
    */
   def markBlockVisuallyUpdated(index: Int): Unit = {
-    println(s"Marking ${index} needs update")
     blockVisualModified(index) = true
     chunkVisualModified = true
   }
@@ -77,287 +91,451 @@ class ChunkView(val chunk: Chunk) extends Disposable {
     chunkVisualModified = true
   }
 
-  var projectionMatrix: Matrix4fc = null;
-  def setProjectionMatrix(proj: Matrix4fc): Unit = {
-    projectionMatrix = proj;
-  }
+  // Which pairs of faces of this chunk can see each other through its non-opaque blocks, one bit per
+  // (from, to) pair as in canSeeThrough. Until the chunk is first built, everything is assumed visible.
+  @volatile var visibility: Long = allVisible
+
+  // Frame in which ChunkCuller last reached this chunk. Only touched by the GL thread.
+  var cullFrame: Int = -1
+
+  /**
+   * @return true if something entering the chunk through one face might be seen leaving through another
+   */
+  def canSeeThrough(from: Int, to: Int): Boolean = (visibility & (1L << (from * Facing.NUM_FACES + to))) != 0
 
   /**
    * Compute whether or not this chunk is inside the view frustum
-   * @param view View matrix from camera
-   * @param viewCenter World recentering position
+   * @param frustum planes of the frame's view frustum
+   * @param viewCenter World recentering position that the frustum is relative to
    * @return
    */
-  def insideFrustum(view: Matrix4f, viewCenter: BlockPos): Boolean = {
-    val corners = chunk.getCorners(viewCenter)
-    val xform = new Matrix4f()
-    projectionMatrix.mul(view, xform)
-
-    var reduction: Int = -1
-    for (i <- 0 until 8) {
-      val outside = WorldView.outsideFrustum(xform, corners(i))
-      reduction &= outside
-      if (reduction == 0) return true
-    }
-
-    false
+  def insideFrustum(frustum: Frustum, viewCenter: BlockPos): Boolean = {
+    val pos = chunk.getChunkPos()
+    val x = ((pos.X << 4) - viewCenter.X).toFloat
+    val y = ((pos.Y << 4) - viewCenter.Y).toFloat
+    val z = ((pos.Z << 4) - viewCenter.Z).toFloat
+    frustum.intersectsBox(x, y, z, x + 16, y + 16, z + 16)
   }
 
   /**
-   * Cause all block faces to be recomputed
+   * Recompute which faces of every modified block should be shown. Culling works from the raw palette IDs
+   * of the whole chunk, translated once into per-block culling info, plus the boundary layer of each of
+   * the six neighboring chunks. Neighbors that aren't loaded count as air.
    */
   def updateAllBlockFaces(): Unit = {
-    for (i <- 0 until Chunk.chunkStorageSize) {
-      val pos = chunk.indexToBlockPos(i)
-      updateBlockFaces(i, pos)
+    val tmp = cullScratch.get()
+    val info = tmp.info
+    chunk.fillCullInfo(info)
+
+    val pos = chunk.getChunkPos()
+    for (face <- 0 until Facing.NUM_FACES) {
+      val (dx, dy, dz) = Facing.int_tuple(face)
+      val neighbor = chunk.world.getChunkIfLoaded(pos.offset(dx, dy, dz))
+      tmp.neighbors(face) = neighbor
+      if (neighbor == null) {
+        util.Arrays.fill(tmp.layers(face), 0)
+      } else {
+        neighbor.fillCullLayer(Facing.oppositeFace(face), tmp.layers(face))
+      }
+    }
+
+    var dirtySlabs = 0
+    var index = 0
+    while (index < Chunk.chunkStorageSize) {
+      if (blockVisualModified(index)) {
+        blockVisualModified(index) = false
+        blockShowFaces(index) = computeShowFaces(index, tmp).toByte
+        dirtySlabs |= 1 << slabOf(index)
+      }
+      index += 1
+    }
+
+    for (slab <- 0 until numSlabs) {
+      if ((dirtySlabs & (1 << slab)) != 0) slabVersion(slab) += 1
     }
+    if (dirtySlabs != 0) visibility = computeVisibility(tmp)
+
+    // Don't keep neighbors reachable from the scratch space after they're unloaded
+    for (face <- 0 until Facing.NUM_FACES) tmp.neighbors(face) = null
   }
 
   /**
-   * Recompute which faces of a block should be shown
-   * @param index which block
-   * @param pos coordinates of block
+   * Flood fill the blocks that don't hide what's behind them, and record which chunk faces each connected
+   * region touches. Any two faces touched by the same region can see each other.
+   * @param tmp culling info filled in by updateAllBlockFaces
+   * @return visibility bits, as stored in visibility
    */
-  def updateBlockFaces(index: Int, pos: BlockPos): Unit = {
-    if (!blockVisualModified(index)) return;
-    blockVisualModified(index) = false;
-
-    val selfBlock = chunk.getBlock(pos)
-    if (selfBlock.isAir()) return;
+  private def computeVisibility(tmp: CullScratch): Long = {
+    val info = tmp.info
+    val visited = tmp.visited
+    val queue = tmp.queue
+    util.Arrays.fill(visited, false)
+
+    var result = 0L
+    var start = 0
+    while (start < Chunk.chunkStorageSize) {
+      if (!visited(start) && !occludes(info(start))) {
+        visited(start) = true
+        queue(0) = start
+        var head = 0
+        var tail = 1
+        var faces = 0
+
+        while (head < tail) {
+          val index = queue(head)
+          head += 1
+          val x = index & 15
+          val z = (index >> 4) & 15
+          val y = index >> 8
+
+          var face = 0
+          while (face < Facing.NUM_FACES) {
+            var next = -1
+            face match {
+              case Facing.DOWN => if (y > 0) next = index - 256
+              case Facing.UP => if (y < 15) next = index + 256
+              case Facing.NORTH => if (z > 0) next = index - 16
+              case Facing.SOUTH => if (z < 15) next = index + 16
+              case Facing.WEST => if (x > 0) next = index - 1
+              case _ => if (x < 15) next = index + 1
+            }
+            if (next < 0) {
+              faces |= Facing.bitMask(face)
+            } else if (!visited(next) && !occludes(info(next))) {
+              visited(next) = true
+              queue(tail) = next
+              tail += 1
+            }
+            face += 1
+          }
+        }
 
-    val neighbors = chunk.world.getNeighborBlocks(pos, false, true).toSeq
-    val selfMesh = selfBlock.getMesh()
+        for (a <- 0 until Facing.NUM_FACES; b <- 0 until Facing.NUM_FACES) {
+          if (Facing.hasFace(faces, a) && Facing.hasFace(faces, b)) result |= 1L << (a * Facing.NUM_FACES + b)
+        }
+      }
+      start += 1
+    }
+    result
+  }
 
-    for (face <- 0 until Facing.NUM_FACES) {
-      val neighborBlock = neighbors(face)
-      var visible: Int = 1
-
-      neighborBlock match {
-        case Some(neighborBlock) => if (!neighborBlock.isAir()) {
-          val neighborMesh = neighborBlock.getMesh()
-          val oppositeFace = Facing.oppositeFace(face)
-          val selfSolid = selfMesh.faceIsSolid(face)
-          val neighborSolid = neighborMesh.faceIsSolid(oppositeFace)
-
-          if (selfSolid && neighborSolid) {
-            val selfTrans = selfMesh.isTranslucent
-            val neighborTrans = neighborMesh.isTranslucent
-
-            if (selfTrans) {
-              if (neighborTrans) {
-                if (selfMesh == neighborMesh) visible = 0
-              } else {
-                visible = 0
-              }
-            } else {
-              if (!neighborTrans) visible = 0
-            }
+  /**
+   * Work out which faces of one block are not hidden by the blocks next to it
+   * @param index which block
+   * @param tmp culling info filled in by updateAllBlockFaces
+   * @return mask of visible faces
+   */
+  private def computeShowFaces(index: Int, tmp: CullScratch): Int = {
+    val info = tmp.info
+    val self = info(index)
+    if (self == 0) return 0
+
+    val x = index & 15
+    val z = (index >> 4) & 15
+    val y = index >> 8
+
+    var show = 0
+    var face = 0
+    while (face < Facing.NUM_FACES) {
+      // Neighbor's index in this chunk, or its position in the neighboring chunk's layer
+      var inside = -1
+      var layer = 0
+      face match {
+        case Facing.DOWN => if (y > 0) inside = index - 256 else layer = x | (z << 4)
+        case Facing.UP => if (y < 15) inside = index + 256 else layer = x | (z << 4)
+        case Facing.NORTH => if (z > 0) inside = index - 16 else layer = x | (y << 4)
+        case Facing.SOUTH => if (z < 15) inside = index + 16 else layer = x | (y << 4)
+        case Facing.WEST => if (x > 0) inside = index - 1 else layer = z | (y << 4)
+        case _ => if (x < 15) inside = index + 1 else layer = z | (y << 4)
+      }
+      val neighbor = if (inside >= 0) info(inside) else tmp.layers(face)(layer)
+      val opposite = Facing.oppositeFace(face)
+
+      var visible = true
+      if ((self & Facing.bitMask(face)) != 0 && (neighbor & Facing.bitMask(opposite)) != 0) {
+        val selfTrans = (self & cullTranslucent) != 0
+        val neighborTrans = (neighbor & cullTranslucent) != 0
+        visible = if (selfTrans) {
+          // Translucent blocks only hide each other if they look the same
+          if (neighborTrans) {
+            val neighborMesh = if (inside >= 0) chunk.getMesh(inside)
+              else tmp.neighbors(face).getMesh(layerIndex(opposite, layer & 15, layer >> 4))
+            chunk.getMesh(index) != neighborMesh
+          } else {
+            false
           }
+        } else {
+          neighborTrans
         }
-        case None =>
       }
 
-      println(s"index=${index}, face=${face}, visible=${visible}")
-      setShowFace(index, face, visible)
+      if (visible) show |= Facing.bitMask(face)
+      face += 1
     }
+    show
   }
 
   /**
-   * Loop over all textures and produce one MeshRenderer per opaque texture
+   * Produce the MeshRenderer for all opaque blocks. Every texture is a layer of the same TextureArray, so
+   * one renderer covers the whole chunk.
    * @param viewCenter
    */
-  def computeAllOpaqueRenders(viewCenter: BlockPos): Unit = {
-    val numTex = Texture.numTextures()
-
-    if (render.length < numTex) {
-      renderIsValid = false;
-      while (render.length < numTex) {
-        val index = render.length
-        val tex = Texture.getTexture(index)
-        render.addOne(new MeshRenderer(tex))
-      }
+  def computeAllOpaqueRenders(viewCenter: BlockPos, tmp: MeshScratch): Unit = {
+    // The front buffer catches up when the two are swapped
+    if (render_alt.isEmpty) {
+      val mr = MeshRenderer.obtain(null)
+      mr.setNumSlabs(numSlabs)
+      mr.setBatchSlot(batchSlot)
+      render_alt.addOne(mr)
     }
 
-    // Resize the MeshRender backbuffer to contain one per texture
-    if (render_alt.length < numTex) {
-      // In case update and rendering threads get badly out of sync, just temporarily disable rendering for this chunk
-      renderIsValid = false;
-      while (render_alt.length < numTex) {
-        val index = render_alt.length
-        val tex = Texture.getTexture(index)
-        render_alt.addOne(new MeshRenderer(tex))
-      }
-    }
+    iterateOpaqueBlocks(viewCenter, tmp)
+  }
 
-    // Iterate all textures
-    for (index <- 0 until render_alt.length) {
-      val tex = Texture.getTexture(index)
-      if (tex.isValid) {
-        // XXX If we ever recycle texture indices, then have to set texture for this MeshRenderer
-        iterateOpaqueBlocks(tex, viewCenter)
-      } else {
-        render_alt(index).clear()
-      }
+  /**
+   * Collect all opaque blocks in the chunk and compute their MeshRenderer. This fills the MeshRenderer
+   * back buffer, which gets swapped with the front buffer by publishRenders. Only the slabs that changed
+   * since this back buffer was last built are redone.
+   * @param viewCenter
+   * @param tmp scratch space of the calling thread
+   */
+  def iterateOpaqueBlocks(viewCenter: BlockPos, tmp: MeshScratch): Unit = {
+    val mr1 = render_alt(0)
+
+    // Store vertices relative to the chunk corner so they fit the packed vertex format
+    mr1.setOrigin(chunk.indexToBlockPos(0))
+    mr1.setViewCenter(viewCenter)
+
+    var slab = 0
+    while (slab < numSlabs) {
+      // Start over if the renderer had to discard the slabs already done (see MeshRenderer.loadSlab)
+      if (!mr1.slabIsCurrent(slab, slabVersion(slab)) && !iterateOpaqueSlab(mr1, slab, tmp)) slab = -1
+      slab += 1
     }
   }
 
   /**
-   * For the given texture, collect all corresponding blocks in the chunk and compute MeshRenderer objects.
-   * This gets the MeshRenderer back buffer and fills it with changed blocks and then atomically replaces
-   * the front buffer with these new blocks. This should work fine unless the GL thread falls so far behind
-   * that it is still rendering blocks from the back buffer when we start replacing it.
-   * @param tex
-   * @param viewCenter
+   * Rebuild one slab of an opaque MeshRenderer
+   * @return false if the renderer discarded its other slabs
    */
-  def iterateOpaqueBlocks(tex: Texture, viewCenter: BlockPos): Unit = {
-    val index = tex.getIndex
-    val mr1 = render_alt(index)
+  private def iterateOpaqueSlab(mr1: MeshRenderer, slab: Int, tmp: MeshScratch): Boolean = {
+    val tmpPosList = tmp.posList
+    val tmpMeshList = tmp.meshList
+    val tmpFaceList = tmp.faceList
+    val greedyMesher = tmp.greedyMesher
+    val minY = slab * slabHeight
+    val maxY = minY + slabHeight
 
     var count: Int = 0
 
-    println(s"Iterating opaque blocks for ${chunk}, vc=${viewCenter}, tex=${tex}")
+    // Merge whatever faces we can into larger quads. Those faces then get left out of the per-block meshes.
+    val quads = if (greedyMeshing) {
+      greedyMesher.buildQuads(this, null, tmp.quads, minY, maxY)
+      tmp.quads
+    } else {
+      null
+    }
 
-    for (index <- 0 until Chunk.chunkStorageSize) {
+    for (index <- minY << 8 until maxY << 8) {
       val blockID = chunk.blockStorage(index)
       if (blockID != 0) {
         val mesh = chunk.getMesh(index)
-        println(s"Got block ID=${blockID}, mesh=${mesh}")
         if (!mesh.isTranslucent) {
           val shapeTex = mesh.getTexture
-          println(s"shapeTex=${shapeTex}, tex=${tex}")
-          if (shapeTex == tex) {
-            val blockPos = chunk.indexToBlockPos(index)
-            tmpPosList(count) = blockPos
-            tmpMeshList(count) = mesh
-            tmpFaceList(count) = visibleFaces(index)
-            count += 1
+          if (shapeTex != null && shapeTex.isValid) {
+            var faces = visibleFaces(index).toInt
+            if (quads != null) faces &= ~greedyMesher.mergedFaces(mesh)
+
+            // Blocks whose every face was merged can be skipped, unless they have extra non-cube faces
+            if (faces != 0 || mesh.numFaces > Facing.NUM_FACES) {
+              val blockPos = chunk.indexToBlockPos(index)
+              tmpPosList(count) = blockPos
+              tmpMeshList(count) = mesh
+              tmpFaceList(count) = faces
+              count += 1
+            }
           }
         }
       }
     }
 
-    mr1.loadMeshes(tmpMeshList, tmpPosList.asInstanceOf[Array[Object]], tmpFaceList, count, viewCenter)
-
-    val mr2 = render(index)
-    render_alt(index) = mr2;
-    render(index) = mr1;
+    mr1.loadSlab(slab, slabVersion(slab), tmpMeshList, tmpPosList.asInstanceOf[Array[Object]], tmpFaceList, count, quads)
   }
 
   /**
-   * Find all translucent blocks and make one MeshRenderer for each
+   * Put the faces of all translucent blocks into one MeshRenderer, whose quads are sorted far to near
+   * when drawn (see MeshRenderer.sortQuads)
    * @param viewCenter
    */
-  def iterateTransBlocks(viewCenter: BlockPos): Unit = {
-    var trans_index = 0
-    val mr1 = trans_alt
+  def iterateTransBlocks(viewCenter: BlockPos, tmp: MeshScratch): Unit = {
+    if (trans_alt.isEmpty) {
+      val mr = MeshRenderer.obtain(null)
+      mr.setSortQuads(true)
+      trans_alt.addOne(mr)
+    }
+    val mr1 = trans_alt(0)
+    val tmpPosList = tmp.posList
+    val tmpMeshList = tmp.meshList
+    val tmpFaceList = tmp.faceList
 
+    var count = 0
     for (index <- 0 until Chunk.chunkStorageSize) {
       val blockID = chunk.blockStorage(index)
       if (blockID != 0) {
         val mesh = chunk.getMesh(index)
-        if (mesh.isTranslucent) {
-          val tex = mesh.getTexture
-
-          val render = if (trans_index >= mr1.length) {
-            val render = new MeshRenderer(tex)
-            mr1.addOne(render)
-            render
-          } else {
-            val render = mr1(trans_index)
-            render.reset(tex)
-            render
-          }
-
-          val blockpos = chunk.indexToBlockPos(index)
-          tmpPosList(0) = blockpos
-          tmpMeshList(0) = mesh
-          tmpFaceList(0) = visibleFaces(index)
-          val transSortPos = new Vector3d(blockpos.X + 0.5, blockpos.Y + 0.5, blockpos.Z + 0.5)
-          render.setTransSortPosition(transSortPos)
-          render.loadMeshes(tmpMeshList, tmpPosList.asInstanceOf[Array[Object]], tmpFaceList, 1, viewCenter)
-
-          trans_index += 1
+        val tex = mesh.getTexture
+        if (mesh.isTranslucent && tex != null && tex.isValid &&
+          (visibleFaces(index) != 0 || mesh.numFaces > Facing.NUM_FACES)) {
+          tmpPosList(count) = chunk.indexToBlockPos(index)
+          tmpMeshList(count) = mesh
+          tmpFaceList(count) = visibleFaces(index)
+          count += 1
         }
       }
     }
 
-    // If the list is larger than the number of translucent blocks, just invalidate the rest
-    // Could recycle them, though
-    while (trans_index < mr1.length) {
-      mr1(trans_index).clear()
-      trans_index += 1
-    }
+    val corner = chunk.indexToBlockPos(0)
+    mr1.setTransSortPosition(new Vector3d(corner.X + 8, corner.Y + 8, corner.Z + 8))
+    mr1.setOrigin(corner)
+    mr1.loadMeshes(tmpMeshList, tmpPosList.asInstanceOf[Array[Object]], tmpFaceList, count, viewCenter)
+  }
 
-    val mr2 = trans
-    trans_alt = mr2;
-    trans = mr1;
+  /**
+   * Check if this chunk has visual changes that should be rebuilt now. Chunks outside of the view
+   * frustum and chunks whose previous rebuild hasn't been published yet are skipped. A chunk whose drawn
+   * renderer lost its vertices (see MeshRenderer.loadArena) is rebuilt even though no block changed.
+   * @param viewCenter
+   * @param frustum
+   * @return
+   */
+  def wantsVisualUpdate(viewCenter: BlockPos, frustum: Frustum): Boolean = {
+    if (buildInFlight || !(chunkVisualModified || render.exists(_.needsRebuild()))) return false
+    insideFrustum(frustum, viewCenter)
   }
 
   /**
-   * Recompute all MeshRenderer for this chunk
+   * Recompute all MeshRenderer back buffers for this chunk. This may run on any thread, but only one
+   * at a time per chunk. The results become visible after publishRenders is called from the GL thread.
    * @param viewCenter
-   * @param viewMatrix
    */
-  def computeVisualUpdates(viewCenter: BlockPos, viewMatrix: Matrix4f): Unit = {
-    if (chunkVisualModified) {
+  def computeVisualUpdates(viewCenter: BlockPos): Unit = {
+    chunkVisualModified = false;
 
-      println(s"Visual modification for ${chunk}")
+    val tmp = scratch.get()
+    updateAllBlockFaces()
+    computeAllOpaqueRenders(viewCenter, tmp)
+    iterateTransBlocks(viewCenter, tmp)
+  }
 
-      println("Frustum check")
-      if (!insideFrustum(viewMatrix, viewCenter)) return;
+  /**
+   * Swap the freshly built back buffers to the front. Called from the GL thread so that the swap can't
+   * happen while the chunk is being drawn.
+   */
+  def publishRenders(): Unit = {
+    val r = render
+    render = render_alt
+    render_alt = r
 
-      chunkVisualModified = false;
+    val t = trans
+    trans = trans_alt
+    trans_alt = t
 
-      println("Faces")
-      updateAllBlockFaces()
-      println("opaque")
-      computeAllOpaqueRenders(viewCenter)
-      println("trans")
-      iterateTransBlocks(viewCenter)
-      println("done")
-      renderIsValid = true;
-    }
+    renderIsValid = true
+    buildInFlight = false
   }
 
   /**
-   * Draw all opaque blocks in this chunk
-   * @param shader
-   * @param camera
+   * Queue all opaque blocks in this chunk to be drawn. Culling is left to ChunkCuller.
+   * @param batch collects this frame's opaque renderers
+   * @param sortKey nearer chunks should have smaller keys so they're drawn first
    */
-  def draw(shader: Shader, camera: CameraModel): Unit = {
-    var didFrustrumCheck = false;
-
-    if (!renderIsValid) return;
-
-    val numTex = render.length
-    for (texIndex <- 0 until numTex) {
-      if (!renderIsValid) return
-
-      val mr = render(texIndex)
-      if (mr.getTexture.isValid) {
-        // Notice that we're fetching the viewCenter we had previously stored in the MeshRenderer.
-        // This is because the camera could have moved by the time the chunk is drawn, and that motion
-        // would cause things to appear in the wrong place unless we render relative to the original calculated
-        // positions of the meshes.
-        val viewCenter = mr.getViewCenter
-        val view = camera.getViewMatrix(viewCenter)
-
-        if (!didFrustrumCheck) {
-          if (!insideFrustum(view, viewCenter)) return
-          didFrustrumCheck = true
-        }
+  def addToBatch(batch: BatchRenderer, sortKey: Float): Unit = {
+    if (!renderIsValid) return
 
-        shader.setMat4("view", view)
-        mr.draw(shader)
-      }
-    }
+    // Vertices are relative to the chunk corner, not the view center they were built for, so they can be
+    // drawn relative to the current one
+    render.foreach(batch.add(_, sortKey))
   }
 }
 
 object ChunkView {
-  // Lists of data to be send to loadMesh. As long as there is only ever one visual update thread,
-  // this will be safe
-  private val tmpMeshList = new Array[Mesh](Chunk.chunkStorageSize)
-  private val tmpPosList = new Array[BlockPos](Chunk.chunkStorageSize)
-  private val tmpFaceList = new Array[Int](Chunk.chunkStorageSize)
+  // Merge coplanar faces of opaque blocks into larger quads when computing renders. Chunks created
+  // afterwards start with this setting; see greedyMeshing.
+  @volatile var useGreedyMeshing: Boolean = true
+
+  // Opaque geometry is built and uploaded in horizontal slabs of this many layers, so that editing a block
+  // only redoes the slab it's in
+  val slabHeight = 4
+  val numSlabs: Int = 16 / slabHeight
+
+  @inline
+  def slabOf(index: Int): Int = (index >> 8) / slabHeight
+
+  /**
+   * Lists of data to be sent to loadMeshes. Chunks are built on several threads at once, so each
+   * thread gets its own.
+   */
+  class MeshScratch {
+    val meshList = new Array[Mesh](Chunk.chunkStorageSize)
+    val posList = new Array[BlockPos](Chunk.chunkStorageSize)
+    val faceList = new Array[Int](Chunk.chunkStorageSize)
+    val quads = new QuadList
+    val greedyMesher = new GreedyMesher
+  }
+
+  private val scratch: ThreadLocal[MeshScratch] = ThreadLocal.withInitial(() => new MeshScratch)
+
+  // Bits of the culling info of a block: which faces are solid, whether it's translucent, and whether
+  // it's there at all. Air is zero.
+  val cullSolidMask: Int = (1 << Facing.NUM_FACES) - 1
+  val cullTranslucent: Int = 1 << 6
+  val cullPresent: Int = 1 << 7
+
+  // Visibility when every face can see every other
+  val allVisible: Long = (1L << (Facing.NUM_FACES * Facing.NUM_FACES)) - 1
+
+  /**
+   * Whether a block with the given culling info hides everything behind it, for cave culling
+   */
+  @inline
+  def occludes(info: Int): Boolean = (info & (cullSolidMask | cullTranslucent)) == cullSolidMask
+
+  /**
+   * Culling info of a non-air block with the given mesh
+   */
+  def cullInfo(mesh: Mesh): Int = {
+    var info = cullPresent
+    for (face <- 0 until Facing.NUM_FACES) {
+      if (mesh.faceIsSolid(face)) info |= Facing.bitMask(face)
+    }
+    if (mesh.isTranslucent) info |= cullTranslucent
+    info
+  }
+
+  /**
+   * Block index of position (a, b) in the layer of blocks on one side of a chunk. The layer spans X and Z
+   * for DOWN and UP, X and Y for NORTH and SOUTH, and Z and Y for WEST and EAST, so that it lines up with
+   * the layer of the neighboring chunk on the other side.
+   */
+  def layerIndex(face: Int, a: Int, b: Int): Int = {
+    val edge = if ((face & 1) == 0) 0 else 15
+    Facing.normal_axis(face) match {
+      case 0 => edge | (a << 4) | (b << 8)
+      case 1 => a | (b << 4) | (edge << 8)
+      case _ => a | (edge << 4) | (b << 8)
+    }
+  }
+
+  /**
+   * Culling info of a whole chunk and the layers of its six neighbors, per thread
+   */
+  class CullScratch {
+    val info = new Array[Int](Chunk.chunkStorageSize)
+    val layers: Array[Array[Int]] = Array.fill(Facing.NUM_FACES)(new Array[Int](16 * 16))
+    val neighbors = new Array[Chunk](Facing.NUM_FACES)
+    val visited = new Array[Boolean](Chunk.chunkStorageSize)
+    val queue = new Array[Int](Chunk.chunkStorageSize)
+  }
+
+  private val cullScratch: ThreadLocal[CullScratch] = ThreadLocal.withInitial(() => new CullScratch)
 }
\ No newline at end of file
@@ -0,0 +1,216 @@
+package org.theosib.WorldElements
+
+import org.theosib.Geometry.{BoxBuffer, EntityBox}
+import org.theosib.WorldElements.CollisionResolver.epsilon
+
+/**
+ * Moves a box through the world's collision boxes one axis at a time. The boxes along the whole path are
+ * gathered once into a BoxBuffer, and each axis is then swept against them: the time of impact along
+ * that axis is where the moving box first touches a box it overlaps on the other two axes, and the move
+ * is cut short there. Boxes the moving box already overlaps are ignored, so something stuck inside a
+ * block can still get out.
+ *
+ * Stepping up onto a ledge is found analytically: from the starting point the box rises as far as the
+ * step height and any ceiling allow, slides horizontally, and then settles back down onto whatever it's
+ * standing on. That's used instead of the plain slide if it gets further.
+ *
+ * Not thread-safe; each thread that moves entities uses its own (see CollisionResolver.get).
+ */
+class CollisionResolver {
+  val boxes = new BoxBuffer
+
+  // The moving box
+  var minX = 0.0
+  var minY = 0.0
+  var minZ = 0.0
+  var maxX = 0.0
+  var maxY = 0.0
+  var maxZ = 0.0
+
+  // Where the box was when set, and a saved position for trying alternatives
+  private var startX = 0.0
+  private var startY = 0.0
+  private var startZ = 0.0
+  private var savedX = 0.0
+  private var savedY = 0.0
+  private var savedZ = 0.0
+
+  def setBox(ebox: EntityBox): Unit = {
+    val halfWidth = ebox.width * 0.5
+    minX = ebox.position.x - halfWidth
+    minY = ebox.position.y
+    minZ = ebox.position.z - halfWidth
+    maxX = ebox.position.x + halfWidth
+    maxY = ebox.position.y + ebox.height
+    maxZ = ebox.position.z + halfWidth
+    startX = minX
+    startY = minY
+    startZ = minZ
+  }
+
+  // How far the box has moved since setBox
+  def movedX: Double = minX - startX
+  def movedY: Double = minY - startY
+  def movedZ: Double = minZ - startZ
+
+  def offset(dx: Double, dy: Double, dz: Double): Unit = {
+    minX += dx
+    minY += dy
+    minZ += dz
+    maxX += dx
+    maxY += dy
+    maxZ += dz
+  }
+
+  def save(): Unit = {
+    savedX = minX
+    savedY = minY
+    savedZ = minZ
+  }
+
+  def restore(): Unit = offset(savedX - minX, savedY - minY, savedZ - minZ)
+
+  /**
+   * Collect the collision boxes of every block the box could touch while moving by a displacement, and
+   * then rising by up to stepUp. Blocks in unloaded chunks are skipped.
+   */
+  def gather(world: World, dx: Double, dy: Double, dz: Double, stepUp: Double): Unit = {
+    boxes.clear()
+    val x0 = Math.floor(minX.min(minX + dx)).toInt
+    val y0 = Math.floor(minY.min(minY + dy)).toInt.max(0)
+    val z0 = Math.floor(minZ.min(minZ + dz)).toInt
+    val x1 = Math.floor(maxX.max(maxX + dx)).toInt
+    val y1 = Math.floor(maxY.max(maxY + dy) + stepUp).toInt
+    val z1 = Math.floor(maxZ.max(maxZ + dz)).toInt
+
+    var y = y0
+    while (y <= y1) {
+      var z = z0
+      while (z <= z1) {
+        var x = x0
+        while (x <= x1) {
+          val chunk = world.chunkAt(x, y, z)
+          if (chunk != null) {
+            val index = (x & 15) | ((z & 15) << 4) | ((y & 15) << 8)
+            val id = chunk.getGlobalID(index)
+            if (id != 0) {
+              val impl = BlockLibrary.lookupGlobalID(id)
+              val mesh = if (impl != null) impl.collisionMesh else null
+              if (mesh != null) {
+                mesh.appendCollision(boxes, x, y, z)
+              } else {
+                chunk.getBlock(index).getCollision().foreach(b => boxes.add(b))
+              }
+            }
+          }
+          x += 1
+        }
+        z += 1
+      }
+      y += 1
+    }
+  }
+
+  private def overlapsX(i: Int): Boolean = boxes.minX(i) < maxX - epsilon && boxes.maxX(i) > minX + epsilon
+  private def overlapsY(i: Int): Boolean = boxes.minY(i) < maxY - epsilon && boxes.maxY(i) > minY + epsilon
+  private def overlapsZ(i: Int): Boolean = boxes.minZ(i) < maxZ - epsilon && boxes.maxZ(i) > minZ + epsilon
+
+  /**
+   * @return how far the box can move along x, up to d, before touching a box
+   */
+  def clipX(d: Double): Double = {
+    var result = d
+    var i = 0
+    while (i < boxes.size) {
+      if (overlapsY(i) && overlapsZ(i)) {
+        if (result > 0 && boxes.minX(i) >= maxX - epsilon) result = result.min(boxes.minX(i) - maxX)
+        else if (result < 0 && boxes.maxX(i) <= minX + epsilon) result = result.max(boxes.maxX(i) - minX)
+      }
+      i += 1
+    }
+    result
+  }
+
+  def clipY(d: Double): Double = {
+    var result = d
+    var i = 0
+    while (i < boxes.size) {
+      if (overlapsX(i) && overlapsZ(i)) {
+        if (result > 0 && boxes.minY(i) >= maxY - epsilon) result = result.min(boxes.minY(i) - maxY)
+        else if (result < 0 && boxes.maxY(i) <= minY + epsilon) result = result.max(boxes.maxY(i) - minY)
+      }
+      i += 1
+    }
+    result
+  }
+
+  def clipZ(d: Double): Double = {
+    var result = d
+    var i = 0
+    while (i < boxes.size) {
+      if (overlapsX(i) && overlapsY(i)) {
+        if (result > 0 && boxes.minZ(i) >= maxZ - epsilon) result = result.min(boxes.minZ(i) - maxZ)
+        else if (result < 0 && boxes.maxZ(i) <= minZ + epsilon) result = result.max(boxes.maxZ(i) - minZ)
+      }
+      i += 1
+    }
+    result
+  }
+
+  /**
+   * Move vertically as far as possible
+   * @return distance moved
+   */
+  def moveY(d: Double): Double = {
+    val dy = clipY(d)
+    offset(0, dy, 0)
+    dy
+  }
+
+  /**
+   * Move horizontally as far as possible, one axis at a time with the larger first so that sliding along
+   * a wall keeps as much of the motion as it can
+   */
+  def slide(dx: Double, dz: Double): Unit = {
+    if (dx.abs >= dz.abs) {
+      offset(clipX(dx), 0, 0)
+      offset(0, 0, clipZ(dz))
+    } else {
+      offset(0, 0, clipZ(dz))
+      offset(clipX(dx), 0, 0)
+    }
+  }
+
+  /**
+   * Move horizontally, stepping up onto anything up to stepHeight high if that gets further than sliding
+   * along the ground
+   */
+  def slideWithStep(dx: Double, dz: Double, stepHeight: Double): Unit = {
+    val fromX = minX
+    val fromY = minY
+    val fromZ = minZ
+    slide(dx, dz)
+    if (Math.abs(minX - fromX - dx) < epsilon && Math.abs(minZ - fromZ - dz) < epsilon) return
+
+    val flatX = minX - fromX
+    val flatZ = minZ - fromZ
+    save()
+    offset(fromX - minX, fromY - minY, fromZ - minZ)
+
+    val up = moveY(stepHeight)
+    slide(dx, dz)
+    moveY(-up)
+    val stepX = minX - fromX
+    val stepZ = minZ - fromZ
+    if (stepX * stepX + stepZ * stepZ <= flatX * flatX + flatZ * flatZ + epsilon) restore()
+  }
+}
+
+object CollisionResolver {
+  // Boxes that overlap by less than this are only touching
+  val epsilon = 1e-7
+
+  private val perThread = ThreadLocal.withInitial(() => new CollisionResolver)
+
+  def get: CollisionResolver = perThread.get()
+}
@@ -1,15 +1,13 @@
 package org.theosib.WorldElements
 
-import org.joml.{Matrix4f, Matrix4fc, Vector3d, Vector3dc}
+import org.joml.{Matrix4f, Vector3d, Vector3dc}
 import org.theosib.Adaptors.{Disposable, RenderAgent, Window}
 import org.theosib.Camera.CameraModel
-import org.theosib.Geometry.{CollisionShape, EntityBox}
+import org.theosib.Geometry.{EntityBox, Frustum}
 import org.theosib.GraphicsEngine.{Mesh, MeshRenderer, Shader, Texture}
 import org.theosib.Position.BlockPos
 import org.theosib.Utils.{Disposer, WindowDimensions}
-import org.theosib.WorldElements.Entity.{max_y_vel, tmpFaceList, tmpMeshList, tmpPosList}
-
-import scala.util.control.Breaks.{break, breakable}
+import org.theosib.WorldElements.Entity.{max_y_vel, step_height, tmpFaceList, tmpMeshList, tmpPosList}
 
 class Entity(val world: World, val worldView: WorldView) extends Disposable {
   protected var ebox: EntityBox = new EntityBox()
@@ -46,148 +44,72 @@ class Entity(val world: World, val worldView: WorldView) extends Disposable {
   protected var visualModified: Boolean = false
   def isModified = visualModified
 
-  protected var projection: Matrix4fc = null
+  // Whether this is in the world's EntityIndex, and the cell it's stored under
+  private[WorldElements] var indexed: Boolean = false
+  private[WorldElements] var indexKey: Long = 0
 
-  def setProjectionMatrix(proj: Matrix4fc): Unit = {
-    projection = proj
-  }
+  def getPosition: Vector3dc = ebox.position
+  def getWidth: Double = ebox.width
+  def getHeight: Double = ebox.height
 
   def move(motion: Vector3dc): Unit = {
     if (motion.x()==0 && motion.y()==0 && motion.z()==0) return
 
-    var boxHere = ebox.getAxisAlignedBox
-    val collisionHere = world.allIntersectingCollisions(boxHere)
+    val boxHere = ebox.getAxisAlignedBox
 
-    if (motion.y() != 0) {
-      val boxThere = boxHere.offset(0, motion.y(), 0)
-      val collisionThere = world.allIntersectingCollisions(boxThere)
-      val target = collisionThere.difference(collisionHere)
+    // Hold still until the chunks around us have arrived, rather than falling through them
+    val reach = boxHere.offset(motion)
+    if (!world.requestArea(boxHere) || !world.requestArea(reach.offset(0, step_height, 0))) {
+      velocity.y = 0
+      return
+    }
+
+    val resolver = CollisionResolver.get
+    resolver.setBox(ebox)
+    val canStep = onGround && gravity
+    resolver.gather(world, motion.x(), motion.y(), motion.z(), if (canStep) step_height else 0)
 
-      val d = target.minDistance(boxHere)
-      if (d >= Math.abs(motion.y())) {
-        ebox.position.y += motion.y()
+    if (motion.y() != 0) {
+      val dy = resolver.moveY(motion.y())
+      if (dy == motion.y()) {
         onGround = false
       } else {
-        if (motion.y() < 0) {
-          ebox.position.y -= d
-          onGround = true
-        } else {
-          ebox.position.y += (d - 0.001)
-          onGround = false
-        }
+        onGround = motion.y() < 0
         velocity.y = 0
         accel.y = 0
       }
-
-      if (ebox.position.y < 0) {
-        ebox.position.y = 0;
-        velocity.y = 0;
-        accel.y = 0;
-        onGround = true;
-      }
-    }
-
-    if (motion.x() == 0 && motion.z() == 0) {
-      visualModified = true;
-      return
     }
 
-    boxHere = ebox.getAxisAlignedBox
-    val tallBoxHere = new EntityBox(ebox.position, ebox.width, ebox.height + 0.625).getAxisAlignedBox
-    val tallCollisionHere = world.allIntersectingCollisions(tallBoxHere)
-
-    val target_x: CollisionShape = if (motion.x() != 0) {
-      val tallBoxThere = tallBoxHere.offset(motion.x(), 0, 0)
-      val collisionThere = world.allIntersectingCollisions(tallBoxThere)
-      collisionThere.difference(tallCollisionHere)
-    } else {
-      null
-    }
-
-    val target_z: CollisionShape = if (motion.z() != 0) {
-      val tallBoxThere = tallBoxHere.offset(0, 0, motion.z())
-      val collisionThere = world.allIntersectingCollisions(tallBoxThere)
-      collisionThere.difference(tallCollisionHere)
-    } else {
-      null
+    if (motion.x() != 0 || motion.z() != 0) {
+      if (canStep) {
+        resolver.slideWithStep(motion.x(), motion.z(), step_height)
+      } else {
+        resolver.slide(motion.x(), motion.z())
+      }
     }
 
-    val target_y: CollisionShape = {
-      val boxThere = boxHere.offset(0, 0.625, 0)
-      val collisionThere = world.allIntersectingCollisions(boxThere)
-      collisionThere.difference(collisionHere)
-    }
+    ebox.position.x += resolver.movedX
+    ebox.position.y += resolver.movedY
+    ebox.position.z += resolver.movedZ
 
-    val expected_mx = motion.x().abs
-    val expected_mz = motion.z().abs
-
-    var best_collision_x = true
-    var best_collision_z = true
-    var best_step: Double = 0
-    var best_dd: Double = 0
-    var best_dx: Double = 0
-    var best_dz: Double = 0
-
-    breakable {
-      for (step_i <- 0 to 20) {
-        val step = step_i * 0.03125
-        val up = boxHere.offset(0, step, 0)
-        val d_y = target_y.minDistance(up) - 0.001
-        if (d_y <= 0 && step > 0) break;
-
-        var d_x = if (target_x != null) (target_x.minDistance(up) - 0.001).max(0) else 0
-        var d_z = if (target_z != null) (target_z.minDistance(up) - 0.001).max(0) else 0
-
-        if (d_x >= expected_mx && d_z >= expected_mz) {
-          best_step = step
-          best_dx = expected_mx
-          best_dz = expected_mz
-          best_collision_x = false
-          best_collision_z = false
-          break
-        }
-
-        var coll_x = false
-        if (d_x >= expected_mx) {
-          d_x = expected_mx
-        } else {
-          coll_x = true
-        }
-
-        var coll_z = false
-        if (d_z >= expected_mz) {
-          d_z = expected_mz
-        } else {
-          coll_z = true
-        }
-
-        val dd = d_x*d_x + d_z*d_z
-        if (dd > best_dd) {
-          best_dd = dd
-          best_dx = d_x
-          best_dz = d_z
-          best_step = step
-          best_collision_x = coll_x
-          best_collision_z = coll_z
-        }
-
-        if (!onGround || !gravity) break
-      }
+    if (ebox.position.y < 0) {
+      ebox.position.y = 0;
+      velocity.y = 0;
+      accel.y = 0;
+      onGround = true;
     }
 
-    ebox.position.y += best_step
-    ebox.position.x += best_dx * motion.x().sign
-    ebox.position.z += best_dz * motion.z().sign
-    if (best_collision_x) {
+    if (Math.abs(resolver.movedX - motion.x()) > CollisionResolver.epsilon) {
       velocity.x = 0
       accel.x = 0
     }
-    if (best_collision_z) {
+    if (Math.abs(resolver.movedZ - motion.z()) > CollisionResolver.epsilon) {
       velocity.z = 0
       accel.z = 0
     }
 
     visualModified = true
+    world.entityIndex.update(this)
   }
 
   def getCameraPos(): Vector3d = {
@@ -199,16 +121,19 @@ class Entity(val world: World, val worldView: WorldView) extends Disposable {
     ebox.position.y = pos.y() - ebox.height * 0.9
     ebox.position.z = pos.z()
     visualModified = true // May be optional
+    world.entityIndex.update(this)
   }
 
   def setPosition(pos: Vector3dc): Unit = {
     ebox.position.set(pos)
     visualModified = true // optional?
+    world.entityIndex.update(this)
   }
 
   def setSize(w: Double, h: Double): Unit = {
     ebox.height = h
     ebox.width = w
+    world.entityIndex.update(this)
   }
 
   def setMesh(mesh: Mesh): Unit = {
@@ -275,16 +200,16 @@ class Entity(val world: World, val worldView: WorldView) extends Disposable {
     velocity.y = vy.max(-max_y_vel).min(max_y_vel)
   }
 
-  def computeVisualUpdates(viewCenter: BlockPos, view: Matrix4fc): Unit = {
+  def computeVisualUpdates(viewCenter: BlockPos, frustum: Frustum): Unit = {
     if (!visible || !visualModified || mesh==null) return;
-    if (!insideFrustum(view, viewCenter)) return;
+    if (!insideFrustum(frustum, viewCenter)) return;
     visualModified = false;
 
     val pos = ebox.position
 
     var mr1 = render_alt
     if (mr1 == null) {
-      mr1 = new MeshRenderer(mesh.getTexture)
+      mr1 = MeshRenderer.obtain(mesh.getTexture)
       current_pos.set(pos)
       current_time = Window.getCurrentTime
     }
@@ -295,37 +220,44 @@ class Entity(val world: World, val worldView: WorldView) extends Disposable {
     tmpPosList(0) = current_pos
     tmpMeshList(0) = mesh
     tmpFaceList(0) = -1
+    mr1.setOrigin(new BlockPos(current_pos))
     mr1.loadMeshes(tmpMeshList, tmpPosList.asInstanceOf[Array[Object]], tmpFaceList, 1, viewCenter)
 
     render_alt = render
     render = mr1
   }
 
-  def insideFrustum(view: Matrix4fc, viewCenter: BlockPos): Boolean = {
-    true // XXX Actually check frustum
+  /**
+   * Check whether the entity's box is at least partly inside the view frustum
+   * @param frustum planes of the frustum, relative to viewCenter
+   * @param viewCenter
+   * @return
+   */
+  def insideFrustum(frustum: Frustum, viewCenter: BlockPos): Boolean = {
+    val box = ebox.getAxisAlignedBox
+    frustum.intersectsBox((box.neg.x - viewCenter.X).toFloat, (box.neg.y - viewCenter.Y).toFloat,
+      (box.neg.z - viewCenter.Z).toFloat, (box.pos.x - viewCenter.X).toFloat, (box.pos.y - viewCenter.Y).toFloat,
+      (box.pos.z - viewCenter.Z).toFloat)
   }
 
+  /**
+   * Draw the entity. Entities outside the frustum were already skipped by computeVisualUpdates.
+   */
   def draw(shader: Shader, camera: CameraModel): Unit = {
-    if (!visible || render==null) return;
-
     val mr = render
-    if (mr == null) return
+    if (!visible || mr == null) return
 
     val viewCenter = mr.getViewCenter
     val viewMatrix = camera.getViewMatrix(viewCenter)
-    if (!insideFrustum(viewMatrix, viewCenter)) return;
 
     val now = Window.getCurrentTime
     val elapsed = now - current_time
     val togo = target_time - now
     var offset = new Vector3d()
 
-    println(s"current_time=${current_time} now=${now} target_time=${target_time}")
-
     if (togo > 0) {
       val tmp = new Vector3d()
       val interpFactor = elapsed / (target_time - current_time)
-      println(s"interp:${interpFactor}")
       val pos = new Vector3d()
       current_pos.lerp(target_pos, interpFactor, pos)
       pos.sub(target_pos, offset)
@@ -354,6 +286,9 @@ class Entity(val world: World, val worldView: WorldView) extends Disposable {
 object Entity {
   var max_y_vel: Double = 50.0
 
+  // Highest ledge an entity on the ground walks up onto
+  var step_height: Double = 0.625
+
   private val tmpMeshList = new Array[Mesh](1)
   private val tmpPosList = new Array[Vector3dc](1)
   private val tmpFaceList = new Array[Int](1)
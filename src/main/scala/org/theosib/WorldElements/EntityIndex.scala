@@ -0,0 +1,167 @@
+package org.theosib.WorldElements
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap
+import org.joml.Vector3dc
+import org.theosib.Geometry.AxisAlignedBox
+import org.theosib.Utils.Packing
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Spatial hash of entities by the chunk their position is in, so that the entities near a point or box
+ * can be found without looking at all of them. Each entity is kept only in the cell holding its position
+ * (the bottom center of its box). Queries widen their range by the largest entity seen, so entities
+ * sticking out of their cell are still found, and then test each candidate's box exactly.
+ *
+ * Entities are moved between cells by update, which Entity calls whenever its position changes.
+ * Updates and queries are serialized on the index, so it can be used from any thread.
+ */
+class EntityIndex {
+  private val cells = new Long2ObjectOpenHashMap[ArrayBuffer[Entity]]
+  private var count = 0
+
+  // Largest entity extents seen, which only grow
+  private var maxHalfWidth = 0.0
+  private var maxHeight = 0.0
+
+  def size: Int = synchronized { count }
+
+  def add(entity: Entity): Unit = synchronized {
+    if (entity.indexed) return
+    entity.indexed = true
+    entity.indexKey = EntityIndex.cellKey(entity.getPosition)
+    insert(entity.indexKey, entity)
+    noteSize(entity)
+    count += 1
+  }
+
+  def remove(entity: Entity): Unit = synchronized {
+    if (!entity.indexed) return
+    entity.indexed = false
+    delete(entity.indexKey, entity)
+    count -= 1
+  }
+
+  /**
+   * Move an entity to the cell of its current position. Does nothing for entities not in the index.
+   */
+  def update(entity: Entity): Unit = synchronized {
+    if (!entity.indexed) return
+    noteSize(entity)
+    val key = EntityIndex.cellKey(entity.getPosition)
+    if (key == entity.indexKey) return
+    delete(entity.indexKey, entity)
+    insert(key, entity)
+    entity.indexKey = key
+  }
+
+  private def insert(key: Long, entity: Entity): Unit = {
+    var cell = cells.get(key)
+    if (cell == null) {
+      cell = new ArrayBuffer[Entity](4)
+      cells.put(key, cell)
+    }
+    cell += entity
+  }
+
+  private def delete(key: Long, entity: Entity): Unit = {
+    val cell = cells.get(key)
+    if (cell == null) return
+    val i = cell.indexOf(entity)
+    if (i < 0) return
+    // Order within a cell doesn't matter
+    cell(i) = cell.last
+    cell.dropRightInPlace(1)
+    if (cell.isEmpty) cells.remove(key)
+  }
+
+  private def noteSize(entity: Entity): Unit = {
+    maxHalfWidth = maxHalfWidth.max(entity.getWidth * 0.5)
+    maxHeight = maxHeight.max(entity.getHeight)
+  }
+
+  /**
+   * Find the entities whose boxes intersect a box
+   * @param out receives the entities, in no particular order
+   * @return number of entities added to out
+   */
+  def queryBox(box: AxisAlignedBox, out: ArrayBuffer[Entity]): Int =
+    queryBox(box.neg.x, box.neg.y, box.neg.z, box.pos.x, box.pos.y, box.pos.z, out)
+
+  def queryBox(minX: Double, minY: Double, minZ: Double, maxX: Double, maxY: Double, maxZ: Double,
+               out: ArrayBuffer[Entity]): Int = synchronized {
+    val start = out.length
+    forCandidates(minX, minY, minZ, maxX, maxY, maxZ) { entity =>
+      val p = entity.getPosition
+      val hw = entity.getWidth * 0.5
+      if (p.x - hw <= maxX && p.x + hw >= minX && p.y <= maxY && p.y + entity.getHeight >= minY &&
+        p.z - hw <= maxZ && p.z + hw >= minZ) out += entity
+    }
+    out.length - start
+  }
+
+  /**
+   * Find the entities whose boxes come within a distance of a point
+   * @param out receives the entities, in no particular order
+   * @return number of entities added to out
+   */
+  def queryRadius(center: Vector3dc, radius: Double, out: ArrayBuffer[Entity]): Int = synchronized {
+    val start = out.length
+    val r2 = radius * radius
+    val cx = center.x
+    val cy = center.y
+    val cz = center.z
+    forCandidates(cx - radius, cy - radius, cz - radius, cx + radius, cy + radius, cz + radius) { entity =>
+      val p = entity.getPosition
+      val hw = entity.getWidth * 0.5
+      // Distance to the nearest point of the box
+      val dx = cx - cx.max(p.x - hw).min(p.x + hw)
+      val dy = cy - cy.max(p.y).min(p.y + entity.getHeight)
+      val dz = cz - cz.max(p.z - hw).min(p.z + hw)
+      if (dx*dx + dy*dy + dz*dz <= r2) out += entity
+    }
+    out.length - start
+  }
+
+  /**
+   * Visit every entity in the cells that could hold one intersecting the box. When that's more cells
+   * than are occupied, the occupied ones are visited instead.
+   */
+  private def forCandidates(minX: Double, minY: Double, minZ: Double, maxX: Double, maxY: Double, maxZ: Double)
+                           (f: Entity => Unit): Unit = {
+    if (cells.isEmpty) return
+    val x0 = Math.floor(minX - maxHalfWidth).toInt >> 4
+    val y0 = Math.floor(minY - maxHeight).toInt >> 4
+    val z0 = Math.floor(minZ - maxHalfWidth).toInt >> 4
+    val x1 = Math.floor(maxX + maxHalfWidth).toInt >> 4
+    val y1 = Math.floor(maxY).toInt >> 4
+    val z1 = Math.floor(maxZ + maxHalfWidth).toInt >> 4
+
+    val span = (x1 - x0 + 1).toLong * (y1 - y0 + 1) * (z1 - z0 + 1)
+    if (span > cells.size) {
+      val it = cells.values().iterator()
+      while (it.hasNext) it.next().foreach(f)
+      return
+    }
+
+    var cy = y0
+    while (cy <= y1) {
+      var cz = z0
+      while (cz <= z1) {
+        var cx = x0
+        while (cx <= x1) {
+          val cell = cells.get(Packing.packChunk(cx, cy, cz))
+          if (cell != null) cell.foreach(f)
+          cx += 1
+        }
+        cz += 1
+      }
+      cy += 1
+    }
+  }
+}
+
+object EntityIndex {
+  def cellKey(pos: Vector3dc): Long =
+    Packing.packChunk(Math.floor(pos.x).toInt >> 4, Math.floor(pos.y).toInt >> 4, Math.floor(pos.z).toInt >> 4)
+}
@@ -0,0 +1,154 @@
+package org.theosib.WorldElements
+
+import org.theosib.GraphicsEngine.{Mesh, QuadList, Texture}
+import org.theosib.Utils.Facing
+
+/**
+ * Merges coplanar, visible unit cube faces of opaque blocks into larger quads. Two faces are merged only if
+ * they come from the same Mesh, which guarantees the same texture, solidity, and texture mapping. The merged
+ * quads tile the texture, so their texture coordinates run past 1.
+ *
+ * Faces that aren't unit cube faces (see Mesh.getUnitFace) are left to the per-block path. One instance holds
+ * scratch space, so it must not be shared between threads.
+ */
+class GreedyMesher {
+  // Which mesh owns each (u,v) cell of the slice currently being merged
+  private val mask = new Array[Mesh](16 * 16)
+
+  /**
+   * Faces of a block that will have been emitted by buildQuads, and so must be left out of the
+   * per-block mesh.
+   * @param mesh mesh of the block
+   * @return bit mask of faces
+   */
+  def mergedFaces(mesh: Mesh): Int = {
+    if (mesh.isTranslucent) 0 else mesh.getUnitFaceMask
+  }
+
+  /**
+   * Compute merged quads for all opaque blocks in the chunk, or in a range of its Y layers, that use the
+   * given texture. Quads never extend outside of the range.
+   * @param view chunk view with up-to-date visible faces
+   * @param tex which texture, or null for all of them
+   * @param quads output, cleared first
+   * @param minY lowest layer included
+   * @param maxY one past the highest layer included
+   */
+  def buildQuads(view: ChunkView, tex: Texture, quads: QuadList, minY: Int = 0, maxY: Int = 16): Unit = {
+    val chunk = view.chunk
+    quads.clear(chunk.indexToBlockPos(0))
+
+    for (face <- 0 until Facing.NUM_FACES) {
+      // Faces of horizontal slices are stacked along Y, and all others span it
+      val (first, last) = if (Facing.normal_axis(face) == 1) (minY, maxY) else (0, 16)
+      for (layer <- first until last) {
+        if (fillMask(view, tex, face, layer, minY, maxY)) mergeMask(face, layer, quads)
+      }
+    }
+  }
+
+  /**
+   * Find every mergeable face in one slice of the chunk
+   * @return true if anything was found
+   */
+  private def fillMask(view: ChunkView, tex: Texture, face: Int, layer: Int, minY: Int, maxY: Int): Boolean = {
+    val chunk = view.chunk
+    val axis = Facing.normal_axis(face)
+    val uAxis = Facing.u_axis(face)
+    val vAxis = Facing.v_axis(face)
+    var any = false
+
+    for (v <- 0 until 16; u <- 0 until 16) {
+      val index = GreedyMesher.blockIndex(axis, layer, uAxis, u, vAxis, v)
+      var mesh: Mesh = null
+      val y = index >> 8
+      if (y >= minY && y < maxY && chunk.blockStorage(index) != 0 && Facing.hasFace(view.visibleFaces(index), face)) {
+        val m = chunk.getMesh(index)
+        val t = m.getTexture
+        if (!m.isTranslucent && t != null && ((t eq tex) || (tex == null && t.isValid)) && m.getUnitFace(face) != null) {
+          mesh = m
+          any = true
+        }
+      }
+      mask(u + v * 16) = mesh
+    }
+
+    any
+  }
+
+  /**
+   * Cover the mask with as few rectangles as possible, growing each first along u and then along v.
+   */
+  private def mergeMask(face: Int, layer: Int, quads: QuadList): Unit = {
+    var v = 0
+    while (v < 16) {
+      var u = 0
+      while (u < 16) {
+        val mesh = mask(u + v * 16)
+        if (mesh == null) {
+          u += 1
+        } else {
+          var w = 1
+          while (u + w < 16 && (mask(u + w + v * 16) eq mesh)) w += 1
+
+          var h = 1
+          var done = false
+          while (!done && v + h < 16) {
+            var k = 0
+            while (k < w && (mask(u + k + (v + h) * 16) eq mesh)) k += 1
+            if (k < w) done = true else h += 1
+          }
+
+          for (j <- v until v + h; i <- u until u + w) mask(i + j * 16) = null
+
+          emitQuad(mesh, face, layer, u, v, w, h, quads)
+          u += w
+        }
+      }
+      v += 1
+    }
+  }
+
+  private def emitQuad(mesh: Mesh, face: Int, layer: Int, u: Int, v: Int, w: Int, h: Int, quads: QuadList): Unit = {
+    val uf = mesh.getUnitFace(face)
+    val axis = Facing.normal_axis(face)
+    val uAxis = Facing.u_axis(face)
+    val vAxis = Facing.v_axis(face)
+    val plane = (layer + (face & 1)).toFloat
+
+    val quad = quads.beginQuad(face, mesh.getTexture.getLayer)
+    for (corner <- 0 until 4) {
+      val cu = uf.cornerU(corner) * w
+      val cv = uf.cornerV(corner) * h
+      val pu = (u + cu).toFloat
+      val pv = (v + cv).toFloat
+      val x = GreedyMesher.select(0, axis, plane, uAxis, pu, vAxis, pv)
+      val y = GreedyMesher.select(1, axis, plane, uAxis, pu, vAxis, pv)
+      val z = GreedyMesher.select(2, axis, plane, uAxis, pu, vAxis, pv)
+      val tx = uf.tex0X + cu * uf.texDuX + cv * uf.texDvX
+      val ty = uf.tex0Y + cu * uf.texDuY + cv * uf.texDvY
+      quads.setCorner(quad, corner, x, y, z, tx, ty)
+    }
+  }
+}
+
+object GreedyMesher {
+  /**
+   * Compute chunk storage index from coordinates given per axis
+   */
+  @inline
+  def blockIndex(axisA: Int, a: Int, axisB: Int, b: Int, axisC: Int, c: Int): Int = {
+    select(0, axisA, a, axisB, b, axisC, c) | (select(2, axisA, a, axisB, b, axisC, c) << 4) |
+      (select(1, axisA, a, axisB, b, axisC, c) << 8)
+  }
+
+  @inline
+  def select(want: Int, axisA: Int, a: Int, axisB: Int, b: Int, axisC: Int, c: Int): Int = {
+    if (want == axisA) a else if (want == axisB) b else c
+  }
+
+  @inline
+  def select(want: Int, axisA: Int, a: Float, axisB: Int, b: Float, axisC: Int, c: Float): Float = {
+    if (want == axisA) a else if (want == axisB) b else c
+  }
+}
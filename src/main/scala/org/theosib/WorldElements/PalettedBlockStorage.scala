@@ -0,0 +1,163 @@
+package org.theosib.WorldElements
+
+import org.theosib.WorldElements.PalettedBlockStorage.{Layout, bitsFor}
+
+/**
+ * Bit-packed array of the 4096 block IDs of a chunk. Each entry takes 1, 2, 4, 8, or 16 bits, the smallest
+ * width that fits the largest ID stored, and a chunk that holds a single ID everywhere takes no array at all.
+ * The width grows automatically when a larger ID is stored, and shrinks when Chunk renumbers its palette
+ * with repack.
+ *
+ * Entries never straddle two longs, since every width divides 64. There is a single writer (the thread
+ * that modifies the chunk), but readers on other threads may run concurrently, so a change of width
+ * swaps in a whole new Layout rather than modifying fields one at a time.
+ */
+class PalettedBlockStorage(initial: Int = 0) {
+  @volatile private var layout: Layout = Layout.uniform(initial)
+
+  def bitsPerEntry: Int = layout.bits
+
+  /**
+   * Fetch block ID at index
+   */
+  @inline
+  def apply(index: Int): Int = layout.get(index)
+
+  /**
+   * Store block ID at index, widening entries if necessary
+   */
+  def update(index: Int, id: Int): Unit = {
+    val l = layout
+    if (l.bits == 0) {
+      if (id == l.uniform) return
+    } else if (id <= l.maxValue) {
+      l.set(index, id)
+      return
+    }
+
+    val wider = Layout.allocate(bitsFor(if (l.bits == 0) id.max(l.uniform) else id))
+    copyInto(l, wider, null)
+    wider.set(index, id)
+    layout = wider
+  }
+
+  /**
+   * Rewrite every entry through a mapping from old to new ID, using the narrowest width that fits.
+   * @param remap new ID for each old ID
+   * @param maxId largest new ID that occurs
+   * @param distinct number of distinct IDs that occur
+   */
+  def repack(remap: Array[Int], maxId: Int, distinct: Int): Unit = {
+    val l = layout
+    if (distinct <= 1) {
+      layout = Layout.uniform(remap(l.get(0)))
+    } else {
+      val packed = Layout.allocate(bitsFor(maxId))
+      copyInto(l, packed, remap)
+      layout = packed
+    }
+  }
+
+  private def copyInto(from: Layout, to: Layout, remap: Array[Int]): Unit = {
+    for (index <- 0 until Chunk.chunkStorageSize) {
+      val id = from.get(index)
+      to.set(index, if (remap == null) id else remap(id))
+    }
+  }
+
+  /**
+   * Decode every entry into an array, a whole word at a time. All entries come from the same Layout, even if
+   * the width changes meanwhile.
+   */
+  def unpack(out: Array[Int]): Unit = {
+    val l = layout
+    if (l.bits == 0) {
+      java.util.Arrays.fill(out, 0, Chunk.chunkStorageSize, l.uniform)
+    } else {
+      l.unpack(out)
+    }
+  }
+
+  /**
+   * Raw packed words, for persistence. Null for a uniform chunk.
+   */
+  def rawData: Array[Long] = layout.data
+
+  def uniformValue: Int = layout.uniform
+
+  /**
+   * Replace contents with previously saved packed words
+   */
+  def load(bits: Int, data: Array[Long], uniform: Int): Unit = {
+    layout = if (bits == 0) Layout.uniform(uniform) else new Layout(bits, data, 0)
+  }
+
+  /**
+   * Approximate heap footprint of the packed data, in bytes
+   */
+  def memoryUsage: Int = {
+    val data = layout.data
+    if (data == null) 0 else 16 + data.length * 8
+  }
+}
+
+object PalettedBlockStorage {
+  /**
+   * Entry width needed to store IDs up to maxValue
+   */
+  def bitsFor(maxValue: Int): Int = {
+    if (maxValue <= 1) 1
+    else if (maxValue <= 3) 2
+    else if (maxValue <= 15) 4
+    else if (maxValue <= 255) 8
+    else 16
+  }
+
+  /**
+   * One particular packing: entry width, the words, and the single value used when bits is zero
+   */
+  private final class Layout(val bits: Int, val data: Array[Long], val uniform: Int) {
+    private val shift = if (bits == 0) 0 else 6 - Integer.numberOfTrailingZeros(bits)
+    private val slotMask = (1 << shift) - 1
+    private val valueMask = (1L << bits) - 1
+
+    val maxValue: Int = valueMask.toInt
+
+    @inline
+    def get(index: Int): Int = {
+      if (bits == 0) return uniform
+      val word = data(index >>> shift)
+      ((word >>> ((index & slotMask) * bits)) & valueMask).toInt
+    }
+
+    def unpack(out: Array[Int]): Unit = {
+      val perWord = 1 << shift
+      var index = 0
+      var w = 0
+      while (w < data.length) {
+        var word = data(w)
+        var slot = 0
+        while (slot < perWord) {
+          out(index) = (word & valueMask).toInt
+          word >>>= bits
+          index += 1
+          slot += 1
+        }
+        w += 1
+      }
+    }
+
+    @inline
+    def set(index: Int, value: Int): Unit = {
+      val w = index >>> shift
+      val offset = (index & slotMask) * bits
+      data(w) = (data(w) & ~(valueMask << offset)) | ((value.toLong & valueMask) << offset)
+    }
+  }
+
+  private object Layout {
+    def uniform(value: Int): Layout = new Layout(0, null, value)
+
+    def allocate(bits: Int): Layout = new Layout(bits, new Array[Long](Chunk.chunkStorageSize * bits / 64), 0)
+  }
+}
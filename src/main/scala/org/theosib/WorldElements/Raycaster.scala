@@ -0,0 +1,175 @@
+package org.theosib.WorldElements
+
+import org.theosib.Utils.{Facing, Packing}
+
+/**
+ * Finds the first non-air block along a ray by walking the grid of blocks it passes through, one cell at
+ * a time, in the order it enters them (Amanatides & Woo, "A Fast Voxel Traversal Algorithm for Ray
+ * Tracing"). Each step only compares the distances to the next boundary on each axis and adds a constant
+ * to one of them, and block IDs are read straight from chunk storage, so nothing is allocated.
+ *
+ * The block the ray starts in is never a hit. Blocks in unloaded chunks count as air. Distances are in
+ * multiples of the direction vector, so in blocks when it's normalized.
+ *
+ * The result of the last cast is left in the hit fields. Not thread-safe; each thread uses its own (see
+ * Raycaster.get).
+ */
+class Raycaster {
+  // Block that was hit, the distance to where the ray entered it, and the face it entered through
+  var hitX = 0
+  var hitY = 0
+  var hitZ = 0
+  var hitDistance: Double = -1
+  var hitFace: Int = -1
+  var hitID: Int = 0
+
+  // Chunk of the current cell, so consecutive cells in one chunk skip the lookup
+  private var chunkKey = 0L
+  private var chunk: Chunk = null
+
+  /**
+   * Cast one ray
+   * @param limit furthest distance to look
+   * @return true if a block was hit, described by the hit fields
+   */
+  def cast(world: World, sx: Double, sy: Double, sz: Double, dx: Double, dy: Double, dz: Double,
+           limit: Double): Boolean = {
+    hitDistance = -1
+    hitFace = -1
+    hitID = 0
+    chunk = null
+    if (dx == 0 && dy == 0 && dz == 0) return false
+
+    var x = Math.floor(sx).toInt
+    var y = Math.floor(sy).toInt
+    var z = Math.floor(sz).toInt
+
+    val stepX = if (dx > 0) 1 else -1
+    val stepY = if (dy > 0) 1 else -1
+    val stepZ = if (dz > 0) 1 else -1
+
+    // Distance to cross one whole cell on each axis, and to the next boundary on each axis
+    val deltaX = if (dx != 0) Math.abs(1 / dx) else Double.PositiveInfinity
+    val deltaY = if (dy != 0) Math.abs(1 / dy) else Double.PositiveInfinity
+    val deltaZ = if (dz != 0) Math.abs(1 / dz) else Double.PositiveInfinity
+    var maxX = if (dx > 0) (x + 1 - sx) * deltaX else if (dx < 0) (sx - x) * deltaX else Double.PositiveInfinity
+    var maxY = if (dy > 0) (y + 1 - sy) * deltaY else if (dy < 0) (sy - y) * deltaY else Double.PositiveInfinity
+    var maxZ = if (dz > 0) (z + 1 - sz) * deltaZ else if (dz < 0) (sz - z) * deltaZ else Double.PositiveInfinity
+
+    // Face of the next cell that each axis enters through
+    val faceX = if (stepX > 0) Facing.WEST else Facing.EAST
+    val faceY = if (stepY > 0) Facing.DOWN else Facing.UP
+    val faceZ = if (stepZ > 0) Facing.NORTH else Facing.SOUTH
+
+    while (true) {
+      var t = 0.0
+      var face = 0
+      if (maxX <= maxY && maxX <= maxZ) {
+        t = maxX
+        x += stepX
+        maxX += deltaX
+        face = faceX
+      } else if (maxY <= maxZ) {
+        t = maxY
+        y += stepY
+        maxY += deltaY
+        face = faceY
+      } else {
+        t = maxZ
+        z += stepZ
+        maxZ += deltaZ
+        face = faceZ
+      }
+      if (t > limit) return false
+
+      val id = blockID(world, x, y, z)
+      if (id > 0) {
+        hitX = x
+        hitY = y
+        hitZ = z
+        hitDistance = t
+        hitFace = face
+        hitID = id
+        return true
+      }
+    }
+    false
+  }
+
+  private def blockID(world: World, x: Int, y: Int, z: Int): Int = {
+    val key = Packing.packChunk(x >> 4, y >> 4, z >> 4)
+    if (chunk == null || key != chunkKey) {
+      chunk = world.chunkStorage.get(key)
+      chunkKey = key
+      if (chunk == null) return 0
+    }
+    chunk.getGlobalID((x & 15) | ((z & 15) << 4) | ((y & 15) << 8))
+  }
+
+  /**
+   * Cast many rays, such as sight lines or the rays of an explosion
+   * @param rays origin and direction of each ray, six values per ray
+   * @param count number of rays
+   * @param limit furthest distance to look along each ray
+   * @param hitDistance receives the distance to each ray's hit, or -1 if it missed
+   * @param hitBlock receives the x, y, z of each ray's hit, three values per ray; may be null
+   * @return number of rays that hit something
+   */
+  def castBatch(world: World, rays: Array[Double], count: Int, limit: Double, hitDistance: Array[Double],
+                hitBlock: Array[Int]): Int = {
+    var hits = 0
+    var i = 0
+    while (i < count) {
+      val r = i * 6
+      if (cast(world, rays(r), rays(r + 1), rays(r + 2), rays(r + 3), rays(r + 4), rays(r + 5), limit)) {
+        hits += 1
+        if (hitBlock != null) {
+          hitBlock(i * 3) = hitX
+          hitBlock(i * 3 + 1) = hitY
+          hitBlock(i * 3 + 2) = hitZ
+        }
+      }
+      hitDistance(i) = this.hitDistance
+      i += 1
+    }
+    hits
+  }
+
+  /**
+   * Check whether there's a clear line between two points, with no block in between. The blocks
+   * containing the points don't count.
+   */
+  def lineOfSight(world: World, ax: Double, ay: Double, az: Double, bx: Double, by: Double, bz: Double): Boolean = {
+    val dx = bx - ax
+    val dy = by - ay
+    val dz = bz - az
+    // With the direction spanning the whole line, the far point is at distance 1
+    if (!cast(world, ax, ay, az, dx, dy, dz, 1)) return true
+    hitX == Math.floor(bx).toInt && hitY == Math.floor(by).toInt && hitZ == Math.floor(bz).toInt
+  }
+
+  /**
+   * Check sight lines from one point to many
+   * @param targets x, y, z of each target, three values per target
+   * @param visible receives whether each target can be seen
+   * @return number of targets that can be seen
+   */
+  def lineOfSightBatch(world: World, fromX: Double, fromY: Double, fromZ: Double, targets: Array[Double],
+                       count: Int, visible: Array[Boolean]): Int = {
+    var seen = 0
+    var i = 0
+    while (i < count) {
+      val v = lineOfSight(world, fromX, fromY, fromZ, targets(i * 3), targets(i * 3 + 1), targets(i * 3 + 2))
+      visible(i) = v
+      if (v) seen += 1
+      i += 1
+    }
+    seen
+  }
+}
+
+object Raycaster {
+  private val perThread = ThreadLocal.withInitial(() => new Raycaster)
+
+  def get: Raycaster = perThread.get()
+}
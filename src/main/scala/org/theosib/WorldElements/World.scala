@@ -1,53 +1,81 @@
 package org.theosib.WorldElements
 
-import org.theosib.Geometry.{AxisAlignedBox, CollisionShape, GeometryFunctions}
+import org.theosib.Geometry.{AxisAlignedBox, CollisionShape}
 import org.theosib.Position.{BlockPos, ChunkPos}
-import org.theosib.Utils.Facing
+import org.theosib.GraphicsEngine.Mesh
+import org.theosib.Utils.Packing
 import org.joml.{Vector3d, Vector3dc}
 import org.w3c.dom.NodeList
 
+import org.theosib.Storage.RegionStorage
+import org.theosib.WorkerThreads.ChunkGenerator
+import org.theosib.WorldGen.{NoiseTerrainGenerator, TerrainGenerator}
+
+import it.unimi.dsi.fastutil.longs.{Long2ObjectOpenHashMap, LongArrayList}
+
 import java.util
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap}
+import java.util.zip.Deflater
 import scala.collection.mutable.ArrayBuffer
-import scala.jdk.CollectionConverters.{CollectionHasAsScala, EnumerationHasAsScala, IterableHasAsJava}
+import scala.jdk.CollectionConverters.{CollectionHasAsScala, EnumerationHasAsScala}
+
+/**
+ * @param regionStorage on-disk chunk storage
+ */
+class World(val regionStorage: RegionStorage) {
+  def this() = this(new RegionStorage())
 
-class World {
   // Thread-safe storage of chunks
-  val chunkStorage = new ConcurrentHashMap[Long,Chunk]
+  val chunkStorage = new ChunkMap
 
-  // Queue of blocks to update
-  var blockUpdateQueueLoad: java.util.Set[BlockPos] = ConcurrentHashMap.newKeySet()
-  var blockUpdateQueueNoLoad: java.util.Set[BlockPos] = ConcurrentHashMap.newKeySet()
+  // Most recently used chunk of each thread, for the primitive block access path
+  private val lastChunk: ThreadLocal[World.ChunkCache] = ThreadLocal.withInitial(() => new World.ChunkCache)
+
+  // Queue of blocks to update, loading their chunks or not
+  val blockUpdateQueueLoad = new BlockUpdateQueue(World.blockUpdateBudget)
+  val blockUpdateQueueNoLoad = new BlockUpdateQueue(World.blockUpdateBudget)
 
   // Queue of blocks needing visual update
-  var repaintQueue: java.util.Set[BlockPos] = ConcurrentHashMap.newKeySet()
+  val repaintQueue = new BlockUpdateQueue(World.repaintBudget)
 
   val entityStore: java.util.Set[Entity] = ConcurrentHashMap.newKeySet()
 
+  // Entities by location, for finding the ones near something
+  val entityIndex = new EntityIndex
+
+  // Chunks being loaded or generated, so that every request for one chunk shares a single future
+  private val pendingChunks = new ConcurrentHashMap[Long, CompletableFuture[Chunk]]
+
+  // Loads and generates chunks in the background, nearest to the camera first
+  val generator = new ChunkGenerator()
+
+  // Fills in new chunks that weren't found on disk
+  var terrainGenerator: TerrainGenerator = new NoiseTerrainGenerator(World.defaultSeed)
+
   /**
    * Queue a block update event for this block
    * @param pos
    * @param noLoad
    */
   def updateBlock(pos: BlockPos, noLoad: Boolean = false): Unit = {
-    if (noLoad) {
-      blockUpdateQueueNoLoad.add(pos)
-    } else {
-      blockUpdateQueueLoad.add(pos)
-    }
+    blockUpdateQueue(noLoad).add(pos)
   }
 
+  def updateBlock(x: Int, y: Int, z: Int, noLoad: Boolean): Unit = {
+    blockUpdateQueue(noLoad).add(x, y, z)
+  }
+
+  private def blockUpdateQueue(noLoad: Boolean): BlockUpdateQueue =
+    if (noLoad) blockUpdateQueueNoLoad else blockUpdateQueueLoad
+
   /**
    * Queue update for list of blocks
    * @param posArr
    * @param noLoad
    */
   def updateBlocks(posArr: Iterable[BlockPos], noLoad: Boolean = false): Unit = {
-    if (noLoad) {
-      blockUpdateQueueNoLoad.addAll(posArr.asJavaCollection)
-    } else {
-      blockUpdateQueueLoad.addAll(posArr.asJavaCollection)
-    }
+    val queue = blockUpdateQueue(noLoad)
+    posArr.foreach(pos => queue.add(pos))
   }
 
   /**
@@ -63,12 +91,56 @@ class World {
    * @param pos
    */
   def repaintBlocks(posArr: Iterable[BlockPos]): Unit = {
-    repaintQueue.addAll(posArr.asJavaCollection)
+    posArr.foreach(pos => repaintQueue.add(pos))
+  }
+
+  /**
+   * Find the loaded chunk containing a block, without allocating. Consecutive queries from one thread
+   * usually hit the same chunk, so the last one found is remembered per thread.
+   * @param x block coordinate
+   * @param y block coordinate
+   * @param z block coordinate
+   * @return the chunk, or null if it isn't loaded
+   */
+  def chunkAt(x: Int, y: Int, z: Int): Chunk = {
+    val key = Packing.packChunk(x >> 4, y >> 4, z >> 4)
+    val cache = lastChunk.get()
+    val version = chunkStorage.version
+    if (cache.chunk != null && cache.key == key && cache.version == version) return cache.chunk
+
+    val chunk = chunkStorage.get(key)
+    if (chunk != null) {
+      cache.key = key
+      cache.chunk = chunk
+      cache.version = version
+    }
+    chunk
   }
 
   /**
-   * Look up a chunk
-   * XXX: Implement caching of most recent chunks
+   * Block type at a position as a BlockLibrary global ID. Doesn't allocate and doesn't load chunks.
+   * @param x block coordinate
+   * @param y block coordinate
+   * @param z block coordinate
+   * @return global ID (zero for air), or -1 if the chunk isn't loaded
+   */
+  def getBlockId(x: Int, y: Int, z: Int): Int = {
+    val chunk = chunkAt(x, y, z)
+    if (chunk == null) return -1
+    chunk.getGlobalID((x & 15) | ((z & 15) << 4) | ((y & 15) << 8))
+  }
+
+  /**
+   * Block type implementation at a position, or null if the chunk isn't loaded
+   */
+  def getBlockImpl(x: Int, y: Int, z: Int): BlockImpl = {
+    val id = getBlockId(x, y, z)
+    if (id < 0) null else BlockLibrary.lookupGlobalID(id)
+  }
+
+  /**
+   * Look up a chunk. This never blocks: if the chunk isn't loaded, it's requested from the generator
+   * (unless noLoad is set) and None is returned.
    * @param pos
    * @param noLoad
    * @return
@@ -79,8 +151,10 @@ class World {
       case p: BlockPos => p.packedAsChunkPos()
     }
 
-    // XXX Implement caching
-    val chunk = chunkStorage.get(packed)
+    val chunk = pos match {
+      case p: BlockPos => chunkAt(p.X, p.Y, p.Z)
+      case _ => chunkStorage.get(packed)
+    }
     if (chunk != null || noLoad) return Option(chunk)
 
     val chunkPos = pos match {
@@ -88,9 +162,65 @@ class World {
       case p: BlockPos => p.getChunkPos()
     }
 
-    Option(loadChunk(chunkPos))
+    getChunkAsync(chunkPos)
+    None
   }
 
+  /**
+   * Look up a chunk without loading it
+   * @param pos
+   * @return the chunk, or null if it isn't loaded
+   */
+  def getChunkIfLoaded(pos: ChunkPos): Chunk = chunkStorage.get(pos.packed())
+
+  /**
+   * Get a chunk, loading or generating it in the background if necessary
+   * @param pos
+   * @return future that completes with the chunk, or with null for positions that can't hold a chunk
+   */
+  def getChunkAsync(pos: ChunkPos): CompletableFuture[Chunk] = {
+    if (pos.Y < 0) return CompletableFuture.completedFuture(null)
+    val packed = pos.packed()
+    val chunk = chunkStorage.get(packed)
+    if (chunk != null) return CompletableFuture.completedFuture(chunk)
+
+    pendingChunks.computeIfAbsent(packed, _ => {
+      val future = new CompletableFuture[Chunk]
+      generator.submit(pos, () => produceChunk(pos, future))
+      future
+    })
+  }
+
+  /**
+   * Check whether every chunk overlapping a box is loaded, requesting any that aren't
+   * @param box
+   * @return true if all are loaded
+   */
+  def requestArea(box: AxisAlignedBox): Boolean = {
+    val minX = box.neg.x.floor.toInt >> 4
+    val minY = (box.neg.y.floor.toInt >> 4).max(0)
+    val minZ = box.neg.z.floor.toInt >> 4
+    val maxX = box.pos.x.floor.toInt >> 4
+    val maxY = box.pos.y.floor.toInt >> 4
+    val maxZ = box.pos.z.floor.toInt >> 4
+
+    var loaded = true
+    for (y <- minY to maxY; z <- minZ to maxZ; x <- minX to maxX) {
+      val pos = new ChunkPos(x, y, z)
+      if (chunkStorage.get(pos.packed()) == null) {
+        getChunkAsync(pos)
+        loaded = false
+      }
+    }
+    loaded
+  }
+
+  /**
+   * Tell the generator where the camera is, so that the nearest chunks are produced first
+   * @param pos
+   */
+  def setGenerationFocus(pos: ChunkPos): Unit = generator.setFocus(pos)
+
   /**
    * Get list of chunks corresponding to specified block or chunk positions
    * @param posArr
@@ -151,8 +281,7 @@ class World {
    * @param noLoad
    */
   def updateSurroundingBlocks(pos: BlockPos, noLoad: Boolean = false): Unit = {
-    val surroundingPos = pos.allSurrounding()
-    updateBlocks(surroundingPos, noLoad)
+    blockUpdateQueue(noLoad).addSurrounding(pos.X, pos.Y, pos.Z)
   }
 
   /**
@@ -160,21 +289,22 @@ class World {
    * @param pos
    */
   def repaintSurroundingBlocks(pos: BlockPos): Unit = {
-    val surroundingPos = pos.allSurrounding()
-    repaintBlocks(surroundingPos)
+    repaintQueue.addSurrounding(pos.X, pos.Y, pos.Z)
   }
 
   /**
-   * Place a block into the world
+   * Place a block into the world. If its chunk isn't loaded, the block is placed once the chunk has been
+   * loaded or generated, on the thread that produced it.
    * @param pos
    * @param name
    */
   def setBlock(pos: BlockPos, name: String): Unit = {
-    val chunk_in = getChunk(pos)
+    val chunk_in = getChunk(pos, noLoad = true)
     val chunk = chunk_in match {
       case Some(chunk) => chunk
       case None =>
-        // generate
+        // Positions below the world have no chunk, so there's nothing to place into
+        getChunkAsync(pos.getChunkPos()).thenAccept(c => if (c != null) setBlock(pos, name))
         return
     }
     chunk.setBlock(pos, name)
@@ -212,46 +342,62 @@ class World {
     }
   }
 
-  def swapBlockUpdateQueueNoLoad(): java.util.Set[BlockPos] = {
-    val old = blockUpdateQueueNoLoad
-    blockUpdateQueueNoLoad = ConcurrentHashMap.newKeySet()
-    old
-  }
-
-  def swapBlockUpdateQueueLoad(): java.util.Set[BlockPos] = {
-    val old = blockUpdateQueueLoad
-    blockUpdateQueueLoad = ConcurrentHashMap.newKeySet()
-    old
-  }
-
-  def swapRepaintQueue(): java.util.Set[BlockPos] = {
-    val old = repaintQueue
-    repaintQueue = ConcurrentHashMap.newKeySet()
-    old
-  }
-
   /**
-   * Do all block updates and visual updates
+   * Do the block updates queued before this call, up to the budget, a chunk at a time
    */
   def doBlockUpdates(): Unit = {
-    val updateNoLoad = swapBlockUpdateQueueNoLoad()
-    val updateLoad = swapBlockUpdateQueueLoad()
+    // Chunks that weren't loaded, and the updates to retry once each one arrives
+    var waiting: Long2ObjectOpenHashMap[LongArrayList] = null
+
+    blockUpdateQueueLoad.process { p =>
+      val chunk = queuedChunk(p)
+      if (chunk != null) {
+        chunk.updateBlock(Packing.blockIndex(p))
+      } else {
+        if (waiting == null) waiting = new Long2ObjectOpenHashMap[LongArrayList]
+        val key = Packing.blockToChunk(p)
+        var list = waiting.get(key)
+        if (list == null) {
+          list = new LongArrayList
+          waiting.put(key, list)
+        }
+        list.add(p)
+      }
+    }
+    blockUpdateQueueNoLoad.process { p =>
+      val chunk = queuedChunk(p)
+      if (chunk != null) chunk.updateBlock(Packing.blockIndex(p))
+    }
 
-    updateLoad.forEach { pos => getChunk(pos, false).foreach { _.updateBlock(pos) } }
-    updateNoLoad.forEach { pos => getChunk(pos, true).foreach { _.updateBlock(pos) } }
+    // Don't wait for the chunks; try again on the first tick after each arrives
+    if (waiting != null) {
+      waiting.values().forEach { list =>
+        val p = list.getLong(0)
+        val pos = new ChunkPos(Packing.unpackBlockX(p) >> 4, Packing.unpackBlockY(p) >> 4, Packing.unpackBlockZ(p) >> 4)
+        getChunkAsync(pos).thenAccept(c => if (c != null) blockUpdateQueueLoad.addAll(list))
+      }
+    }
   }
 
   def doRepaintEvents(): Unit = {
-    val repaint = swapRepaintQueue()
-    repaint.forEach { pos => getChunk(pos, true).foreach { _.repaintBlock(pos) } }
+    repaintQueue.process { p =>
+      val chunk = queuedChunk(p)
+      if (chunk != null) chunk.repaintBlock(Packing.blockIndex(p))
+    }
   }
 
+  private def queuedChunk(packed: Long): Chunk =
+    chunkAt(Packing.unpackBlockX(packed), Packing.unpackBlockY(packed), Packing.unpackBlockZ(packed))
+
   def doGameTickEvents(elapsedTime: Double): Unit = {
     val chunks = listAllChunks()
     chunks.foreach { chunk =>
       chunk.tickAllBlocks()
     }
+    tickEntities(elapsedTime)
+  }
 
+  def tickEntities(elapsedTime: Double): Unit = {
     entityStore.forEach { entity =>
       entity.gameTick(elapsedTime)
     }
@@ -259,8 +405,29 @@ class World {
 
   def addEntity(entity: Entity): Unit = {
     entityStore.add(entity)
+    entityIndex.add(entity)
   }
 
+  def removeEntity(entity: Entity): Unit = {
+    entityStore.remove(entity)
+    entityIndex.remove(entity)
+  }
+
+  /**
+   * Find the entities whose boxes intersect a box
+   * @param out receives the entities
+   * @return number found
+   */
+  def entitiesInBox(box: AxisAlignedBox, out: ArrayBuffer[Entity]): Int = entityIndex.queryBox(box, out)
+
+  /**
+   * Find the entities whose boxes come within a distance of a point
+   * @param out receives the entities
+   * @return number found
+   */
+  def entitiesNear(center: Vector3dc, radius: Double, out: ArrayBuffer[Entity]): Int =
+    entityIndex.queryRadius(center, radius, out)
+
   /**
    * Locate the first block within [limit] distance from [start] in the direction of [forward]
    * @param start
@@ -269,29 +436,11 @@ class World {
    * @return (the desired block, distance from starting position, the face being poitned at)
    */
   def findNearestBlock(start: Vector3dc, forward: Vector3dc, limit: Double): (Block, Double, Int) = {
-    var dist: Double = 0
-    var enterFace: Int = -1
-    val here = new Vector3d(start)
-    var target: BlockPos = null
-
-    for (i <- 0 until 100) {
-      val (exitFace, r) = GeometryFunctions.exitFace(here, forward);
-      if (exitFace<0 || r+dist>limit) {
-        return (null, -1, -1)
-      }
-
-      dist += r
-      enterFace = Facing.oppositeFace(exitFace)
-      start.fma(dist, forward, here)
-      target = GeometryFunctions.whichBlock(here, forward)
-
-      val block = getBlock(target, true)
-      block match {
-        case Some(block) => if (!block.isAir()) return (block, dist, enterFace)
-        case None =>
-      }
-    }
-    (null, -1, -1)
+    val ray = Raycaster.get
+    if (!ray.cast(this, start.x, start.y, start.z, forward.x, forward.y, forward.z, limit)) return (null, -1, -1)
+    val chunk = chunkAt(ray.hitX, ray.hitY, ray.hitZ)
+    if (chunk == null) return (null, -1, -1)
+    (chunk.getBlock(new BlockPos(ray.hitX, ray.hitY, ray.hitZ)), ray.hitDistance, ray.hitFace)
   }
 
   /**
@@ -300,19 +449,48 @@ class World {
    * @return
    */
   def allIntersectingCollisions(focus: AxisAlignedBox): CollisionShape = {
-    val focusBlockPos = focus.intersectingBlocks();
-    val blocks = getBlocks(focusBlockPos.getArray)
     val result = new CollisionShape
-    blocks.foreach {
-      case Some(block) => if (!block.isAir()) {
-        val collision = block.getCollision()
-        collision.getArray.foreach { cb =>
-          if (focus.intersects(cb)) {
-            result.append(cb)
+    val x0 = focus.neg.x.floor.toInt
+    val y0 = focus.neg.y.floor.toInt
+    val z0 = focus.neg.z.floor.toInt
+    val x1 = focus.pos.x.ceil.toInt
+    val y1 = focus.pos.y.ceil.toInt
+    val z1 = focus.pos.z.ceil.toInt
+
+    var x = x0
+    while (x < x1) {
+      var y = y0
+      while (y < y1) {
+        var z = z0
+        while (z < z1) {
+          val id = getBlockId(x, y, z)
+          if (id > 0) {
+            val impl = BlockLibrary.lookupGlobalID(id)
+            val mesh = if (impl != null) impl.collisionMesh else null
+            if (mesh != null) {
+              // Only the boxes that intersect are made into objects
+              val boxes = mesh.getCollisionBoxes
+              var i = Mesh.findCollision(boxes, 0, x, y, z, focus.neg.x, focus.neg.y, focus.neg.z,
+                focus.pos.x, focus.pos.y, focus.pos.z)
+              while (i >= 0) {
+                result.append(new AxisAlignedBox(boxes(i) + x, boxes(i + 1) + y, boxes(i + 2) + z,
+                  boxes(i + 3) + x, boxes(i + 4) + y, boxes(i + 5) + z))
+                i = Mesh.findCollision(boxes, i + 6, x, y, z, focus.neg.x, focus.neg.y, focus.neg.z,
+                  focus.pos.x, focus.pos.y, focus.pos.z)
+              }
+            } else {
+              getBlock(new BlockPos(x, y, z), true).foreach { block =>
+                block.getCollision().getArray.foreach { cb =>
+                  if (focus.intersects(cb)) result.append(cb)
+                }
+              }
+            }
           }
+          z += 1
         }
+        y += 1
       }
-      case None =>
+      x += 1
     }
     result.sort()
   }
@@ -351,41 +529,71 @@ if (block_to_place.size() > 0) {
     breakBlock(pos)
   }
 
-  def listAllChunks(): Iterable[Chunk] = chunkStorage.values().asScala
+  /**
+   * Write all modified chunks to disk in one batch. Called from ChunkSaveThread.
+   * @param deflater compressor owned by the calling thread
+   * @return number of chunks saved
+   */
+  def saveModifiedChunks(deflater: Deflater): Int = {
+    val modified = listAllChunks().filter(_.isModified).toSeq
+    if (modified.nonEmpty) regionStorage.saveChunks(modified, deflater)
+    modified.length
+  }
+
+  def listAllChunks(): Iterable[Chunk] = chunkStorage.values()
   def listAllChunkPos(): Iterable[ChunkPos] = listAllChunks().map(_.getChunkPos())
 
 
   /**
-   * Load or generate a block that is missing from the world
+   * Runs on a generator thread to load or generate one chunk
    * @param pos
-   * @return
+   * @param future completed with the chunk
    */
-  def loadChunk(pos: ChunkPos): Chunk = {
-    if (pos.Y < 0) return null
+  private def produceChunk(pos: ChunkPos, future: CompletableFuture[Chunk]): Unit = {
     val packed = pos.packed()
+    try {
+      // A request that raced with an earlier completion may find the chunk already there
+      var chunk = chunkStorage.get(packed)
+      if (chunk == null) {
+        // XXX Search unload queue
+
+        val fresh = new Chunk(this, pos)
+        val ok = fresh.load()
+        if (!ok) fresh.generate()
+
+        // Only store the chunk once it's fully populated so that another reader doesn't fetch a
+        // half-baked chunk
+        val already = chunkStorage.putIfAbsent(fresh)
+        chunk = if (already != null) already else fresh
+
+        // Repaint once the chunk can be found, or the repaint events would be dropped
+        if (already == null) chunk.repaintAllBlocks()
+      }
+      future.complete(chunk)
+    } catch {
+      case e: Throwable =>
+        e.printStackTrace()
+        future.completeExceptionally(e)
+    } finally {
+      pendingChunks.remove(packed, future)
+    }
+  }
 
-    chunkStorage.synchronized {
-      // If we're the second to enter this critical section, see if the first created the same chunk
-      val already = chunkStorage.get(packed)
-      if (already != null) return already
-
-      // XXX Search unload queue
-
-      // XXX Search queue of chunks being generated relative to user position
-
-      // Make a new chunk
-      val chunk = new Chunk(this, pos)
+  def shutdown(): Unit = {
+    generator.shutdown()
+  }
+}
 
-      // Load or generate the chunk
-      val ok = chunk.load()
-      if (!ok) chunk.generate() // XXX Queue to chunk gen thread
+object World {
+  val defaultSeed: Long = 1234
 
-      // XXX Modify any caching
+  // Most block updates and repaints handled per tick; the rest wait for the next one
+  val blockUpdateBudget = 1 << 16
+  val repaintBudget = 1 << 16
 
-      // Wait until the chunk is fully populated before storing it so that another reader doesn't
-      // fetch a half-baked chunk
-      chunkStorage.put(packed, chunk)
-      chunk
-    }
+  class ChunkCache {
+    var key: Long = 0
+    var chunk: Chunk = null
+    var version: Int = 0
   }
 }
@@ -2,11 +2,13 @@ package org.theosib.WorldElements
 
 import org.theosib.Adaptors.{Disposable, RenderAgent, Window}
 import org.theosib.Camera.CameraModel
-import org.theosib.Geometry.GeometryFunctions
-import org.theosib.GraphicsEngine.{MeshRenderer, RenderingUtils, Shader}
+import org.theosib.Geometry.{Frustum, GeometryFunctions}
+import org.theosib.GraphicsEngine.{BatchRenderer, MeshRenderer, QuadIndexBuffer, RenderingUtils, Shader, StreamingUploader, TextureArray}
 import org.theosib.Position.BlockPos
-import org.theosib.Utils.{Disposer, Facing, WindowDimensions}
-import org.joml.{Matrix4f, Matrix4fc, Vector3dc, Vector3f, Vector3fc, Vector4f}
+import org.theosib.Utils.{Disposer, WindowDimensions}
+import org.theosib.WorkerThreads.ChunkMeshScheduler
+import org.joml.{Matrix4f, Matrix4fc, Vector3dc, Vector3f, Vector3fc}
+import it.unimi.dsi.fastutil.ints.IntArrays
 
 import java.util.concurrent.ConcurrentLinkedDeque
 import scala.collection.mutable.ArrayBuffer
@@ -23,8 +25,18 @@ class WorldView(val world: World) extends RenderAgent {
   var blockShader: Shader = null
   var entityShader: Shader = null
 
+  // Draws the opaque geometry of all chunks together in one call
+  var batch: BatchRenderer = null
+
+  // Picks the chunks to draw each frame, and the list it fills
+  val culler = new ChunkCuller(world)
+  private val visibleChunks = new ArrayBuffer[Chunk]
+
+  // Builds chunk meshes in parallel and hands them back to the GL thread
+  var meshScheduler: ChunkMeshScheduler = new ChunkMeshScheduler()
+
   /**
-   * Called from UpdateTenderThread, recompute all MeshRenderer objects for all visually updated chunks
+   * Called from UpdateTenderThread, schedule MeshRenderer rebuilds for all visually updated chunks
    * @param camera
    */
   def computeChunkAndEntityRenders(camera: CameraModel): Unit = {
@@ -34,17 +46,16 @@ class WorldView(val world: World) extends RenderAgent {
     val cameraPos = camera.getPos()
     val viewCenter = GeometryFunctions.worldViewCenter(cameraPos)
     val viewMatrix = camera.getViewMatrix(viewCenter)
+    val frustum = new Frustum().set(projectionMatrix, viewMatrix)
+    world.setGenerationFocus(viewCenter.getChunkPos())
     val chunks = world.listAllChunks()
     chunks.foreach { chunk =>
-      val chunkView = chunk.getChunkView
-      chunkView.setProjectionMatrix(projectionMatrix) // Needed for frustum culling
-      chunkView.computeVisualUpdates(viewCenter, viewMatrix)
+      meshScheduler.schedule(chunk.getChunkView, viewCenter, frustum)
     }
 
     val entities = world.entityStore
     entities.forEach { entity =>
-      entity.setProjectionMatrix(projectionMatrix)
-      entity.computeVisualUpdates(viewCenter, viewMatrix)
+      entity.computeVisualUpdates(viewCenter, frustum)
     }
   }
 
@@ -58,51 +69,86 @@ class WorldView(val world: World) extends RenderAgent {
   def draw(): Unit = {
     RenderingUtils.disableBlend()
 
-    val chunks = world.listAllChunks()
-    chunks.foreach { chunk =>
-      chunk.getChunkView.draw(blockShader, camera)
-    }
+    val cameraPos = camera.getPos()
+    val viewCenter = GeometryFunctions.worldViewCenter(cameraPos)
+    val view = camera.getViewMatrix(viewCenter)
+    visibleChunks.clear()
+    culler.cull(cameraPos, viewCenter, projectionMatrix, view, visibleChunks)
+
+    val chunks = visibleChunks
+    drawOpaque(chunks, viewCenter, view)
 
     // Entities
 
     RenderingUtils.enableBlend()
 
-    drawTrans(chunks)
+    drawTrans(chunks, viewCenter, view)
+  }
+
+  /**
+   * Draw the opaque blocks of the given chunks, nearest chunks first
+   * @param chunks chunks that survived culling
+   * @param viewCenter view center of the frame
+   * @param view view matrix relative to viewCenter
+   */
+  def drawOpaque(chunks: Iterable[Chunk], viewCenter: BlockPos, view: Matrix4f): Unit = {
+    val cameraPos = camera.getPos()
+    batch.begin(viewCenter)
+    chunks.foreach { chunk =>
+      val corner = chunk.indexToBlockPos(0)
+      val dist = cameraPos.distanceSquared(corner.X + 8, corner.Y + 8, corner.Z + 8)
+      chunk.getChunkView.addToBatch(batch, dist.toFloat)
+    }
+    batch.draw(blockShader, view)
   }
 
   def drawEntities(): Unit = {
 
   }
 
+  // Translucent renderers of the frame and their distances from the camera, reused between frames
+  private var transRenders = new Array[MeshRenderer](256)
+  private var transDistance = new Array[Double](256)
+  private var transOrder = new Array[Int](256)
+
   /**
-   * Draw all translucent blocks in order from far to near the viewer
-   * @param chunks
+   * Draw all translucent blocks in order from far to near the viewer. Chunks are drawn far to near, and
+   * each chunk's renderer orders its own quads (see MeshRenderer.sortQuads), re-sorting only when the
+   * camera has moved enough to matter.
+   * @param chunks chunks that survived culling
+   * @param viewCenter view center of the frame
+   * @param view view matrix relative to viewCenter
    */
-  def drawTrans(chunks: Iterable[Chunk]): Unit = {
-    var allTrans = new ArrayBuffer[MeshRenderer]
-    // Make one huge list of transparent blocks in the world
-    chunks.foreach { chunk =>
-      val trans = chunk.getChunkView.getTransRenders()
-      trans.foreach { mr =>
-        if (mr.isValid) allTrans += mr
-      }
-    }
-
+  def drawTrans(chunks: Iterable[Chunk], viewCenter: BlockPos, view: Matrix4f): Unit = {
     val cameraPos = camera.getPos()
 
-    allTrans = allTrans.sortWith { (a, b) =>
-      val da = a.getTransSortPosition.distanceSquared(cameraPos)
-      val db = b.getTransSortPosition.distanceSquared(cameraPos)
-      db < da
+    var count = 0
+    chunks.foreach { chunk =>
+      chunk.getChunkView.getTransRenders().foreach { mr =>
+        if (mr.isValid) {
+          if (count == transRenders.length) {
+            transRenders = java.util.Arrays.copyOf(transRenders, count * 2)
+            transDistance = java.util.Arrays.copyOf(transDistance, count * 2)
+            transOrder = java.util.Arrays.copyOf(transOrder, count * 2)
+          }
+          transRenders(count) = mr
+          transDistance(count) = mr.getTransSortPosition.distanceSquared(cameraPos)
+          transOrder(count) = count
+          count += 1
+        }
+      }
     }
 
-    allTrans.foreach { mr =>
-      val viewMatrix = camera.getViewMatrix(mr.getViewCenter)
-
-      // Frustum check??
+    // Distances are computed once above rather than in the comparator
+    val dist = transDistance
+    IntArrays.quickSort(transOrder, 0, count, (a: Int, b: Int) => java.lang.Double.compare(dist(b), dist(a)))
 
-      blockShader.setMat4("view", viewMatrix);
-      mr.loadGLBuffers()
+    blockShader.setMat4("view", view)
+    for (i <- 0 until count) {
+      val mr = transRenders(transOrder(i))
+      transRenders(transOrder(i)) = null
+      mr.sortQuads(cameraPos)
+      mr.setViewCenter(viewCenter)
       mr.draw(blockShader)
     }
   }
@@ -120,8 +166,19 @@ class WorldView(val world: World) extends RenderAgent {
     //      placementShader.setMat4("projection", matrix);
   }
 
+  /**
+   * Stop building meshes and hand every chunk's and entity's renderers to the Disposer, then free this
+   * view's own GL objects. The scheduler goes first so that no build brings renderers back afterwards.
+   */
   override def destroy(): Unit = {
+    meshScheduler.shutdown()
+    world.listAllChunks().foreach(_.getChunkView.destroy())
+    world.entityStore.forEach(_.destroy())
     Disposer.dispose(blockShader)
+    if (batch != null) batch.destroy()
+    QuadIndexBuffer.destroy()
+    StreamingUploader.destroyShared()
+    TextureArray.getShared().destroy()
     // Other shaders XXX
   }
 
@@ -129,9 +186,14 @@ class WorldView(val world: World) extends RenderAgent {
   override def create(w: Window): Unit = {
     window = w;
     blockShader = new Shader().setFragmentCodeFile("block_fragment.glsl").setVertexCodeFile("block_vertex.glsl")
+    batch = new BatchRenderer()
   }
 
-  override def willRender(w: Window, deltaTime: Double): Boolean = true // XXX
+  override def willRender(w: Window, deltaTime: Double): Boolean = {
+    // Swap in any chunk meshes that finished building since the last frame
+    meshScheduler.publishCompleted()
+    true // XXX
+  }
 
   override def render(w: Window, deltaTime: Double): Unit = {
     draw()
@@ -143,53 +205,3 @@ class WorldView(val world: World) extends RenderAgent {
 
   override def priority(): Int = 0
 }
-
-object WorldView {
-  /**
-   * Compute if a position is outside of the frustum
-   * http://web.archive.org/web/20120531231005/http://crazyjoke.free.fr/doc/3D/plane%20extraction.pdf
-   * @param transform the product of view and projection matrices
-   * @param adustedPos
-   * @return Nonzero if the point is outside of the
-   */
-  def outsideFrustum(transform: Matrix4f, adjustedPos: BlockPos): Int = {
-    var result: Int = 0;
-
-    val point = new Vector4f()
-    val row1 = new Vector4f()
-    val row2 = new Vector4f()
-    val row3 = new Vector4f()
-    val row4 = new Vector4f()
-    point.x = adjustedPos.X
-    point.y = adjustedPos.Y
-    point.z = adjustedPos.Z
-    point.w = 1f
-    transform.getRow(0, row1)
-    transform.getRow(1, row2)
-    transform.getRow(2, row3)
-    transform.getRow(3, row4)
-
-    val sum41 = new Vector4f()
-    val dif41 = new Vector4f()
-    val sum42 = new Vector4f()
-    val dif42 = new Vector4f()
-    val sum43 = new Vector4f()
-    val dif43 = new Vector4f()
-    row4.add(row1, sum41)
-    row4.sub(row1, dif41)
-    row4.add(row2, sum42)
-    row4.sub(row2, dif42)
-    row4.add(row3, sum43)
-    row4.sub(row3, dif43)
-
-    if (0 > point.dot(sum41)) result |= Facing.WEST_MASK
-    if (0 > point.dot(dif41)) result |= Facing.EAST_MASK
-    if (0 > point.dot(sum42)) result |= Facing.DOWN_MASK
-    if (0 > point.dot(dif42)) result |= Facing.UP_MASK
-    if (0 > point.dot(sum43)) result |= Facing.SOUTH_MASK
-    if (0 > point.dot(dif43)) result |= Facing.NORTH_MASK
-
-    result
-  }
-
-}
\ No newline at end of file
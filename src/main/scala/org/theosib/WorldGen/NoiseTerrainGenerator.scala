@@ -0,0 +1,103 @@
+package org.theosib.WorldGen
+
+import org.theosib.Noise.PerlinNoise
+import org.theosib.WorldElements.Chunk
+
+/**
+ * Rolling terrain from a 2D fractal height map, hollowed out by 3D fractal noise caves. Every chunk
+ * samples its 16x16 height columns and, if it reaches below the surface, its 16x16x16 cave field in
+ * batches, then stores all block IDs in one pass.
+ *
+ * @param seed world seed
+ */
+class NoiseTerrainGenerator(val seed: Long) extends TerrainGenerator {
+  private val heightNoise = new PerlinNoise(seed)
+  private val caveNoise = new PerlinNoise(seed * 6364136223846793005L + 1442695040888963407L)
+
+  // Height map
+  val baseHeight = 24
+  val heightRange = 16.0
+  val horizontalScale: Double = 1.0 / 64
+  val heightOctaves = 4
+
+  // Caves
+  val caveScale: Double = 1.0 / 24
+  val caveOctaves = 2
+  val caveThreshold = 0.35
+
+  val surfaceBlock = "cobble"
+  val fillBlock = "stone"
+
+  /**
+   * Buffers for one chunk, per thread
+   */
+  private class Scratch {
+    val heights = new Array[Double](16 * 16)
+    val columnTop = new Array[Int](16 * 16)
+    val caves = new Array[Double](Chunk.chunkStorageSize)
+    val ids = new Array[Int](Chunk.chunkStorageSize)
+  }
+
+  private val scratch: ThreadLocal[Scratch] = ThreadLocal.withInitial(() => new Scratch)
+
+  /**
+   * Fill in terrain heights for the 16x16 columns of a chunk
+   * @param chunkX chunk position
+   * @param chunkZ chunk position
+   * @param heights output: noise value for each column, indexed x + z * 16
+   * @param columnTop output: Y of top solid block of each column
+   * @return highest top
+   */
+  def sampleColumns(chunkX: Int, chunkZ: Int, heights: Array[Double], columnTop: Array[Int]): Int = {
+    heightNoise.fillFractal(heights, 16, 16, (chunkX << 4) * horizontalScale, (chunkZ << 4) * horizontalScale,
+      horizontalScale, heightOctaves)
+    var maxTop = Int.MinValue
+    var i = 0
+    while (i < 256) {
+      val top = baseHeight + (heights(i) * heightRange).toInt
+      columnTop(i) = top
+      maxTop = maxTop.max(top)
+      i += 1
+    }
+    maxTop
+  }
+
+  override def generate(chunk: Chunk): Unit = {
+    val pos = chunk.getChunkPos()
+    val tmp = scratch.get()
+    val maxTop = sampleColumns(pos.X, pos.Z, tmp.heights, tmp.columnTop)
+    val y0 = pos.Y << 4
+
+    // Entirely above ground: leave it as air
+    if (y0 > maxTop) return
+
+    caveNoise.fillFractal(tmp.caves, 16, 16, 16, (pos.X << 4) * caveScale, y0 * caveScale, (pos.Z << 4) * caveScale,
+      caveScale, caveOctaves, 0.5, 2.0)
+
+    val surfaceID = chunk.getBlockID(surfaceBlock)
+    val fillID = chunk.getBlockID(fillBlock)
+    val ids = tmp.ids
+    val caves = tmp.caves
+    val columnTop = tmp.columnTop
+
+    var index = 0
+    while (index < Chunk.chunkStorageSize) {
+      val column = index & 255
+      val y = y0 + (index >> 8)
+      val top = columnTop(column)
+      ids(index) = if (y > top) {
+        0
+      } else if (y > 0 && caves(index) > caveThreshold) {
+        // Keep the bottom layer solid
+        0
+      } else if (y == top) {
+        surfaceID
+      } else {
+        fillID
+      }
+      index += 1
+    }
+
+    chunk.genBlocks(ids)
+  }
+}
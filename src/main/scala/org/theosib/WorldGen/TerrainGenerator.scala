@@ -0,0 +1,15 @@
+package org.theosib.WorldGen
+
+import org.theosib.WorldElements.Chunk
+
+/**
+ * Fills in the blocks of newly created chunks. Called from several ChunkGenerator threads at once, so
+ * implementations must be thread-safe.
+ */
+trait TerrainGenerator {
+  /**
+   * Populate a chunk that has no blocks yet
+   * @param chunk
+   */
+  def generate(chunk: Chunk): Unit
+}
@@ -0,0 +1,199 @@
+package org.theosib.GraphicsEngine;
+
+import org.junit.jupiter.api.Test;
+import org.theosib.Position.BlockPos;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Commands and slot origins that BatchRenderer collects for a frame, from fake renderers and without
+ * drawing
+ */
+class BatchRendererTest {
+    /**
+     * Holds a run of quads in the arena, split into slabs the way MeshRenderer lays them out
+     */
+    static class FakeRenderer implements Batchable {
+        final int slot;
+        final BlockPos origin;
+        final int[] slabQuads;
+        VertexArena arena;
+        int arenaStart;
+        int loads = 0;
+        // Whether loadArena finds vertices to upload, as MeshRenderer doesn't once it has given them back
+        boolean hasVertices = true;
+
+        FakeRenderer(int slot, BlockPos origin, int... slabQuads) {
+            this.slot = slot;
+            this.origin = origin;
+            this.slabQuads = slabQuads;
+        }
+
+        int totalQuads() {
+            int n = 0;
+            for (int q : slabQuads) n += q;
+            return n;
+        }
+
+        @Override
+        public int getBatchSlot() {
+            return slot;
+        }
+
+        @Override
+        public BlockPos getOrigin() {
+            return origin;
+        }
+
+        @Override
+        public boolean loadArena(VertexArena a) {
+            if (arena == a) return true;
+            if (!hasVertices) return false;
+            arena = a;
+            arenaStart = a.allocate(totalQuads());
+            loads++;
+            return true;
+        }
+
+        @Override
+        public void addCommands(DrawCommandList list, float sortKey) {
+            int baseVertex = arenaStart * QuadIndexBuffer.VERTICES_PER_QUAD;
+            int start = 0;
+            for (int q : slabQuads) {
+                list.add(start, q, baseVertex, sortKey);
+                start += q;
+            }
+        }
+    }
+
+    static BatchRenderer begin(BlockPos viewCenter) {
+        BatchRenderer batch = new BatchRenderer();
+        batch.begin(viewCenter);
+        return batch;
+    }
+
+    @Test
+    void rendererWithoutSlotIsNotBatched() {
+        BatchRenderer batch = begin(new BlockPos(0, 0, 0));
+        FakeRenderer r = new FakeRenderer(0, new BlockPos(0, 0, 0), 10);
+        assertFalse(batch.addToBatch(r, 0));
+        assertEquals(0, batch.getCommands().size());
+        assertEquals(0, r.loads);
+    }
+
+    @Test
+    void eachRendererGetsItsOwnBaseVertex() {
+        BatchRenderer batch = begin(new BlockPos(0, 0, 0));
+        FakeRenderer a = new FakeRenderer(1, new BlockPos(0, 0, 0), 10);
+        FakeRenderer b = new FakeRenderer(2, new BlockPos(16, 0, 0), 20);
+        assertTrue(batch.addToBatch(a, 1));
+        assertTrue(batch.addToBatch(b, 2));
+
+        DrawCommandList commands = batch.getCommands();
+        commands.sort();
+        assertEquals(2, commands.size());
+
+        assertEquals(0, commands.getBaseVertex(0));
+        assertEquals(10 * QuadIndexBuffer.INDICES_PER_QUAD, commands.getIndexCount(0));
+        assertEquals(0, commands.getIndexOffset(0));
+
+        assertEquals(10 * QuadIndexBuffer.VERTICES_PER_QUAD, commands.getBaseVertex(1));
+        assertEquals(20 * QuadIndexBuffer.INDICES_PER_QUAD, commands.getIndexCount(1));
+        assertEquals(0, commands.getIndexOffset(1));
+
+        assertEquals(30, batch.getArena().getUsedQuads());
+    }
+
+    @Test
+    void slabsBecomeOneCommandWhenAdjacent() {
+        BatchRenderer batch = begin(new BlockPos(0, 0, 0));
+        FakeRenderer r = new FakeRenderer(1, new BlockPos(0, 0, 0), 4, 0, 6, 2);
+        batch.addToBatch(r, 0);
+
+        DrawCommandList commands = batch.getCommands();
+        // Empty slabs add nothing
+        assertEquals(3, commands.size());
+        assertEquals(4 * Integer.BYTES * QuadIndexBuffer.INDICES_PER_QUAD, commands.getIndexOffset(1));
+        assertEquals(12, commands.getQuadEnd());
+
+        commands.sort();
+        assertEquals(1, commands.size());
+        assertEquals(12 * QuadIndexBuffer.INDICES_PER_QUAD, commands.getIndexCount(0));
+        assertEquals(0, commands.getIndexOffset(0));
+    }
+
+    @Test
+    void commandsAreOrderedBySortKey() {
+        BatchRenderer batch = begin(new BlockPos(0, 0, 0));
+        FakeRenderer far = new FakeRenderer(1, new BlockPos(0, 0, 0), 3);
+        FakeRenderer near = new FakeRenderer(2, new BlockPos(0, 0, 0), 5);
+        batch.addToBatch(far, 100);
+        batch.addToBatch(near, 1);
+
+        DrawCommandList commands = batch.getCommands();
+        commands.sort();
+        assertEquals(2, commands.size());
+        assertEquals(near.arenaStart * QuadIndexBuffer.VERTICES_PER_QUAD, commands.getBaseVertex(0));
+        assertEquals(far.arenaStart * QuadIndexBuffer.VERTICES_PER_QUAD, commands.getBaseVertex(1));
+    }
+
+    @Test
+    void slotOriginsAreRelativeToViewCenter() {
+        BatchRenderer batch = begin(new BlockPos(100, 64, -32));
+        batch.addToBatch(new FakeRenderer(3, new BlockPos(112, 48, -16), 1), 0);
+        batch.addToBatch(new FakeRenderer(1, new BlockPos(96, 64, -48), 1), 0);
+
+        assertEquals(4, batch.getSlotEnd());
+        assertEquals(12, batch.getSlotOrigin(3, 0), 0);
+        assertEquals(-16, batch.getSlotOrigin(3, 1), 0);
+        assertEquals(16, batch.getSlotOrigin(3, 2), 0);
+        assertEquals(-4, batch.getSlotOrigin(1, 0), 0);
+        assertEquals(0, batch.getSlotOrigin(1, 1), 0);
+        assertEquals(-16, batch.getSlotOrigin(1, 2), 0);
+    }
+
+    @Test
+    void highSlotGrowsOrigins() {
+        BatchRenderer batch = begin(new BlockPos(0, 0, 0));
+        batch.addToBatch(new FakeRenderer(5000, new BlockPos(1, 2, 3), 1), 0);
+        assertEquals(5001, batch.getSlotEnd());
+        assertEquals(3, batch.getSlotOrigin(5000, 2), 0);
+    }
+
+    @Test
+    void rendererWithoutUploadedVerticesIsSkipped() {
+        BatchRenderer batch = begin(new BlockPos(0, 0, 0));
+        FakeRenderer loaded = new FakeRenderer(1, new BlockPos(0, 0, 0), 4);
+        FakeRenderer pending = new FakeRenderer(2, new BlockPos(16, 0, 0), 6);
+        pending.hasVertices = false;
+        batch.addToBatch(loaded, 0);
+
+        // Handled, so not drawn on its own, but contributes no commands
+        assertTrue(batch.addToBatch(pending, 0));
+        assertEquals(1, batch.getCommands().size());
+        assertEquals(loaded.arenaStart * QuadIndexBuffer.VERTICES_PER_QUAD, batch.getCommands().getBaseVertex(0));
+        assertEquals(4, batch.getArena().getUsedQuads());
+        assertEquals(2, batch.getSlotEnd());
+    }
+
+    @Test
+    void beginStartsAFreshFrame() {
+        BatchRenderer batch = begin(new BlockPos(0, 0, 0));
+        FakeRenderer r = new FakeRenderer(7, new BlockPos(0, 0, 0), 8);
+        batch.addToBatch(r, 0);
+        assertEquals(1, batch.getCommands().size());
+
+        batch.begin(new BlockPos(0, 0, 0));
+        assertEquals(0, batch.getCommands().size());
+        assertEquals(0, batch.getCommands().getQuadEnd());
+        assertEquals(1, batch.getSlotEnd());
+
+        // Already in the arena, so the next frame only adds commands
+        batch.addToBatch(r, 0);
+        assertEquals(1, r.loads);
+        assertEquals(8, batch.getArena().getUsedQuads());
+        assertEquals(1, batch.getCommands().size());
+    }
+}
@@ -0,0 +1,65 @@
+package org.theosib.GraphicsEngine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Ordering and merging of draw commands, which reuses its arrays from one frame to the next
+ */
+class DrawCommandListTest {
+    @Test
+    void keysOrderLikeTheirValues() {
+        DrawCommandList list = new DrawCommandList();
+        float[] keys = {5.5f, -2, 0, 1e6f, -1e6f, 0.25f, 3};
+        for (int i = 0; i < keys.length; i++) list.add(0, 1, i * 100, keys[i]);
+        list.sort();
+
+        int[] expected = {4, 1, 2, 5, 6, 0, 3};
+        assertEquals(expected.length, list.size());
+        for (int i = 0; i < expected.length; i++) assertEquals(expected[i] * 100, list.getBaseVertex(i));
+    }
+
+    @Test
+    void equalKeysKeepTheirOrder() {
+        DrawCommandList list = new DrawCommandList();
+        // Separate base vertices, so nothing merges
+        for (int i = 0; i < 10; i++) list.add(0, 1, i, (i % 3) * 10);
+        list.sort();
+
+        int[] expected = {0, 3, 6, 9, 1, 4, 7, 2, 5, 8};
+        for (int i = 0; i < expected.length; i++) assertEquals(expected[i], list.getBaseVertex(i));
+    }
+
+    @Test
+    void sortsAgainAfterClearAndGrowing() {
+        DrawCommandList list = new DrawCommandList();
+        for (int frame = 0; frame < 3; frame++) {
+            list.clear();
+            // Enough commands to grow past the initial capacity, in reverse order of their keys
+            int count = 50 + frame * 100;
+            for (int i = 0; i < count; i++) list.add(0, 1, i * 4, count - i);
+            list.sort();
+
+            assertEquals(count, list.size());
+            for (int i = 0; i < count; i++) assertEquals((count - 1 - i) * 4, list.getBaseVertex(i));
+        }
+    }
+
+    @Test
+    void runsAreMergedAfterSorting() {
+        DrawCommandList list = new DrawCommandList();
+        // A run added out of order, which sorting puts back together, and one in another range
+        list.add(4, 2, 0, 2);
+        list.add(0, 4, 0, 1);
+        list.add(0, 3, 1000, 4);
+        list.add(6, 1, 0, 3);
+        list.sort();
+
+        assertEquals(2, list.size());
+        assertEquals(0, list.getFirstQuad(0));
+        assertEquals(7, list.getNumQuads(0));
+        assertEquals(1000, list.getBaseVertex(1));
+        assertEquals(3, list.getNumQuads(1));
+    }
+}
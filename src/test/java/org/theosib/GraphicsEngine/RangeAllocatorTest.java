@@ -0,0 +1,71 @@
+package org.theosib.GraphicsEngine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * First-fit allocation and merging of free ranges, as the vertex arena uses them
+ */
+class RangeAllocatorTest {
+    @Test
+    void allocatesFrontToBack() {
+        RangeAllocator ranges = new RangeAllocator(100);
+        assertEquals(0, ranges.allocate(10));
+        assertEquals(10, ranges.allocate(20));
+        assertEquals(30, ranges.allocate(70));
+        assertEquals(100, ranges.getUsed());
+        assertEquals(-1, ranges.allocate(1));
+    }
+
+    @Test
+    void freedRangeIsReused() {
+        RangeAllocator ranges = new RangeAllocator(100);
+        ranges.allocate(10);
+        long middle = ranges.allocate(10);
+        ranges.allocate(10);
+        ranges.free(middle, 10);
+        assertEquals(20, ranges.getUsed());
+
+        // First fit, so a smaller request goes into the hole
+        assertEquals(middle, ranges.allocate(5));
+        assertEquals(middle + 5, ranges.allocate(5));
+    }
+
+    @Test
+    void neighboringFreeRangesMerge() {
+        RangeAllocator ranges = new RangeAllocator(30);
+        long a = ranges.allocate(10);
+        long b = ranges.allocate(10);
+        long c = ranges.allocate(10);
+
+        // Free both sides first, then the middle joins them into one range
+        ranges.free(a, 10);
+        ranges.free(c, 10);
+        assertEquals(-1, ranges.allocate(20));
+        ranges.free(b, 10);
+        assertEquals(0, ranges.getUsed());
+        assertEquals(0, ranges.allocate(30));
+    }
+
+    @Test
+    void growAddsToTheFreeRangeAtTheEnd() {
+        RangeAllocator ranges = new RangeAllocator(10);
+        ranges.allocate(5);
+        assertEquals(-1, ranges.allocate(10));
+
+        ranges.grow(20);
+        assertEquals(20, ranges.getCapacity());
+        assertEquals(5, ranges.getUsed());
+        // The 5 free at the old end and the 10 added are one range
+        assertEquals(5, ranges.allocate(15));
+    }
+
+    @Test
+    void freeingNothingIsHarmless() {
+        RangeAllocator ranges = new RangeAllocator(10);
+        ranges.allocate(10);
+        ranges.free(3, 0);
+        assertEquals(10, ranges.getUsed());
+    }
+}
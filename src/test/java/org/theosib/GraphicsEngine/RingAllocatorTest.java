@@ -0,0 +1,112 @@
+package org.theosib.GraphicsEngine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Offsets handed out by the staging ring, without a GL context
+ */
+class RingAllocatorTest {
+    @Test
+    void allocationsAreAlignedAndContiguous() {
+        RingAllocator ring = new RingAllocator(1024, 256);
+        assertEquals(0, ring.allocate(100));
+        assertEquals(256, ring.allocate(256));
+        assertEquals(512, ring.allocate(1));
+        assertEquals(768, ring.getUsed());
+    }
+
+    @Test
+    void fullRingFailsUntilReleased() {
+        RingAllocator ring = new RingAllocator(1024, 256);
+        assertEquals(0, ring.allocate(512));
+        assertEquals(512, ring.allocate(512));
+        ring.endFrame();
+        assertEquals(-1, ring.allocate(1));
+        assertEquals(1, ring.getFailedAllocations());
+
+        ring.releaseOldestFrame();
+        assertEquals(0, ring.getUsed());
+        assertEquals(0, ring.allocate(1));
+    }
+
+    @Test
+    void tooLargeNeverFits() {
+        RingAllocator ring = new RingAllocator(1024, 256);
+        assertEquals(-1, ring.allocate(1025));
+        assertEquals(1, ring.getFailedAllocations());
+        assertEquals(0, ring.getUsed());
+    }
+
+    @Test
+    void framesReleaseOldestFirst() {
+        RingAllocator ring = new RingAllocator(1024, 256);
+        ring.allocate(256);
+        ring.endFrame();
+        ring.allocate(512);
+        ring.endFrame();
+        assertEquals(2, ring.pendingFrames());
+
+        ring.releaseOldestFrame();
+        assertEquals(512, ring.getUsed());
+        assertEquals(1, ring.pendingFrames());
+        ring.releaseOldestFrame();
+        assertEquals(0, ring.getUsed());
+
+        // Releasing with nothing pending is harmless
+        ring.releaseOldestFrame();
+        assertEquals(0, ring.getUsed());
+    }
+
+    @Test
+    void allocationWrapsAroundEnd() {
+        RingAllocator ring = new RingAllocator(1024, 256);
+        ring.allocate(512);
+        ring.endFrame();
+        assertEquals(512, ring.allocate(256));
+        ring.endFrame();
+        ring.releaseOldestFrame();
+
+        // 256 bytes are left before the end, too few, so they're skipped and the allocation starts over
+        assertEquals(0, ring.allocate(512));
+        assertEquals(256 + 256 + 512, ring.getUsed());
+        ring.endFrame();
+
+        // The skipped bytes are released along with the frame that skipped them
+        ring.releaseOldestFrame();
+        assertEquals(256 + 512, ring.getUsed());
+        ring.releaseOldestFrame();
+        assertEquals(0, ring.getUsed());
+    }
+
+    @Test
+    void wrappedAllocationWaitsForTheStartToBeFree() {
+        RingAllocator ring = new RingAllocator(1024, 256);
+        ring.allocate(256);
+        ring.endFrame();
+        ring.allocate(256);
+        ring.endFrame();
+
+        // The end of the ring is free, but wrapping would run into the unreleased first frame
+        assertEquals(512, ring.allocate(256));
+        assertEquals(768, ring.allocate(256));
+        assertEquals(-1, ring.allocate(256));
+
+        ring.releaseOldestFrame();
+        assertEquals(0, ring.allocate(256));
+    }
+
+    @Test
+    void exactFitAtEndWrapsWithoutSkipping() {
+        RingAllocator ring = new RingAllocator(1024, 256);
+        ring.allocate(768);
+        ring.endFrame();
+        assertEquals(768, ring.allocate(256));
+        ring.endFrame();
+        ring.releaseOldestFrame();
+
+        assertEquals(0, ring.allocate(256));
+        assertEquals(512, ring.getUsed());
+    }
+}
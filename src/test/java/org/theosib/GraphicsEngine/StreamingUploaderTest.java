@@ -0,0 +1,174 @@
+package org.theosib.GraphicsEngine;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Staging, fallback, and fence bookkeeping of the uploader, against a fake GL that keeps buffers in memory
+ */
+class StreamingUploaderTest {
+    static class FakeGL implements GLCalls {
+        final Map<Integer, byte[]> buffers = new HashMap<>();
+        final Set<Long> liveFences = new HashSet<>();
+        final Set<Long> signaled = new HashSet<>();
+        final List<Long> copyOffsets = new ArrayList<>();
+        int nextBuffer = 1;
+        long nextFence = 1;
+        int directWrites = 0;
+
+        // Range handed out by mapRange, written back by unmap
+        ByteBuffer mapped;
+        long mappedOffset;
+
+        @Override
+        public int genBuffer() {
+            buffers.put(nextBuffer, new byte[0]);
+            return nextBuffer++;
+        }
+
+        @Override
+        public void deleteBuffer(int buffer) {
+            buffers.remove(buffer);
+        }
+
+        @Override
+        public void allocate(int buffer, long size) {
+            buffers.put(buffer, new byte[(int)size]);
+        }
+
+        @Override
+        public ByteBuffer mapRange(int buffer, long offset, long length) {
+            mapped = ByteBuffer.allocate((int)length);
+            mappedOffset = offset;
+            return mapped;
+        }
+
+        @Override
+        public void unmap(int buffer) {
+            System.arraycopy(mapped.array(), 0, buffers.get(buffer), (int)mappedOffset, mapped.capacity());
+            mapped = null;
+        }
+
+        @Override
+        public void copy(int src, long srcOffset, int dst, long dstOffset, long size) {
+            System.arraycopy(buffers.get(src), (int)srcOffset, buffers.get(dst), (int)dstOffset, (int)size);
+            copyOffsets.add(srcOffset);
+        }
+
+        @Override
+        public void subData(int buffer, long offset, ByteBuffer data) {
+            data.duplicate().get(buffers.get(buffer), (int)offset, data.remaining());
+            directWrites++;
+        }
+
+        @Override
+        public long fence() {
+            liveFences.add(nextFence);
+            return nextFence++;
+        }
+
+        @Override
+        public boolean isSignaled(long fence) {
+            return signaled.contains(fence);
+        }
+
+        @Override
+        public void deleteFence(long fence) {
+            liveFences.remove(fence);
+        }
+    }
+
+    static ByteBuffer bytes(int size, int value) {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) data.put(i, (byte)(value + i));
+        return data;
+    }
+
+    static byte[] range(byte[] array, int offset, int size) {
+        byte[] out = new byte[size];
+        System.arraycopy(array, offset, out, 0, size);
+        return out;
+    }
+
+    @Test
+    void uploadGoesThroughStaging() {
+        FakeGL gl = new FakeGL();
+        StreamingUploader uploader = new StreamingUploader(gl, 1024);
+        int dst = gl.genBuffer();
+        gl.allocate(dst, 512);
+
+        ByteBuffer data = bytes(100, 7);
+        uploader.upload(dst, 64, data);
+
+        assertArrayEquals(range(data.array(), 0, 100), range(gl.buffers.get(dst), 64, 100));
+        assertEquals(0, data.position());
+        assertEquals(100, uploader.getBytesStaged());
+        assertEquals(0, gl.directWrites);
+    }
+
+    @Test
+    void fullRingFallsBackToSubData() {
+        FakeGL gl = new FakeGL();
+        StreamingUploader uploader = new StreamingUploader(gl, 1024);
+        int dst = gl.genBuffer();
+        gl.allocate(dst, 4096);
+
+        uploader.upload(dst, 0, bytes(1024, 0));
+        ByteBuffer late = bytes(16, 3);
+        uploader.upload(dst, 2048, late);
+
+        assertEquals(1024, uploader.getBytesStaged());
+        assertEquals(16, uploader.getBytesDirect());
+        assertEquals(1, gl.directWrites);
+        assertArrayEquals(range(late.array(), 0, 16), range(gl.buffers.get(dst), 2048, 16));
+    }
+
+    @Test
+    void ringSpaceComesBackOnceFenceSignals() {
+        FakeGL gl = new FakeGL();
+        StreamingUploader uploader = new StreamingUploader(gl, 1024);
+        int dst = gl.genBuffer();
+        gl.allocate(dst, 4096);
+
+        uploader.upload(dst, 0, bytes(1024, 0));
+        uploader.endFrame();
+        assertEquals(1, gl.liveFences.size());
+
+        // Not signaled yet, so the ring is still full
+        uploader.upload(dst, 1024, bytes(256, 0));
+        assertEquals(1, gl.directWrites);
+
+        gl.signaled.add(1L);
+        uploader.upload(dst, 2048, bytes(256, 0));
+        assertEquals(1, gl.directWrites);
+        assertTrue(gl.liveFences.isEmpty());
+        assertEquals(List.of(0L, 0L), gl.copyOffsets);
+    }
+
+    @Test
+    void destroyDeletesFencesAndStaging() {
+        FakeGL gl = new FakeGL();
+        StreamingUploader uploader = new StreamingUploader(gl, 1024);
+        int dst = gl.genBuffer();
+        gl.allocate(dst, 1024);
+
+        uploader.upload(dst, 0, bytes(10, 0));
+        uploader.endFrame();
+        uploader.endFrame();
+        uploader.destroy();
+
+        assertTrue(gl.liveFences.isEmpty());
+        assertEquals(Set.of(dst), gl.buffers.keySet());
+    }
+}
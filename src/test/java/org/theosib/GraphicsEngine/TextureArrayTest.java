@@ -0,0 +1,181 @@
+package org.theosib.GraphicsEngine;
+
+import org.junit.jupiter.api.Test;
+import org.theosib.Images.ImageBuffer;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Layer packing of the texture array on the CPU, from images held in heap memory
+ */
+class TextureArrayTest {
+    /**
+     * Image in a heap buffer, so that no native memory is needed
+     */
+    static class HeapImage implements ImageBuffer {
+        final int w, h, comp;
+        final ByteBuffer buf;
+
+        HeapImage(int w, int h, int comp) {
+            this.w = w;
+            this.h = h;
+            this.comp = comp;
+            this.buf = ByteBuffer.allocate(w * h * comp);
+        }
+
+        void set(int x, int y, int... values) {
+            for (int c = 0; c < comp; c++) buf.put(y * getStride() + x * comp + c, (byte)values[c]);
+        }
+
+        @Override public int getWidth() { return w; }
+        @Override public int getHeight() { return h; }
+        @Override public ByteBuffer getByteBuffer() { return buf; }
+        @Override public int numComponents() { return comp; }
+        @Override public int getStride() { return w * comp; }
+        @Override public void destroy() {}
+    }
+
+    /**
+     * Image whose red channel is its x coordinate and green is its y, so every texel is distinct
+     */
+    static HeapImage gradient(int w, int h) {
+        HeapImage image = new HeapImage(w, h, 3);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) image.set(x, y, x, y, 7);
+        }
+        return image;
+    }
+
+    static ByteBuffer pack(TextureArray array) {
+        int[] size = array.layerSize();
+        ByteBuffer out = ByteBuffer.allocate(size[0] * size[1] * 4 * array.numLayers());
+        array.pack(out, size[0], size[1]);
+        return out;
+    }
+
+    /**
+     * @return RGBA of the packed texel that texture coordinate (u, v) of a layer lands on
+     */
+    static int[] sample(ByteBuffer packed, int[] size, int layer, float u, float v) {
+        int x = Math.min((int)(u * size[0]), size[0] - 1);
+        int y = Math.min((int)(v * size[1]), size[1] - 1);
+        int i = ((layer * size[1] + y) * size[0] + x) * 4;
+        return new int[] {packed.get(i) & 0xFF, packed.get(i + 1) & 0xFF, packed.get(i + 2) & 0xFF, packed.get(i + 3) & 0xFF};
+    }
+
+    @Test
+    void layerSizeIsLargestTexture() {
+        TextureArray array = new TextureArray();
+        assertArrayEquals(new int[] {1, 1}, array.layerSize());
+        array.setLayer(0, gradient(16, 8));
+        array.setLayer(1, gradient(4, 32));
+        assertArrayEquals(new int[] {16, 32}, array.layerSize());
+        assertEquals(2, array.numLayers());
+    }
+
+    @Test
+    void layersArePackedInOrder() {
+        TextureArray array = new TextureArray();
+        HeapImage red = new HeapImage(2, 2, 3);
+        HeapImage blue = new HeapImage(2, 2, 3);
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 2; x++) {
+                red.set(x, y, 255, 0, 0);
+                blue.set(x, y, 0, 0, 255);
+            }
+        }
+        array.setLayer(0, red);
+        array.setLayer(1, blue);
+
+        ByteBuffer packed = pack(array);
+        assertEquals(2 * 2 * 4 * 2, packed.position());
+        int[] size = array.layerSize();
+        assertArrayEquals(new int[] {255, 0, 0, 255}, sample(packed, size, 0, 0.75f, 0.75f));
+        assertArrayEquals(new int[] {0, 0, 255, 255}, sample(packed, size, 1, 0.25f, 0.25f));
+    }
+
+    @Test
+    void unsetLayersAreTransparent() {
+        TextureArray array = new TextureArray();
+        array.setLayer(2, gradient(4, 4));
+        assertEquals(3, array.numLayers());
+
+        ByteBuffer packed = pack(array);
+        int[] size = array.layerSize();
+        for (int layer = 0; layer < 2; layer++) {
+            assertArrayEquals(new int[] {0, 0, 0, 0}, sample(packed, size, layer, 0.5f, 0.5f));
+        }
+        assertArrayEquals(new int[] {2, 2, 7, 255}, sample(packed, size, 2, 0.5f, 0.5f));
+    }
+
+    @Test
+    void smallerTextureKeepsItsCoordinates() {
+        // The 4x4 texture is scaled up to the 16x16 layer size, so the same (u, v) lands on the same texel
+        TextureArray array = new TextureArray();
+        array.setLayer(0, gradient(16, 16));
+        array.setLayer(1, gradient(4, 4));
+
+        ByteBuffer packed = pack(array);
+        int[] size = array.layerSize();
+        for (int ty = 0; ty < 4; ty++) {
+            for (int tx = 0; tx < 4; tx++) {
+                float u = (tx + 0.5f) / 4;
+                float v = (ty + 0.5f) / 4;
+                assertArrayEquals(new int[] {tx, ty, 7, 255}, sample(packed, size, 1, u, v));
+            }
+        }
+        // And the full size one is unchanged
+        assertArrayEquals(new int[] {13, 2, 7, 255}, sample(packed, size, 0, 13.5f / 16, 2.5f / 16));
+    }
+
+    @Test
+    void nonSquareTextureScalesEachAxis() {
+        TextureArray array = new TextureArray();
+        array.setLayer(0, gradient(8, 8));
+        array.setLayer(1, gradient(2, 8));
+
+        ByteBuffer packed = pack(array);
+        int[] size = array.layerSize();
+        assertArrayEquals(new int[] {1, 5, 7, 255}, sample(packed, size, 1, 0.9f, 5.5f / 8));
+        assertArrayEquals(new int[] {0, 0, 7, 255}, sample(packed, size, 1, 0.1f, 0.0f));
+    }
+
+    @Test
+    void alphaIsPremultipliedAndGrayIsExpanded() {
+        HeapImage rgba = new HeapImage(1, 1, 4);
+        rgba.set(0, 0, 200, 100, 50, 128);
+        byte[] out = TextureArray.toRGBA(rgba);
+        assertEquals(Math.round(200 * 128 / 255.0f), out[0] & 0xFF);
+        assertEquals(Math.round(100 * 128 / 255.0f), out[1] & 0xFF);
+        assertEquals(Math.round(50 * 128 / 255.0f), out[2] & 0xFF);
+        assertEquals(128, out[3] & 0xFF);
+
+        HeapImage gray = new HeapImage(1, 1, 1);
+        gray.set(0, 0, 90);
+        out = TextureArray.toRGBA(gray);
+        assertArrayEquals(new byte[] {90, 90, 90, (byte)255}, out);
+    }
+
+    @Test
+    void paddedRowsAreRead() {
+        // An image whose rows are longer than its pixels, as some loaders produce
+        HeapImage wide = new HeapImage(3, 2, 3) {
+            @Override public int getWidth() { return 2; }
+        };
+        wide.set(1, 1, 10, 20, 30);
+        byte[] out = TextureArray.toRGBA(wide);
+        assertEquals(2 * 2 * 4, out.length);
+        assertEquals(10, out[(1 * 2 + 1) * 4]);
+        assertEquals(30, out[(1 * 2 + 1) * 4 + 2]);
+    }
+
+    @Test
+    void tooManyLayersIsAnError() {
+        TextureArray array = new TextureArray();
+        assertThrows(RuntimeException.class, () -> array.setLayer(TextureArray.MAX_LAYERS, gradient(1, 1)));
+    }
+}
@@ -0,0 +1,131 @@
+package org.theosib.GraphicsEngine;
+
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Round trip of the packed vertex encoding on the CPU
+ */
+class VertexFormatTest {
+    // Fixed-point steps, which are the most an encoded value can be off by
+    static final float POSITION_STEP = 1.0f / VertexFormat.POSITION_SCALE;
+    static final float TEXCOORD_STEP = 1.0f / VertexFormat.TEXCOORD_SCALE;
+    static final float NORMAL_STEP = 1.0f / VertexFormat.NORMAL_SCALE;
+
+    static ByteBuffer buffer(int vertices) {
+        return ByteBuffer.allocate(vertices * VertexFormat.STRIDE).order(ByteOrder.nativeOrder());
+    }
+
+    @Test
+    void vertexIsStrideBytes() {
+        ByteBuffer buf = buffer(2);
+        VertexFormat.putVertex(buf, 1, 2, 3, 0, 0, 0, 1, 0);
+        assertEquals(VertexFormat.STRIDE, buf.position());
+        VertexFormat.putVertex(buf, 1, 2, 3, 0, 0, 0, 1, 0);
+        assertEquals(2 * VertexFormat.STRIDE, buf.position());
+    }
+
+    @Test
+    void positionsRoundTrip() {
+        float[][] positions = {
+                {0, 0, 0}, {16, 16, 16}, {0.5f, 15.25f, 7.75f}, {-1, -0.5f, -16},
+                // Extremes of the range
+                {127.99f, -128, 100.125f}};
+        ByteBuffer buf = buffer(positions.length);
+        for (float[] p : positions) VertexFormat.putVertex(buf, p[0], p[1], p[2], 0, 0, 0, 1, 0);
+
+        Vector3f out = new Vector3f();
+        for (int i=0; i<positions.length; i++) {
+            VertexFormat.decodePosition(buf, i, out);
+            assertEquals(positions[i][0], out.x, POSITION_STEP);
+            assertEquals(positions[i][1], out.y, POSITION_STEP);
+            assertEquals(positions[i][2], out.z, POSITION_STEP);
+        }
+    }
+
+    @Test
+    void positionsOutOfRangeClamp() {
+        ByteBuffer buf = buffer(1);
+        VertexFormat.putVertex(buf, 200, -200, 128, 0, 0, 0, 1, 0);
+        Vector3f out = VertexFormat.decodePosition(buf, 0, new Vector3f());
+        assertEquals(Short.MAX_VALUE / VertexFormat.POSITION_SCALE, out.x, 0);
+        assertEquals(Short.MIN_VALUE / VertexFormat.POSITION_SCALE, out.y, 0);
+        assertEquals(Short.MAX_VALUE / VertexFormat.POSITION_SCALE, out.z, 0);
+    }
+
+    @Test
+    void texCoordsRoundTrip() {
+        // Greedy quads tile the texture up to a chunk's width
+        float[][] uvs = {{0, 0}, {1, 1}, {0.25f, 0.75f}, {16, 16}, {15.5f, 0.001f}};
+        ByteBuffer buf = buffer(uvs.length);
+        for (float[] uv : uvs) VertexFormat.putVertex(buf, 0, 0, 0, uv[0], uv[1], 0, 1, 0);
+
+        Vector2f out = new Vector2f();
+        for (int i=0; i<uvs.length; i++) {
+            VertexFormat.decodeTexCoord(buf, i, out);
+            assertEquals(uvs[i][0], out.x, TEXCOORD_STEP);
+            assertEquals(uvs[i][1], out.y, TEXCOORD_STEP);
+        }
+    }
+
+    @Test
+    void faceNormalsAreExact() {
+        // One per face, in Facing order
+        float[][] normals = {{0, -1, 0}, {0, 1, 0}, {0, 0, -1}, {0, 0, 1}, {-1, 0, 0}, {1, 0, 0}};
+        ByteBuffer buf = buffer(normals.length);
+        for (float[] n : normals) VertexFormat.putVertex(buf, 0, 0, 0, 0, 0, n[0], n[1], n[2]);
+
+        Vector3f out = new Vector3f();
+        for (int face=0; face<normals.length; face++) {
+            VertexFormat.decodeNormal(buf, face, out);
+            assertEquals(normals[face][0], out.x, 0);
+            assertEquals(normals[face][1], out.y, 0);
+            assertEquals(normals[face][2], out.z, 0);
+        }
+    }
+
+    @Test
+    void arbitraryNormalsRoundTrip() {
+        float c = (float)Math.sqrt(1.0 / 3.0);
+        ByteBuffer buf = buffer(1);
+        VertexFormat.putVertex(buf, 0, 0, 0, 0, 0, c, -c, c);
+        Vector3f out = VertexFormat.decodeNormal(buf, 0, new Vector3f());
+        assertEquals(c, out.x, NORMAL_STEP);
+        assertEquals(-c, out.y, NORMAL_STEP);
+        assertEquals(c, out.z, NORMAL_STEP);
+    }
+
+    @Test
+    void layersRoundTripUnsigned() {
+        int[] layers = {0, 1, 127, 128, 255};
+        ByteBuffer buf = buffer(layers.length);
+        for (int layer : layers) VertexFormat.putVertex(buf, 0, 0, 0, 0, 0, 0, 1, 0, layer);
+        for (int i=0; i<layers.length; i++) {
+            assertEquals(layers[i], VertexFormat.decodeLayer(buf, i));
+        }
+    }
+
+    @Test
+    void slotsAreStampedWithoutDisturbingTheRest() {
+        ByteBuffer buf = buffer(4);
+        for (int i=0; i<4; i++) VertexFormat.putVertex(buf, i, i, i, 0.5f, 0.5f, 1, 0, 0, 7);
+        assertEquals(0, VertexFormat.decodeSlot(buf, 0));
+
+        VertexFormat.setSlot(buf, 1, 2, 65535);
+        assertEquals(0, VertexFormat.decodeSlot(buf, 0));
+        assertEquals(65535, VertexFormat.decodeSlot(buf, 1));
+        assertEquals(65535, VertexFormat.decodeSlot(buf, 2));
+        assertEquals(0, VertexFormat.decodeSlot(buf, 3));
+
+        Vector3f pos = VertexFormat.decodePosition(buf, 2, new Vector3f());
+        assertEquals(2, pos.x, 0);
+        assertEquals(7, VertexFormat.decodeLayer(buf, 2));
+        assertEquals(0.5f, VertexFormat.decodeTexCoord(buf, 2, new Vector2f()).x, 0);
+    }
+}
@@ -0,0 +1,122 @@
+package org.theosib.WorldElements
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.io.TempDir
+import org.junit.jupiter.api.{AfterEach, BeforeEach, Test}
+import org.theosib.Blocks.StaticCubeBlock
+import org.theosib.GraphicsEngine.QuadIndexBuffer
+import org.theosib.Position.{BlockPos, ChunkPos}
+import org.theosib.Storage.RegionStorage
+import org.theosib.Utils.FileLocator
+
+import java.nio.file.Path
+
+/**
+ * Meshes a few known chunk layouts without a GL context and checks exactly how many quads and vertices
+ * the opaque and translucent renderers end up with. Every quad is four unique vertices, drawn through
+ * the shared index buffer. The chunk has no loaded neighbors, so its outside faces are all shown.
+ *
+ * Run from the project directory so that resources can be found.
+ */
+class ChunkMeshCountTest {
+  import ChunkMeshCountTest._
+
+  private var world: World = null
+
+  @BeforeEach
+  def setUp(@TempDir dir: Path): Unit = {
+    FileLocator.setBaseDir(System.getProperty("user.dir") + "/resources")
+    registerGlass()
+    // Nothing is saved, but the world mustn't be able to touch the real chunk directory
+    world = new World(new RegionStorage(dir))
+  }
+
+  @AfterEach
+  def tearDown(): Unit = {
+    world.shutdown()
+    world.regionStorage.close()
+    BlockLibrary.unregisterBlockType(glassName)
+  }
+
+  @Test
+  def singleBlock(): Unit = {
+    val view = build(world, (x, y, z) => if (x == 5 && y == 6 && z == 7) "cobble" else null)
+    assertCounts(view, opaqueQuads = 6, transQuads = 0)
+  }
+
+  @Test
+  def solidCube(): Unit = {
+    val view = build(world, (_, _, _) => "cobble")
+    // One quad each for the top and bottom, and one per slab on each side, since quads stop at slabs
+    assertCounts(view, opaqueQuads = 2 + 4 * ChunkView.numSlabs, transQuads = 0)
+  }
+
+  @Test
+  def solidCubeWithoutGreedyMeshing(): Unit = {
+    val view = build(world, (_, _, _) => "cobble", greedy = false)
+    assertCounts(view, opaqueQuads = 6 * 16 * 16, transQuads = 0)
+  }
+
+  @Test
+  def checkerboard(): Unit = {
+    // No two blocks touch, and coplanar faces only meet at corners, so nothing is hidden or merged
+    val view = build(world, (x, y, z) => if (((x + y + z) & 1) == 0) "cobble" else null)
+    assertCounts(view, opaqueQuads = 6 * 16 * 16 * 16 / 2, transQuads = 0)
+  }
+
+  @Test
+  def translucentOverOpaque(): Unit = {
+    // A floor of cobble with a layer of glass on it
+    val view = build(world, (_, y, _) => if (y == 0) "cobble" else if (y == 1) glassName else null)
+    // The floor's top still shows through the glass
+    val floor = 6
+    // Glass faces against the floor and against other glass are hidden, leaving the top and the rim
+    val glass = 16 * 16 + 4 * 16
+    assertCounts(view, opaqueQuads = floor, transQuads = glass)
+  }
+
+  private def assertCounts(view: ChunkView, opaqueQuads: Int, transQuads: Int): Unit = {
+    val opaque = view.render_alt(0)
+    val trans = view.trans_alt(0)
+    assertEquals(opaqueQuads, opaque.numQuads(), "opaque quads")
+    assertEquals(opaqueQuads * QuadIndexBuffer.VERTICES_PER_QUAD, opaque.numVertices(), "opaque vertices")
+    assertEquals(transQuads, trans.numQuads(), "translucent quads")
+    assertEquals(transQuads * QuadIndexBuffer.VERTICES_PER_QUAD, trans.numVertices(), "translucent vertices")
+  }
+}
+
+object ChunkMeshCountTest {
+  val glassName = "test_glass"
+
+  // A translucent cube, since none of the shipped blocks are. Unregistered after each test.
+  def registerGlass(): Unit = BlockLibrary.synchronized {
+    if (!BlockLibrary.library.contains(glassName)) {
+      val glass = new StaticCubeBlock("steel") {
+        override def getName: String = glassName
+      }
+      glass.default_mesh.setTranslucent(true)
+      BlockLibrary.registerBlockType(glassName, glass)
+    }
+  }
+
+  /**
+   * Fill a lone chunk and build its renderers
+   * @param world holds the chunk, and is shut down by the caller
+   * @param fill name of the block at each position, or null for air
+   * @param greedy whether to merge faces into larger quads
+   */
+  def build(world: World, fill: (Int, Int, Int) => String, greedy: Boolean = true): ChunkView = {
+    val chunk = new Chunk(world, new ChunkPos(0, 0, 0))
+    for (y <- 0 until 16; z <- 0 until 16; x <- 0 until 16) {
+      val name = fill(x, y, z)
+      if (name != null) chunk.genBlock(new BlockPos(x, y, z), name)
+    }
+    world.chunkStorage.put(chunk)
+
+    val view = chunk.getChunkView
+    view.greedyMeshing = greedy
+    view.markChunkUpdated()
+    view.computeVisualUpdates(new BlockPos(0, 0, 0))
+    view
+  }
+}
@@ -0,0 +1,106 @@
+package org.theosib.WorldElements
+
+import org.joml.Matrix4f
+import org.junit.jupiter.api.Assertions.{assertEquals, assertFalse, assertNotSame, assertSame, assertTrue}
+import org.junit.jupiter.api.io.TempDir
+import org.junit.jupiter.api.{AfterEach, BeforeEach, Test}
+import org.theosib.Geometry.Frustum
+import org.theosib.GraphicsEngine.{DrawCommandList, MeshRenderer, VertexArena}
+import org.theosib.Position.BlockPos
+import org.theosib.Storage.RegionStorage
+import org.theosib.Utils.FileLocator
+
+import java.nio.ByteBuffer
+import java.nio.file.Path
+
+/**
+ * A chunk renderer that finds its vertices gone when it's loaded into an arena gets built again, and
+ * draws once it has been. Arenas here count uploads instead of making GL calls.
+ *
+ * Run from the project directory so that resources can be found.
+ */
+class ChunkViewRebuildTest {
+  import ChunkViewRebuildTest._
+
+  private var world: World = null
+
+  @BeforeEach
+  def setUp(@TempDir dir: Path): Unit = {
+    FileLocator.setBaseDir(System.getProperty("user.dir") + "/resources")
+    world = new World(new RegionStorage(dir))
+  }
+
+  @AfterEach
+  def tearDown(): Unit = {
+    world.shutdown()
+    world.regionStorage.close()
+  }
+
+  @Test
+  def rendererThatLostItsVerticesIsRebuilt(): Unit = {
+    val view = ChunkMeshCountTest.build(world, (_, y, _) => if (y == 0) "cobble" else null)
+    view.publishRenders()
+    val first = view.render(0)
+    val quads = first.numQuads()
+    assertFalse(view.wantsVisualUpdate(center, frustum))
+
+    // Uploading gives the vertices back, so there's nothing left to put in another arena
+    val a = new FakeArena
+    val b = new FakeArena
+    assertTrue(first.loadArena(a))
+    assertEquals(1, a.uploads)
+    assertFalse(first.loadArena(b))
+    assertEquals(0, b.uploads)
+    assertTrue(first.needsRebuild())
+    assertFalse(first.isValid)
+
+    // Although no block changed, the chunk asks to be built again
+    assertTrue(view.wantsVisualUpdate(center, frustum))
+    rebuild(view)
+    assertFalse(view.wantsVisualUpdate(center, frustum))
+    assertNotSame(first, view.render(0))
+    assertEquals(quads, drawnQuads(view.render(0), b))
+
+    // The emptied renderer is loaded in full the next time it's built, and draws again
+    view.markBlockVisuallyUpdated(0)
+    rebuild(view)
+    assertSame(first, view.render(0))
+    assertFalse(first.needsRebuild())
+    assertEquals(quads, drawnQuads(first, b))
+  }
+}
+
+object ChunkViewRebuildTest {
+  class FakeArena extends VertexArena {
+    var uploads = 0
+
+    override def upload(byteOffset: Long, data: ByteBuffer): Unit = uploads += 1
+  }
+
+  val center = new BlockPos(0, 0, 0)
+
+  // Looking at the chunk from in front of it
+  val frustum: Frustum = new Frustum().set(new Matrix4f().perspective(1.2f, 1, 0.1f, 1000),
+    new Matrix4f().lookAt(8, 8, 40, 8, 8, 0, 0, 1, 0))
+
+  /**
+   * What ChunkMeshScheduler does, on the calling thread
+   */
+  def rebuild(view: ChunkView): Unit = {
+    view.buildInFlight = true
+    view.computeVisualUpdates(center)
+    view.publishRenders()
+  }
+
+  /**
+   * @return number of quads the renderer adds draw commands for, or -1 if it can't be drawn from the arena
+   */
+  def drawnQuads(mr: MeshRenderer, arena: VertexArena): Int = {
+    if (!mr.loadArena(arena)) return -1
+    val commands = new DrawCommandList
+    mr.addCommands(commands, 0)
+    var total = 0
+    for (i <- 0 until commands.size()) total += commands.getNumQuads(i)
+    total
+  }
+}